@@ -0,0 +1,34 @@
+package com.company;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Run the AMIDIFX benchmarks with the GC profiler for throughput, average time and allocation rate.
+ *
+ * The bench source folder is the jmh source set of build.gradle, compiled against src with jmh-core and the
+ * jmh-generator-annprocess annotation processor. Run it with ./gradlew jmh, or pass a benchmark name regex to run a
+ * subset plus any JMH options, e.g. ./gradlew jmh -Pjmh="Routing -wi 2 -i 3".
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String include = (args.length > 0) ? args[0] : "com.company.*Benchmark";
+        String[] jmhArgs = (args.length > 1) ? Arrays.copyOfRange(args, 1, args.length) : new String[0];
+
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(jmhArgs))
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
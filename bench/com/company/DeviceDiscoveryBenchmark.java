@@ -0,0 +1,96 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup device discovery on a rig of fake providers with slow enumeration: the serial probing the device list used
+ * to do (enumerate for the device list, then again to open the Out device), the parallel discovery, and opening the
+ * preferred device on the fast path from a persisted cache
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class DeviceDiscoveryBenchmark {
+
+    @Param({"4"})
+    public int providerCount;
+
+    @Param({"16"})
+    public int portsPerProvider;
+
+    @Param({"5000"})
+    public int enumerationMicros;
+
+    private MidiDeviceProvider[] providers;
+    private Path cacheFile;
+    private String preferred;
+
+    @Setup
+    public void setup() {
+        providers = new MidiDeviceProvider[providerCount];
+        for (int p = 0; p < providerCount; p++) {
+            FakeMidiDeviceProvider provider = new FakeMidiDeviceProvider(enumerationMicros);
+            for (int port = 0; port < portsPerProvider; port++) {
+                provider.plug("Port " + p + "-" + port, (port % 2 == 0) ? -1 : 0, (port % 2 == 0) ? 0 : -1);
+            }
+            providers[p] = provider;
+        }
+        preferred = "Port " + (providerCount - 1) + "-0";
+    }
+
+    @Setup(Level.Iteration)
+    public void warmCache() throws IOException {
+        cacheFile = Files.createTempFile("devices", ".cache");
+        Files.delete(cacheFile);
+
+        MidiDeviceDiscovery discovery = new MidiDeviceDiscovery(providers, cacheFile);
+        discovery.start("", "").join();
+        discovery.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(cacheFile);
+    }
+
+    @Benchmark
+    public void serialProbe(Blackhole bh) {
+        // Device list, then openMidiReceiver enumerating again
+        for (int pass = 0; pass < 2; pass++) {
+            for (MidiDeviceProvider provider : providers) {
+                for (MidiDevice.Info info : provider.getDeviceInfo()) {
+                    MidiDevice device = provider.getDevice(info);
+                    bh.consume(device.getMaxReceivers());
+                    bh.consume(device.getMaxTransmitters());
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void parallelProbe(Blackhole bh) {
+        MidiDeviceDiscovery discovery = new MidiDeviceDiscovery(providers, null);
+        bh.consume(discovery.start("", preferred).join());
+        bh.consume(discovery.findPreferred(preferred, true));
+        discovery.close();
+    }
+
+    @Benchmark
+    public void fastPathPreferred(Blackhole bh) {
+        MidiDeviceDiscovery discovery = new MidiDeviceDiscovery(providers, cacheFile);
+        discovery.start("", preferred);
+        bh.consume(discovery.findPreferred(preferred, true));
+        discovery.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diagnostics: the cost displayMessage adds to the MIDI thread (a journal record, with the journal printing to a
+ * null stream), and the MidiMessageFormatter decoders that run on the journal formatter thread
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DisplayBenchmark {
+
+    private DiagnosticJournal journal;
+    private AMidiFXReceiver receiver;
+    private StringBuilder sb;
+
+    private ShortMessage noteOn;
+    private ShortMessage controller;
+    private ShortMessage pitchBend;
+    private ShortMessage programChange;
+
+    @Setup
+    public void setup() throws InvalidMidiDataException {
+        journal = new DiagnosticJournal(4096, new PrintStream(OutputStream.nullOutputStream()), DiagnosticJournal.MIDI);
+        receiver = new AMidiFXReceiver(new NullReceiver(), new RoutingTable.Builder(0).build());
+        receiver.setJournal(journal);
+        sb = new StringBuilder(256);
+
+        noteOn = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+        controller = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 74, 64);
+        pitchBend = new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 64);
+        programChange = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 12, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Benchmark
+    public void displayNoteOn() {
+        receiver.displayMessage(noteOn, -1);
+    }
+
+    @Benchmark
+    public void displayController() {
+        receiver.displayMessage(controller, -1);
+    }
+
+    @Benchmark
+    public void displayPitchBend() {
+        receiver.displayMessage(pitchBend, -1);
+    }
+
+    @Benchmark
+    public void displayProgramChange() {
+        receiver.displayMessage(programChange, -1);
+    }
+
+    @Benchmark
+    public int formatNoteOn() {
+        sb.setLength(0);
+        MidiMessageFormatter.format(sb, -1, EventRing.pack(noteOn.getStatus(), noteOn.getData1(), noteOn.getData2()), 3);
+        return sb.length();
+    }
+
+    @Benchmark
+    public int formatPitchBend() {
+        sb.setLength(0);
+        MidiMessageFormatter.format(sb, -1, EventRing.pack(pitchBend.getStatus(), pitchBend.getData1(), pitchBend.getData2()), 3);
+        return sb.length();
+    }
+}
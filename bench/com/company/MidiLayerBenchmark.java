@@ -0,0 +1,46 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preset parsing: MidiLayer parseChannelOut of a channel out string, and RoutingTable compile of the result
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MidiLayerBenchmark {
+
+    @Param({"1", "4", "10"})
+    public int layers;
+
+    private MidiLayer layer;
+
+    @Setup
+    public void setup() {
+        StringBuilder channelOut = new StringBuilder();
+        for (int i = 0; i < layers; i++) {
+            if (i > 0) {
+                channelOut.append('|');
+            }
+            channelOut.append((i % 9) + 1);
+        }
+
+        layer = new MidiLayer(0, 1, channelOut.toString(), 0, 0, 0);
+    }
+
+    @Benchmark
+    public boolean parseChannelOut() {
+        return layer.parseChannelOut();
+    }
+
+    @Benchmark
+    public void compileRouting(Blackhole bh) {
+        bh.consume(RoutingTable.compile(0, layer));
+    }
+}
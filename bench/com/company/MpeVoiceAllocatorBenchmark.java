@@ -0,0 +1,98 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MPE voice allocation: 10 simultaneous notes on their own member channels, each with pitch bend and pressure, over
+ * 4 layers of 4 output channels, so notes beyond 4 are stolen or share a channel. Measured on MpeVoiceAllocator
+ * alone and through AMidiFXReceiver routeMessage into a NullReceiver
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MpeVoiceAllocatorBenchmark {
+
+    private static final int NOTES = 10;
+    private static final int LAYERS = 4;
+
+    @Param({"OLDEST", "QUIETEST", "SHARE"})
+    public MpeVoiceAllocator.StealPolicy policy;
+
+    @Param({"4"})
+    public int voices;
+
+    private NullReceiver sink;
+    private AMidiFXReceiver receiver;
+    private MpeVoiceAllocator allocator;
+    private long sent;
+    private final MpeVoiceAllocator.VoiceSink voiceSink = (module, command, channel, data1, data2) -> sent++;
+
+    private final ShortMessage[] noteOn = new ShortMessage[NOTES];
+    private final ShortMessage[] noteOff = new ShortMessage[NOTES];
+    private final ShortMessage[] bend = new ShortMessage[NOTES];
+    private final ShortMessage[] pressure = new ShortMessage[NOTES];
+
+    @Setup
+    public void setup() throws InvalidMidiDataException {
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        for (int layer = 0; layer < LAYERS; layer++) {
+            builder.addLayer(1, layer * voices + 1, 0);
+        }
+        RoutingTable table = builder.build();
+        MpeVoiceAllocator.Zone zone = new MpeVoiceAllocator.Zone(1, 15, voices, policy);
+
+        sink = new NullReceiver();
+        receiver = new AMidiFXReceiver(sink, table);
+        receiver.setMpeZone(zone);
+        allocator = new MpeVoiceAllocator(table, zone, null);
+
+        // Member channels 2 to 11
+        for (int i = 0; i < NOTES; i++) {
+            noteOn[i] = new ShortMessage(ShortMessage.NOTE_ON, i + 1, 60 + i, 40 + i * 8);
+            noteOff[i] = new ShortMessage(ShortMessage.NOTE_OFF, i + 1, 60 + i, 0);
+            bend[i] = new ShortMessage(ShortMessage.PITCH_BEND, i + 1, 0, 70);
+            pressure[i] = new ShortMessage(ShortMessage.CHANNEL_PRESSURE, i + 1, 90, 0);
+        }
+    }
+
+    // Chord of 10 notes, a bend and pressure per note, then all Note Offs
+    @Benchmark
+    @OperationsPerInvocation(NOTES * 4)
+    public long allocateChord() {
+        for (int i = 0; i < NOTES; i++) {
+            allocator.noteOn(i + 1, 60 + i, 40 + i * 8, voiceSink);
+        }
+        for (int i = 0; i < NOTES; i++) {
+            allocator.expression(ShortMessage.PITCH_BEND, i + 1, 0, 70, voiceSink);
+            allocator.expression(ShortMessage.CHANNEL_PRESSURE, i + 1, 90, 0, voiceSink);
+        }
+        for (int i = 0; i < NOTES; i++) {
+            allocator.noteOff(i + 1, 60 + i, 0, voiceSink);
+        }
+        return sent;
+    }
+
+    // The same chord as keyboard messages through the receiver
+    @Benchmark
+    @OperationsPerInvocation(NOTES * 4)
+    public long routeChord() {
+        for (int i = 0; i < NOTES; i++) {
+            receiver.routeMessage(noteOn[i], -1);
+        }
+        for (int i = 0; i < NOTES; i++) {
+            receiver.routeMessage(bend[i], -1);
+            receiver.routeMessage(pressure[i], -1);
+        }
+        for (int i = 0; i < NOTES; i++) {
+            receiver.routeMessage(noteOff[i], -1);
+        }
+        return sink.count;
+    }
+}
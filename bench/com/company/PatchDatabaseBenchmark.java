@@ -0,0 +1,88 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sound Module patch lookups in a generated 10k+ patch library, on heap and off-heap
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatchDatabaseBenchmark {
+
+    @Param({"10000", "30000"})
+    public int patches;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    private static final String[] WORDS = {"Piano", "Strings", "Brass", "Organ", "Pad", "Lead", "Bass", "Choir"};
+
+    private Path file;
+    private PatchDatabase database;
+    private MidiLayer layer;
+    private final byte[] programBytes = new byte[PatchDatabase.PROGRAM_BYTES];
+    private final int[] found = new int[16];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder lines = new StringBuilder("# patchIdx,bankMSB,bankLSB,program,name\n");
+        for (int i = 0; i < patches; i++) {
+            lines.append(i).append(',').append((i >> 14) & 0x7F).append(',').append((i >> 7) & 0x7F).append(',')
+                    .append(i & 0x7F).append(',').append(WORDS[i % WORDS.length]).append(' ').append(i).append('\n');
+        }
+
+        file = Files.createTempFile("patches", ".dat");
+        Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8));
+        database = PatchDatabase.load(file, offHeap);
+        layer = new MidiLayer(0, 1, "1", 0, 0, patches / 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int findByPatchIdx() {
+        next = (next + 7919) % patches;
+        return database.find(next);
+    }
+
+    @Benchmark
+    public int findByProgram() {
+        next = (next + 7919) % patches;
+        return database.findByProgram((next >> 14) & 0x7F, (next >> 7) & 0x7F, next & 0x7F);
+    }
+
+    @Benchmark
+    public int findByNamePrefix() {
+        next = (next + 1) % WORDS.length;
+        return database.findByNamePrefix(WORDS[next], found, found.length);
+    }
+
+    @Benchmark
+    public int layerProgramBytes() {
+        return database.getProgramBytes(layer, 1, programBytes);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public void load(Blackhole bh) throws IOException {
+        bh.consume(PatchDatabase.load(file, offHeap));
+    }
+}
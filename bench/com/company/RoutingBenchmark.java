@@ -0,0 +1,67 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing hot path: AMidiFXReceiver routeMessage and layerMessages into a NullReceiver at 1, 4 and 10 layers.
+ * Run with the GC profiler (see BenchmarkRunner): layering should report no allocation per operation.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({"1", "4", "10"})
+    public int layers;
+
+    private NullReceiver sink;
+    private AMidiFXReceiver receiver;
+
+    private ShortMessage noteOn;
+    private ShortMessage noteOff;
+    private ShortMessage controller;
+
+    @Setup
+    public void setup() throws InvalidMidiDataException {
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        for (int layer = 0; layer < layers; layer++) {
+            builder.addLayer(1, layer + 2, 0);
+        }
+
+        sink = new NullReceiver();
+        receiver = new AMidiFXReceiver(sink, builder.build());
+
+        noteOn = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+        noteOff = new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0);
+        controller = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 74, 64);
+    }
+
+    // Note On and Off through routeMessage into layerMessages
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public long routeNote() {
+        receiver.routeMessage(noteOn, -1);
+        receiver.routeMessage(noteOff, -1);
+        return sink.count;
+    }
+
+    // Controllers are forwarded without layering
+    @Benchmark
+    public long routeController() {
+        receiver.routeMessage(controller, -1);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long layerNoteOn() {
+        receiver.layerMessages(noteOn, -1);
+        return sink.count;
+    }
+}
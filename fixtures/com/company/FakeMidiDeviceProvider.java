@@ -0,0 +1,161 @@
+package com.company;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MidiDeviceProvider with fake ports that can be plugged and unplugged, and an optional enumeration delay to stand
+ * in for a slow native driver
+ */
+public class FakeMidiDeviceProvider extends MidiDeviceProvider {
+
+    private final List<FakeMidiDevice> devices = new CopyOnWriteArrayList<>();
+    private volatile long enumerationNanos;
+
+    public FakeMidiDeviceProvider(long enumerationMicros) {
+        this.enumerationNanos = TimeUnit.MICROSECONDS.toNanos(enumerationMicros);
+    }
+
+    public FakeMidiDevice plug(String name, int maxReceivers, int maxTransmitters) {
+        FakeMidiDevice device = new FakeMidiDevice(name, maxReceivers, maxTransmitters);
+        devices.add(device);
+        return device;
+    }
+
+    public void unplug(String name) {
+        for (FakeMidiDevice device : devices) {
+            if (device.getDeviceInfo().getName().equals(name)) {
+                devices.remove(device);
+                device.close();
+            }
+        }
+    }
+
+    @Override
+    public MidiDevice.Info[] getDeviceInfo() {
+        if (enumerationNanos > 0) {
+            LockSupport.parkNanos(enumerationNanos);
+        }
+
+        List<MidiDevice.Info> infos = new ArrayList<>();
+        for (FakeMidiDevice device : devices) {
+            infos.add(device.getDeviceInfo());
+        }
+        return infos.toArray(new MidiDevice.Info[0]);
+    }
+
+    @Override
+    public MidiDevice getDevice(MidiDevice.Info info) {
+        for (FakeMidiDevice device : devices) {
+            if (device.getDeviceInfo() == info) {
+                return device;
+            }
+        }
+        throw new IllegalArgumentException("Unknown device " + info);
+    }
+
+    /**
+     * A port that counts what it is sent
+     */
+    public static class FakeMidiDevice implements MidiDevice {
+        private final Info info;
+        private final int maxReceivers;
+        private final int maxTransmitters;
+        private volatile boolean open;
+
+        public final NullReceiver sink = new NullReceiver();
+        private final List<Transmitter> transmitters = new CopyOnWriteArrayList<>();
+
+        FakeMidiDevice(String name, int maxReceivers, int maxTransmitters) {
+            this.info = new Info(name, "Fake", "Fake MIDI port", "1.0") { };
+            this.maxReceivers = maxReceivers;
+            this.maxTransmitters = maxTransmitters;
+        }
+
+        @Override
+        public Info getDeviceInfo() {
+            return info;
+        }
+
+        @Override
+        public void open() {
+            open = true;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            for (Transmitter transmitter : transmitters) {
+                transmitter.close();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public long getMicrosecondPosition() {
+            return -1;
+        }
+
+        @Override
+        public int getMaxReceivers() {
+            return maxReceivers;
+        }
+
+        @Override
+        public int getMaxTransmitters() {
+            return maxTransmitters;
+        }
+
+        @Override
+        public Receiver getReceiver() {
+            return sink;
+        }
+
+        @Override
+        public List<Receiver> getReceivers() {
+            List<Receiver> receivers = new ArrayList<>();
+            receivers.add(sink);
+            return receivers;
+        }
+
+        @Override
+        public Transmitter getTransmitter() {
+            Transmitter transmitter = new Transmitter() {
+                private volatile Receiver receiver;
+
+                @Override
+                public void setReceiver(Receiver receiver) {
+                    this.receiver = receiver;
+                }
+
+                @Override
+                public Receiver getReceiver() {
+                    return receiver;
+                }
+
+                @Override
+                public void close() {
+                    receiver = null;
+                }
+            };
+            transmitters.add(transmitter);
+            return transmitter;
+        }
+
+        @Override
+        public List<Transmitter> getTransmitters() {
+            return new ArrayList<>(transmitters);
+        }
+    }
+}
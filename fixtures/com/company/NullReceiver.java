@@ -0,0 +1,22 @@
+package com.company;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Sink for benchmarks and tests: counts what it is sent and does nothing else, so only the routing cost is measured
+ */
+public class NullReceiver implements Receiver {
+    public long count;
+    public int lastStatus;
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        count++;
+        lastStatus = message.getStatus();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,454 @@
+package com.company;
+
+import javax.sound.midi.*;
+
+/**
+ * Implement custom Receiver to read Keyboard input and layer/multiplex
+ *
+ * Layering is driven by a compiled {@link RoutingTable}. The table is immutable and published through a volatile
+ * reference, so a Preset switch from another thread is a single lock-free write and note play never sees a
+ * partially updated routing. Each layer is sent to the Receiver of its sound module in the ModuleRegistry.
+ *
+ * With an MPE zone set, notes and per note expression on the zone's channels are played through an
+ * {@link MpeVoiceAllocator} instead, so every note gets its own output channel on each layer.
+ */
+public class AMidiFXReceiver implements Receiver {
+    private Receiver receiver;
+    private final ModuleRegistry modules;
+    boolean isSystemExclusiveData = false;
+
+    // Compiled Preset routing, replaced as a whole on Preset change
+    private volatile RoutingTable routingTable;
+
+    // One reusable message per output channel so layering does not allocate
+    private final ShortMessage[] layerPool = new ShortMessage[16];
+
+    // Sounding notes per keyboard key and per output channel
+    private final ActiveNoteTracker activeNotes = new ActiveNoteTracker();
+
+    // Diagnostics, off while null
+    private volatile DiagnosticJournal journal;
+
+    // Controller thinning of the forwarded stream, off while null
+    private volatile ControllerThinner controllerThinner;
+
+    // MPE voice allocation, off while null. The allocator is rebuilt on the Transmitter thread when the zone or the
+    // routing changes, after the notes of the previous one are ended, so no two allocators share output channels
+    private volatile MpeVoiceAllocator.Zone mpeZone;
+    private MpeVoiceAllocator mpeAllocator;
+    private final MpeVoiceAllocator.VoiceSink voiceSink = this::sendVoice;
+
+    // Latency recording, off while null. Arrival time of the message being routed, Transmitter thread only
+    private volatile LatencyStats latencyStats;
+    private long arrivalNanos;
+
+    public AMidiFXReceiver(Receiver receiver, RoutingTable routingTable) {
+        this(new ModuleRegistry(receiver), routingTable);
+    }
+
+    // Non layered messages go to the primary module 0
+    public AMidiFXReceiver(ModuleRegistry modules, RoutingTable routingTable) {
+        this.modules = modules;
+        this.receiver = modules.getReceiver(0);
+        this.routingTable = routingTable;
+
+        for (int i = 0; i < layerPool.length; i++) {
+            layerPool[i] = new ShortMessage();
+        }
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    // Publish the routing of a newly selected Preset. Safe to call while notes are playing
+    public void setRoutingTable(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    // Number of output notes currently sounding
+    public int getActiveVoices() {
+        return activeNotes.getActiveVoices();
+    }
+
+    // Send a Note Off for every output note that is sounding, and only those. Returns the number of notes turned off.
+    // Call it from the thread delivering keyboard messages, or while input is stopped, as output pipelines expect a
+    // single producer
+    public int panic() {
+        int cleared = activeNotes.clear((module, chan, note) -> {
+            try {
+                modules.getReceiver(module).send(new ShortMessage(ShortMessage.NOTE_OFF, chan, note, 0), -1);
+            }
+            catch (InvalidMidiDataException ex) {
+                DiagnosticJournal j = journal;
+                if (j != null) {
+                    j.invalidLayer(chan, EventRing.pack(ShortMessage.NOTE_OFF | chan, note, 0));
+                }
+            }
+        });
+
+        // MPE voices start over with a new allocator
+        MpeVoiceAllocator allocator = mpeAllocator;
+        if (allocator != null) {
+            cleared += allocator.getActiveVoices();
+            allocator.allNotesOff(voiceSink);
+            mpeAllocator = null;
+        }
+
+        DiagnosticJournal j = journal;
+        if (j != null) {
+            j.info("Panic: " + cleared + " sounding notes turned off");
+        }
+        return cleared;
+    }
+
+    public DiagnosticJournal getJournal() {
+        return journal;
+    }
+
+    // Journal diagnostics, and incoming messages at MIDI verbosity. Null switches all diagnostics off
+    public void setJournal(DiagnosticJournal journal) {
+        this.journal = journal;
+    }
+
+    public ControllerThinner getControllerThinner() {
+        return controllerThinner;
+    }
+
+    // Thin pressure, pitch bend and controller streams with thinner, or forward them all with null. Returns the
+    // thinner it replaces, which the caller closes
+    public ControllerThinner setControllerThinner(ControllerThinner thinner) {
+        ControllerThinner previous = controllerThinner;
+        controllerThinner = thinner;
+        return previous;
+    }
+
+    public MpeVoiceAllocator.Zone getMpeZone() {
+        return mpeZone;
+    }
+
+    // Allocate voices per note for an MPE keyboard playing in zone, or layer as usual with null. MPE notes sounding
+    // under the previous zone are ended with its next note or expression
+    public void setMpeZone(MpeVoiceAllocator.Zone zone) {
+        this.mpeZone = zone;
+    }
+
+    // Allocator of the current zone and routing, for its counters. Null before the first MPE note
+    public MpeVoiceAllocator getMpeAllocator() {
+        return mpeAllocator;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    // Start recording latency into stats, or stop with null
+    public void setLatencyStats(LatencyStats latencyStats) {
+        this.latencyStats = latencyStats;
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (latencyStats != null) {
+            arrivalNanos = System.nanoTime();
+        }
+
+        //receiver.send(message, timeStamp);
+        routeMessage(message, timeStamp);
+
+        DiagnosticJournal j = journal;
+        if ((j != null) && j.isEnabled(DiagnosticJournal.MIDI)) {
+            displayMessage(message, timeStamp);
+        }
+    }
+
+    @Override
+    public void close() {
+        modules.close();
+    }
+
+    // Prepare to Route and Layer incoming MIDI messages
+    void routeMessage(MidiMessage message, long timeStamp) {
+
+        //receiver.send(message, timeStamp);
+
+        // Check: Are we printing system exclusive data?
+        if (isSystemExclusiveData) {
+            receiver.send(message, timeStamp);
+            return;
+        }
+
+        int status = message.getStatus();
+
+        MpeVoiceAllocator.Zone zone = mpeZone;
+        if ((zone != null) && (status < 0xf0) && zone.contains(status & 0x0f) && (message instanceof ShortMessage)
+                && allocateVoices(zone, (ShortMessage) message)) {
+            return;
+        }
+
+        // Do not route status and timing messages
+        if (( status == 0xf8 ) || ( status == 0xfe )) {
+            receiver.send(message, timeStamp);
+            return;
+        }
+
+        // These statuses have MIDI channel numbers and data (except 0xf0 thru 0xff)
+        // Strip channel number out of status
+        int leftNibble = status & 0xf0;
+        switch (leftNibble) {
+            case 0x80: //displayNoteOff(message);
+            case 0x90: //displayNoteOn(message);
+                //receiver.send(message, timeStamp);
+                layerMessages(message, timeStamp);
+                break;
+            case 0xa0: //displayKeyPressure(message);
+            case 0xb0: //displayControllerChange(message);
+            case 0xc0: //displayProgramChange(message);
+            case 0xd0: //displayChannelPressure(message);
+            case 0xe0: //displayPitchBend(message);
+            case 0xf0:
+                forwardMessage(message, timeStamp, status);
+                //layerMessages(message, timeStamp);
+                break;
+            default:
+                // Not recognized, but forward
+                receiver.send(message, timeStamp);
+        }
+    }
+
+    // Play original keyboard messages and any layering as needed
+    //
+    // Hot path: no allocation, no array copies and no console output per note. Layered messages are
+    // reused from the per-channel pool, which is safe as Transmitters call send() from a single thread
+    // and receivers copy the message bytes before send() returns
+    void layerMessages(MidiMessage message, long timeStamp) {
+
+        if (message.getLength() < 3 || message.getLength() % 2 == 0) {
+            DiagnosticJournal j = journal;
+            if (j != null) {
+                j.badMessage(message.getStatus(), message.getLength());
+            }
+            return;
+        }
+
+        // Now dissect to determine if Layering is needed and forward in layered channels
+        int status = message.getStatus();
+        int command = status & 0xf0;
+        int data1, data2;
+        if (message instanceof ShortMessage) {
+            ShortMessage shortmessage = (ShortMessage) message;
+            data1 = shortmessage.getData1();
+            data2 = shortmessage.getData2();
+        }
+        else {
+            // Not expected from a Transmitter, so copying the bytes here is acceptable
+            byte[] bytes = message.getMessage();
+            data1 = byteToInt(bytes[1]);
+            data2 = byteToInt(bytes[2]);
+        }
+
+        // Single volatile read, so all layers of this message use the same Preset routing. A Note Off uses the
+        // routing of its Note On, so no note hangs when the Preset changed in between
+        RoutingTable table = routingTable;
+        LatencyStats stats = latencyStats;
+        int channel = status & 0x0f;
+        boolean noteOn = (command == 0x90) && (data2 != 0);
+
+        if (noteOn) {
+            activeNotes.noteOn(channel, data1, table);
+        }
+        else {
+            table = activeNotes.noteOff(channel, data1, table);
+        }
+        int layers = table.getLayerCount(channel);
+
+        // The note starts with the latest bend and pressure of its channel
+        ControllerThinner thinner = controllerThinner;
+        if (thinner != null) {
+            thinner.flushChannel(channel);
+        }
+
+        // All layers of the message go out in one write per module, holding only the modules they play on
+        int moduleMask = table.getModuleMask(channel);
+        modules.beginBatch(moduleMask);
+        try {
+            for (int layer = 0; layer < layers; layer++) {
+                int module = table.getOutModule(channel, layer);
+                int chan = table.getOutChannel(channel, layer);
+                int note = table.getNote(channel, layer, data1);
+                sendLayer(module, command, chan, note, table.getVelocity(channel, layer, data2), timeStamp);
+
+                if (noteOn) {
+                    activeNotes.outputOn(module, chan - 1, note);
+                }
+                else {
+                    activeNotes.outputOff(module, chan - 1, note);
+                }
+
+                if (stats != null) {
+                    stats.recordLayer(channel, layer, module, System.nanoTime() - arrivalNanos);
+                }
+            }
+        }
+        catch (InvalidMidiDataException ex) {
+            DiagnosticJournal j = journal;
+            if (j != null) {
+                j.invalidLayer(channel, EventRing.pack(status, data1, data2));
+            }
+        }
+        finally {
+            modules.endBatch(moduleMask);
+        }
+    }
+
+    // Play an MPE note or its expression through the voice allocator. Returns false for messages that are routed as
+    // usual, such as sustain or program change on the master channel
+    private boolean allocateVoices(MpeVoiceAllocator.Zone zone, ShortMessage message) {
+        int command = message.getCommand();
+        int channel = message.getChannel();
+        int data1 = message.getData1();
+        int data2 = message.getData2();
+
+        boolean note = (command == ShortMessage.NOTE_ON) || (command == ShortMessage.NOTE_OFF);
+        boolean expression = (command == ShortMessage.PITCH_BEND) || (command == ShortMessage.CHANNEL_PRESSURE)
+                || (command == ShortMessage.POLY_PRESSURE)
+                || ((command == ShortMessage.CONTROL_CHANGE) && (data1 == MpeVoiceAllocator.CC_TIMBRE));
+        if (!note && !expression) {
+            return false;
+        }
+
+        // Single volatile read of the routing, as for layering
+        RoutingTable table = routingTable;
+        MpeVoiceAllocator allocator = mpeAllocator;
+
+        // The modules of the master channel's layers, and of the previous routing whose notes may be ended
+        int moduleMask = table.getModuleMask(zone.getMasterChannel() - 1);
+        if (allocator != null) {
+            moduleMask |= allocator.getRouting().getModuleMask(allocator.getZone().getMasterChannel() - 1);
+        }
+        modules.beginBatch(moduleMask);
+        try {
+            if ((allocator == null) || (allocator.getRouting() != table) || (allocator.getZone() != zone)) {
+                // The new pools may reuse the channels of notes still sounding, so those end first
+                if (allocator != null) {
+                    allocator.allNotesOff(voiceSink);
+                }
+                allocator = new MpeVoiceAllocator(table, zone, allocator);
+                mpeAllocator = allocator;
+
+                DiagnosticJournal j = journal;
+                if ((j != null) && (allocator.getShortPools() > 0)) {
+                    j.info("MPE: Output channels of other layers limit the voices: " + allocator);
+                }
+            }
+
+            if ((command == ShortMessage.NOTE_ON) && (data2 != 0)) {
+                allocator.noteOn(channel, data1, data2, voiceSink);
+            }
+            else if (note) {
+                allocator.noteOff(channel, data1, data2, voiceSink);
+            }
+            else {
+                allocator.expression(command, channel, data1, data2, voiceSink);
+            }
+        }
+        finally {
+            modules.endBatch(moduleMask);
+        }
+
+        LatencyStats stats = latencyStats;
+        if (stats != null) {
+            stats.recordForward(channel, System.nanoTime() - arrivalNanos);
+        }
+        return true;
+    }
+
+    // Voice output of the MPE allocator. Module 0 expression is thinned like forwarded controllers, and a voice
+    // starts with the latest values thinning kept back
+    private void sendVoice(int module, int command, int channel, int data1, int data2) {
+        ShortMessage shortmessage = layerPool[channel];
+        try {
+            shortmessage.setMessage(command, channel, data1, data2);
+        }
+        catch (InvalidMidiDataException ex) {
+            DiagnosticJournal j = journal;
+            if (j != null) {
+                j.invalidLayer(channel, EventRing.pack(command | channel, data1, data2));
+            }
+            return;
+        }
+
+        ControllerThinner thinner = (module == 0) ? controllerThinner : null;
+        if (command == ShortMessage.NOTE_ON) {
+            if (thinner != null) {
+                thinner.flushChannel(channel);
+            }
+            activeNotes.outputOn(module, channel, data1);
+        }
+        else if (command == ShortMessage.NOTE_OFF) {
+            activeNotes.outputOff(module, channel, data1);
+        }
+        else if ((thinner != null) && !thinner.offer(shortmessage, System.nanoTime())) {
+            return;
+        }
+
+        modules.getReceiver(module).send(shortmessage, -1);
+    }
+
+    // Forward a message without layering to the primary module
+    private void forwardMessage(MidiMessage message, long timeStamp, int status) {
+        ControllerThinner thinner = controllerThinner;
+        if ((thinner != null) && (message instanceof ShortMessage)
+                && !thinner.offer((ShortMessage) message, System.nanoTime())) {
+            return;
+        }
+
+        receiver.send(message, timeStamp);
+
+        LatencyStats stats = latencyStats;
+        if ((stats != null) && (status < 0xf0)) {
+            stats.recordForward(status & 0x0f, System.nanoTime() - arrivalNanos);
+        }
+    }
+
+    // Send a layered message to a module on 1 based channel chan, reusing that channel's pooled message
+    private void sendLayer(int module, int command, int chan, int data1, int data2, long timeStamp)
+            throws InvalidMidiDataException {
+        ShortMessage shortmessage = layerPool[chan - 1];
+        shortmessage.setMessage(command, chan - 1, data1, data2);
+        modules.getReceiver(module).send(shortmessage, timeStamp);
+    }
+
+    // Journal the MIDI message. It is formatted off the MIDI thread by MidiMessageFormatter
+    void displayMessage(MidiMessage message, long timeStamp) {
+        DiagnosticJournal j = journal;
+        if (j == null) {
+            return;
+        }
+
+        int status = message.getStatus();
+
+        // These statuses clutter the display
+        if ( status == 0xf8 ) { return; } // ignore timing messages
+        if ( status == 0xfe ) { return; } // ignore status active
+
+        int data1 = 0, data2 = 0;
+        if (message instanceof ShortMessage) {
+            ShortMessage shortmessage = (ShortMessage) message;
+            data1 = shortmessage.getData1();
+            data2 = shortmessage.getData2();
+        }
+        else if (message.getLength() > 1) {
+            // SysEx and meta data: keep the first data bytes only
+            byte[] bytes = message.getMessage();
+            data1 = byteToInt(bytes[1]);
+            data2 = (bytes.length > 2) ? byteToInt(bytes[2]) : 0;
+        }
+
+        j.message(EventRing.pack(status, data1, data2), message.getLength(), timeStamp);
+    }
+
+    private int byteToInt(byte b) {
+        return b & 0xff;
+    }
+}
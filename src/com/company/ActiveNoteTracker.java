@@ -0,0 +1,109 @@
+package com.company;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks sounding notes for AMidiFXReceiver, all O(1) per event:
+ * 1. Per keyboard channel and note, the RoutingTable its Note On was layered with, so the Note Off reaches the same
+ *    output channels even when the Preset changed in between
+ * 2. Per sound module, output channel and note, how many keyboard notes hold it. Two keys can layer onto the same
+ *    output note (e.g. transposed layers), which sounds until both are released, so a panic only turns off notes
+ *    that are actually on
+ * 3. The number of output notes with a count, kept on every 0 to 1 and 1 to 0 step, as the active voice count
+ *
+ * The keyboard routing is written by the Transmitter thread only. The output counts are updated atomically and may
+ * be read or cleared from any thread.
+ */
+public class ActiveNoteTracker {
+    private static final int NOTES = 128;
+
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // Called for every note a panic turns off
+    public interface NoteConsumer {
+        void noteOff(int module, int channel, int note);
+    }
+
+    private final RoutingTable[] noteRouting = new RoutingTable[RoutingTable.CHANNELS * NOTES];
+    private final int[] sounding = new int[ModuleRegistry.MAX_MODULES * RoutingTable.CHANNELS * NOTES];
+    private final AtomicInteger activeVoices = new AtomicInteger();
+
+    // Keyboard Note On on 0 based channel: remember the routing it is layered with
+    public void noteOn(int channel, int note, RoutingTable table) {
+        noteRouting[channel * NOTES + note] = table;
+    }
+
+    // Keyboard Note Off on 0 based channel: the routing of its Note On, or current if the Note On was not seen
+    public RoutingTable noteOff(int channel, int note, RoutingTable current) {
+        int idx = channel * NOTES + note;
+        RoutingTable table = noteRouting[idx];
+        noteRouting[idx] = null;
+
+        return (table != null) ? table : current;
+    }
+
+    // Output note on for module and 0 based output channel
+    public void outputOn(int module, int channel, int note) {
+        if ((int) COUNTS.getAndAdd(sounding, indexOf(module, channel, note), 1) == 0) {
+            activeVoices.incrementAndGet();
+        }
+    }
+
+    // Output note off. A Note Off for a note that is not sounding, e.g. cleared by a panic, leaves the count at 0
+    public void outputOff(int module, int channel, int note) {
+        int idx = indexOf(module, channel, note);
+        int count;
+        do {
+            count = (int) COUNTS.getVolatile(sounding, idx);
+            if (count == 0) {
+                return;
+            }
+        } while (!COUNTS.compareAndSet(sounding, idx, count, count - 1));
+
+        if (count == 1) {
+            activeVoices.decrementAndGet();
+        }
+    }
+
+    public boolean isSounding(int module, int channel, int note) {
+        return (int) COUNTS.getVolatile(sounding, indexOf(module, channel, note)) > 0;
+    }
+
+    // Keyboard notes holding an output note
+    public int getCount(int module, int channel, int note) {
+        return (int) COUNTS.getVolatile(sounding, indexOf(module, channel, note));
+    }
+
+    // Number of output notes currently sounding over all modules and channels
+    public int getActiveVoices() {
+        return activeVoices.get();
+    }
+
+    // Clear every sounding output note and hand it to consumer once. Returns the number of notes cleared
+    public int clear(NoteConsumer consumer) {
+        int cleared = 0;
+
+        for (int i = 0; i < sounding.length; i++) {
+            if ((int) COUNTS.getVolatile(sounding, i) == 0) {
+                continue;
+            }
+            if ((int) COUNTS.getAndSet(sounding, i, 0) == 0) {
+                continue;
+            }
+            activeVoices.decrementAndGet();
+
+            int module = i / (RoutingTable.CHANNELS * NOTES);
+            int channel = (i / NOTES) % RoutingTable.CHANNELS;
+            consumer.noteOff(module, channel, i % NOTES);
+            cleared++;
+        }
+
+        return cleared;
+    }
+
+    private static int indexOf(int module, int channel, int note) {
+        return (module * RoutingTable.CHANNELS + channel) * NOTES + note;
+    }
+}
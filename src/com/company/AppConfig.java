@@ -1,25 +1,334 @@
 package com.company;
 
 import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Application configuration, loaded from AppConfig.xml.
+ *
+ * Getters read an immutable, typed Snapshot published through a volatile reference, so they never lock or parse.
+ * Every load or set publishes a new Snapshot. Once watching is started, edits of AppConfig.xml on disk are reloaded
+ * and published without restarting, and listeners are told which keys changed. Listeners run on their own thread, one
+ * change at a time and in order, so a listener doing file or device work never holds up the watcher or a setter.
+ *
+ * Saving is write-behind (see ConfigPersister): setting a device queues a save, and flushProperties() waits for it.
+ */
 public class AppConfig {
 
+    // Told about a published Snapshot that differs from the previous one
+    public interface ChangeListener {
+        void configChanged(Snapshot previous, Snapshot current, Set<String> changedKeys);
+    }
+
+    /**
+     * Immutable, typed view of one version of the configuration
+     */
+    public static final class Snapshot {
+        private final Map<String, String> values;
+
+        private final String inDevice;
+        private final String outDevice;
+        private final String songsFile;
+        private final String dirMidi;
+        private final String dirConfig;
+        private final String presetBank;
+        private final String deviceCache;
+        private final String midiStore;
+        private final int hotplugPoll;
+        private final String sequencer;
+        private final int sequencerSpin;
+        private final String[] soundModules = new String[ModuleRegistry.MAX_MODULES];
+        private final String[] moduleDevices = new String[ModuleRegistry.MAX_MODULES];
+        private final int presetCacheSize;
+        private final boolean patchOffHeap;
+        private final boolean outPipeline;
+        private final boolean runningStatus;
+        private final int outPipelineSize;
+        private final boolean latencyStats;
+        private final boolean controllerThinning;
+        private final int thinInterval;
+        private final int thinDelta;
+        private final int thinBendDelta;
+        private final int[] thinControllers;
+        private final boolean mpe;
+        private final int mpeMaster;
+        private final int mpeMembers;
+        private final int mpeVoices;
+        private final String mpeSteal;
+        private final int verbosity;
+
+        Snapshot(Properties props) {
+            Map<String, String> copy = new HashMap<>();
+            for (String key : props.stringPropertyNames()) {
+                copy.put(key, props.getProperty(key));
+            }
+            this.values = Collections.unmodifiableMap(copy);
+
+            inDevice = props.getProperty("indevice");
+            outDevice = props.getProperty("outdevice");
+            songsFile = props.getProperty("songsfile");
+            dirMidi = props.getProperty("dirmidi");
+            dirConfig = props.getProperty("dirconfig");
+            presetBank = props.getProperty("presetbank", "presets.bnk");
+            deviceCache = props.getProperty("devicecache", "devices.cache");
+            midiStore = props.getProperty("midistore", "midifiles.store");
+            hotplugPoll = parseInt(props, "hotplugpoll", 1000);
+            sequencer = props.getProperty("sequencer", "default");
+            sequencerSpin = parseInt(props, "sequencerspin", 100);
+
+            for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+                // Older config files spell the key "sndmodfil"
+                soundModules[idx] = props.getProperty("sndmodfile" + idx, props.getProperty("sndmodfil" + idx));
+
+                moduleDevices[idx] = props.getProperty("moddevice" + idx, "");
+                if (moduleDevices[idx].isEmpty() && (idx == 0) && (outDevice != null)) {
+                    moduleDevices[idx] = outDevice;
+                }
+            }
+
+            presetCacheSize = parseInt(props, "presetcache", 32);
+            patchOffHeap = Boolean.parseBoolean(props.getProperty("patchoffheap", "false"));
+            outPipeline = Boolean.parseBoolean(props.getProperty("outpipeline", "false"));
+            runningStatus = Boolean.parseBoolean(props.getProperty("runningstatus", "false"));
+            outPipelineSize = parseInt(props, "outpipelinesize", 1024);
+            latencyStats = Boolean.parseBoolean(props.getProperty("latencystats", "false"));
+            controllerThinning = Boolean.parseBoolean(props.getProperty("ctlthin", "false"));
+            thinInterval = parseInt(props, "ctlthininterval", 4000);
+            thinDelta = parseInt(props, "ctlthindelta", 2);
+            thinBendDelta = parseInt(props, "ctlthinbend", 16);
+            thinControllers = parseIntList(props, "ctlthincc", "1,2,11,74");
+            mpe = Boolean.parseBoolean(props.getProperty("mpe", "false"));
+            mpeMaster = parseInt(props, "mpemaster", 1);
+            mpeMembers = parseInt(props, "mpemembers", 15);
+            mpeVoices = parseInt(props, "mpevoices", 4);
+            mpeSteal = props.getProperty("mpesteal", "oldest");
+            verbosity = parseInt(props, "verbosity", 2);
+        }
+
+        // A malformed number keeps the default rather than failing a reload
+        private static int parseInt(Properties props, String key, int defaultValue) {
+            try {
+                return Integer.parseInt(props.getProperty(key, Integer.toString(defaultValue)).trim());
+            }
+            catch (NumberFormatException ex) {
+                System.out.println("Config: Invalid number for " + key + ", using " + defaultValue);
+                return defaultValue;
+            }
+        }
+
+        // Comma separated numbers, malformed ones are skipped
+        private static int[] parseIntList(Properties props, String key, String defaultValue) {
+            String[] items = props.getProperty(key, defaultValue).split(",");
+            int[] numbers = new int[items.length];
+            int count = 0;
+            for (String item : items) {
+                try {
+                    numbers[count] = Integer.parseInt(item.trim());
+                    count++;
+                }
+                catch (NumberFormatException ex) {
+                    if (!item.trim().isEmpty()) {
+                        System.out.println("Config: Invalid number " + item + " in " + key + ", skipped");
+                    }
+                }
+            }
+            return Arrays.copyOf(numbers, count);
+        }
+
+        // Raw value of any key, null if not set
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        // Keys whose value differs between this and other
+        public Set<String> changedKeys(Snapshot other) {
+            Set<String> changed = new HashSet<>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (!entry.getValue().equals(other.values.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            for (String key : other.values.keySet()) {
+                if (!values.containsKey(key)) {
+                    changed.add(key);
+                }
+            }
+            return changed;
+        }
+
+        public String getInDevice() {
+            return inDevice;
+        }
+
+        public String getOutDevice() {
+            return outDevice;
+        }
+
+        public String getSongsFile() {
+            return songsFile;
+        }
+
+        public String getDirMidi() {
+            return dirMidi;
+        }
+
+        public String getDirConfig() {
+            return dirConfig;
+        }
+
+        public String getPresetBank() {
+            return presetBank;
+        }
+
+        public String getDeviceCache() {
+            return deviceCache;
+        }
+
+        public String getMidiStore() {
+            return midiStore;
+        }
+
+        public int getHotplugPoll() {
+            return hotplugPoll;
+        }
+
+        public String getSequencer() {
+            return sequencer;
+        }
+
+        public int getSequencerSpin() {
+            return sequencerSpin;
+        }
+
+        public String getSoundModule(int idx) {
+            return ((idx >= 0) && (idx < soundModules.length)) ? soundModules[idx] : soundModules[0];
+        }
+
+        public String getModuleDevice(int idx) {
+            return ((idx >= 0) && (idx < moduleDevices.length)) ? moduleDevices[idx] : "";
+        }
+
+        public int getPresetCacheSize() {
+            return presetCacheSize;
+        }
+
+        public boolean getPatchOffHeap() {
+            return patchOffHeap;
+        }
+
+        public boolean getOutPipeline() {
+            return outPipeline;
+        }
+
+        public boolean getRunningStatus() {
+            return runningStatus;
+        }
+
+        public int getOutPipelineSize() {
+            return outPipelineSize;
+        }
+
+        public boolean getControllerThinning() {
+            return controllerThinning;
+        }
+
+        public int getThinInterval() {
+            return thinInterval;
+        }
+
+        public int getThinDelta() {
+            return thinDelta;
+        }
+
+        public int getThinBendDelta() {
+            return thinBendDelta;
+        }
+
+        public int[] getThinControllers() {
+            return thinControllers.clone();
+        }
+
+        public boolean getMpe() {
+            return mpe;
+        }
+
+        public int getMpeMaster() {
+            return mpeMaster;
+        }
+
+        public int getMpeMembers() {
+            return mpeMembers;
+        }
+
+        public int getMpeVoices() {
+            return mpeVoices;
+        }
+
+        public String getMpeSteal() {
+            return mpeSteal;
+        }
+
+        public boolean getLatencyStats() {
+            return latencyStats;
+        }
+
+        public int getVerbosity() {
+            return verbosity;
+        }
+    }
+
     Properties configProps = new Properties();
 
     String rootPath = Thread.currentThread().getContextClassLoader().getResource("").getPath();
     String configPath = rootPath + "AppConfig.xml";
 
+    private volatile Snapshot snapshot = new Snapshot(new Properties());
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AppConfig listeners");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile WatchService watchService;
+    private ConfigPersister persister;
+
+    public AppConfig() {
+    }
+
+    // Config file other than AppConfig.xml in the class path root
+    public AppConfig(String configPath) {
+        this.configPath = configPath;
+    }
+
     public boolean loadProperties() {
 
         System.out.println("Loading Properties from disk: " + configPath);
 
-        try {
-            configProps.loadFromXML(new FileInputStream(configPath));
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(configPath)) {
+            props.loadFromXML(in);
 
             // get the property value and print it out
-            System.out.println("Config: In device is " +  configProps.getProperty("indevice"));
-            System.out.println("Config: Out device is " +  configProps.getProperty("outdevice"));
+            System.out.println("Config: In device is " +  props.getProperty("indevice"));
+            System.out.println("Config: Out device is " +  props.getProperty("outdevice"));
         }
         catch (FileNotFoundException ex) {
             System.out.println("File not found exception: " + configPath);
@@ -30,72 +339,305 @@ public class AppConfig {
             return false;
         }
 
+        synchronized (this) {
+            configProps = props;
+            publish(new Snapshot(props));
+        }
+
         return true;
     }
 
+    // Queue the properties to be written to disk by the write-behind persister; returns without waiting.
+    // Changes made in quick succession are written once
     public boolean saveProperties() {
 
+        synchronized (this) {
+            if (persister == null) {
+                persister = new ConfigPersister(Paths.get(configPath), ConfigPersister.DEFAULT_DELAY_MILLIS);
+            }
+            persister.save(configProps);
+        }
+
+        System.out.println("Saving Properties to disk: " + configPath);
+        System.out.println("Config: In device is " + getInDevice());
+        System.out.println("Config: Out device is " + getOutDevice());
+
+        return true;
+    }
+
+    // Write queued properties now and wait for it, e.g. on exit. Returns false if the write failed
+    public boolean flushProperties() {
+        ConfigPersister current;
+        synchronized (this) {
+            current = persister;
+        }
+
+        return (current == null) || current.flush();
+    }
+
+    // Current configuration, consistent across all its values
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Reload AppConfig.xml whenever it changes on disk, on a daemon thread
+    public void startWatching() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+
+        Path file = Paths.get(configPath).toAbsolutePath();
+        Path dir = file.getParent();
+        WatchService service = FileSystems.getDefault().newWatchService();
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchService = service;
+
+        Thread watcher = new Thread(() -> watch(service, file.getFileName()), "AppConfig watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public void stopWatching() {
+        WatchService service = watchService;
+        watchService = null;
+
+        if (service != null) {
+            try {
+                service.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Config: Failed to stop watching " + configPath);
+            }
+        }
+    }
+
+    private void watch(WatchService service, Path fileName) {
         try {
-            configProps.storeToXML(new FileOutputStream(configPath), "Saved to XML file");
+            while (true) {
+                WatchKey key = service.take();
 
-            // get the property value and print it out
-            System.out.println("Saving Properties to disk: " + configPath);
-            System.out.println("Config: App Name " +  configProps.getProperty("appname"));
-            System.out.println("Config: App Version " +  configProps.getProperty("appversion"));
-            System.out.println("Config: App Date " +  configProps.getProperty("appdate"));
-            System.out.println("Config: In device is " +  configProps.getProperty("indevice"));
-            System.out.println("Config: Out device is " +  configProps.getProperty("outdevice"));
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (fileName.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
 
+                if (changed) {
+                    // Let the editor finish writing, and fold its burst of events into one reload
+                    Thread.sleep(100);
+                    WatchKey burst;
+                    while ((burst = service.poll()) != null) {
+                        burst.pollEvents();
+                        burst.reset();
+                    }
 
+                    loadProperties();
+                }
+            }
         }
-        catch (IOException ex) {
-            System.out.println("Config File write failed: " + configPath);
-            return false;
+        catch (ClosedWatchServiceException | InterruptedException ex) {
+            // Stopped
         }
+    }
 
-        return true;
+    // Publish a Snapshot and queue telling the listeners what changed. Called holding the monitor, so changes are
+    // queued in the order they were published
+    private void publish(Snapshot current) {
+        Snapshot previous = snapshot;
+        snapshot = current;
+
+        Set<String> changedKeys = previous.changedKeys(current);
+        if (changedKeys.isEmpty() || listeners.isEmpty()) {
+            return;
+        }
+
+        Set<String> keys = Collections.unmodifiableSet(changedKeys);
+        notifier.execute(() -> {
+            for (ChangeListener listener : listeners) {
+                try {
+                    listener.configChanged(previous, current, keys);
+                }
+                catch (RuntimeException ex) {
+                    System.out.println("Config: Change listener failed: " + ex);
+                }
+            }
+        });
+    }
+
+    private synchronized void setProperty(String key, String value) {
+        configProps.setProperty(key, value);
+        publish(new Snapshot(configProps));
     }
 
     // Get selected In Midi device - Keyboard
     public String getInDevice() {
-        return configProps.getProperty("indevice");
+        return snapshot.getInDevice();
     }
 
     // Set selected Midi In device - Keyboard
     public void setInDevice(String indevice) {
-        configProps.setProperty("indevice", indevice);
+        setProperty("indevice", indevice);
+        saveProperties();
 
-        System.out.println("Property indevice set to:" + configProps.getProperty("indevice"));
+        System.out.println("Property indevice set to:" + getInDevice());
     }
 
     // Get selected Out Midi device - Sound Module
     public String getOutDevice() {
-        return configProps.getProperty("outdevice");
+        return snapshot.getOutDevice();
     }
 
     // Set selected Midi Out device - Keyboard
     public void setOutDevice(String outdevice) {
-        configProps.setProperty("outdevice", outdevice);
+        setProperty("outdevice", outdevice);
+        saveProperties();
 
-        System.out.println("Property outdevice set to:" + configProps.getProperty("outdevice"));
+        System.out.println("Property outdevice set to:" + getOutDevice());
     }
 
-    // Get selected Out Midi device - Sound Module
+    // Get Out Midi device of a Sound Module by its MidiLayer moduleIdx, module 0 defaults to the Out device
+    public String getModuleDevice(int idx) {
+        return snapshot.getModuleDevice(idx);
+    }
+
+    // Get patch file of a Sound Module by its moduleIdx, module 0 for any other index
     public String getSoundModule(int idx) {
-        String strmodule;
+        return snapshot.getSoundModule(idx);
+    }
 
-        switch (idx) {
-            case 1:
-                strmodule = configProps.getProperty("sndmodfil1");
-            default:
-                strmodule = configProps.getProperty("sndmodfil0");
-        }
+    public String getSongsFile() {
+        return snapshot.getSongsFile();
+    }
 
-        return strmodule;
+    public String getDirConfig() {
+        return snapshot.getDirConfig();
     }
 
-    public String getSongsFile() {
-        return configProps.getProperty("songsfile");
+    public String getDirMidi() {
+        return snapshot.getDirMidi();
+    }
+
+    // MIDI device discovery cache file in the config directory
+    public String getDeviceCache() {
+        return snapshot.getDeviceCache();
+    }
+
+    // Pre-parsed MIDI file store of dirmidi, in the config directory
+    public String getMidiStore() {
+        return snapshot.getMidiStore();
+    }
+
+    // Milliseconds between MIDI device hotplug polls, 0 to not watch for replugged devices
+    public int getHotplugPoll() {
+        return snapshot.getHotplugPoll();
+    }
+
+    // Song playback engine: "default" for MidiSystem.getSequencer(), "precise" for the PrecisionSequencer
+    public String getSequencer() {
+        return snapshot.getSequencer();
+    }
+
+    // Microseconds the PrecisionSequencer spins before an event instead of parking. Parks are coarser on Windows
+    public int getSequencerSpin() {
+        return snapshot.getSequencerSpin();
+    }
+
+    // Compiled Preset bank file in the config directory
+    public String getPresetBank() {
+        return snapshot.getPresetBank();
+    }
+
+    // Number of compiled Presets kept in the Preset cache
+    public int getPresetCacheSize() {
+        return snapshot.getPresetCacheSize();
+    }
+
+    // Keep Sound Module patch tables in direct (off-heap) buffers
+    public boolean getPatchOffHeap() {
+        return snapshot.getPatchOffHeap();
+    }
+
+    // Output pipeline mode: queue keyboard output and send it to the device on a dedicated thread
+    public boolean getOutPipeline() {
+        return snapshot.getOutPipeline();
+    }
+
+    // Encode output to external MIDI devices with running status, one write per batch of messages
+    public boolean getRunningStatus() {
+        return snapshot.getRunningStatus();
+    }
+
+    // Diagnostic journal verbosity: 0 off, 1 errors, 2 info, 3 every MIDI message
+    public int getVerbosity() {
+        return snapshot.getVerbosity();
+    }
+
+    // Thin pressure, pitch bend and ctlthincc controller streams from the keyboard
+    public boolean getControllerThinning() {
+        return snapshot.getControllerThinning();
+    }
+
+    // Microseconds between two forwarded values of a controller
+    public int getThinInterval() {
+        return snapshot.getThinInterval();
+    }
+
+    // Smallest change forwarded before the stream goes quiet, for 7 bit values and for pitch bend
+    public int getThinDelta() {
+        return snapshot.getThinDelta();
+    }
+
+    public int getThinBendDelta() {
+        return snapshot.getThinBendDelta();
+    }
+
+    // Control change numbers that are thinned
+    public int[] getThinControllers() {
+        return snapshot.getThinControllers();
+    }
+
+    // Allocate a voice per note for an MPE keyboard, on the layers of the zone's master channel
+    public boolean getMpe() {
+        return snapshot.getMpe();
+    }
+
+    // MPE zone: 1 based master channel and the number of member channels above it
+    public int getMpeMaster() {
+        return snapshot.getMpeMaster();
+    }
+
+    public int getMpeMembers() {
+        return snapshot.getMpeMembers();
+    }
+
+    // Output channels per layer, starting at the layer's channel
+    public int getMpeVoices() {
+        return snapshot.getMpeVoices();
+    }
+
+    // When a layer has no free channel: oldest, quietest, share or none
+    public String getMpeSteal() {
+        return snapshot.getMpeSteal();
+    }
+
+    // Record keyboard to output latency histograms, dumped on exit
+    public boolean getLatencyStats() {
+        return snapshot.getLatencyStats();
+    }
+
+    // Output pipeline ring size in events
+    public int getOutPipelineSize() {
+        return snapshot.getOutPipelineSize();
     }
 
 }
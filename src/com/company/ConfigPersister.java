@@ -0,0 +1,179 @@
+package com.company;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persister for AppConfig.xml.
+ *
+ * Saves are queued and written on a background thread after a short delay, so a burst of changes results in one
+ * write of the latest properties. Each write goes to a temp file next to the config file, is synced to disk and then
+ * renamed over it, so the config file is always either the old or the new version, never a partial one. The
+ * directory is synced after the rename, so the rename itself survives a crash.
+ */
+public class ConfigPersister {
+
+    public static final long DEFAULT_DELAY_MILLIS = 250;
+
+    private final Path path;
+    private final Path tempPath;
+    private final long delayMillis;
+    private final ScheduledExecutorService writer;
+
+    // Latest properties to write, null once written
+    private Properties pending;
+    private Future<?> scheduled;
+
+    // Writer thread only: whether the last write succeeded, reported by a flush with nothing left to write
+    private boolean lastWriteOk = true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ConfigPersister(Path path, long delayMillis) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.delayMillis = delayMillis;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AppConfig writer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // Queue a copy of props to be written. Returns at once
+    public synchronized void save(Properties props) {
+        Properties copy = new Properties();
+        copy.putAll(props);
+
+        pending = copy;
+        requests.incrementAndGet();
+
+        if ((scheduled == null) || scheduled.isDone()) {
+            scheduled = writer.schedule(this::writePending, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Write any queued properties now and wait for it, and for a write already under way. Returns false if the write
+    // failed
+    public boolean flush() {
+        Future<Boolean> flushed;
+        synchronized (this) {
+            // Queued behind a scheduled write that already took the pending properties
+            flushed = writer.submit(this::writePending);
+        }
+
+        try {
+            return flushed.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+    // Flush and stop the writer thread
+    public boolean close() {
+        boolean flushed = flush();
+        writer.shutdown();
+        return flushed;
+    }
+
+    private boolean writePending() {
+        Properties props;
+        synchronized (this) {
+            props = pending;
+            pending = null;
+        }
+        if (props == null) {
+            return lastWriteOk;
+        }
+
+        try {
+            write(props);
+            writes.incrementAndGet();
+            lastWriteOk = true;
+            return true;
+        }
+        catch (IOException ex) {
+            failures.incrementAndGet();
+            lastWriteOk = false;
+            System.out.println("Config File write failed: " + path + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    // Temp file, fsync, atomic rename, fsync of the directory
+    private void write(Properties props) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(tempPath.toFile())) {
+            props.storeToXML(out, "Saved to XML file");
+            out.getFD().sync();
+        }
+
+        beforeRename(tempPath);
+
+        try {
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    // Called once the temp file is on disk, before it replaces the config file. Tests fail here to stand in for a
+    // crash between the two
+    void beforeRename(Path tempPath) throws IOException {
+    }
+
+    // The directory entry of the renamed file. Not every platform can open a directory (Windows can't), where the
+    // rename is left to the file system
+    private static void syncDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException ex) {
+            // Not supported for directories here
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Saves asked for, and how many writes they were coalesced into
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,318 @@
+package com.company;
+
+import javax.sound.midi.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thins continuous controller streams, as sent per note by MPE keyboards, before they reach the primary module.
+ *
+ * Every channel has a slot per controller: 128 control changes, 128 poly pressure notes, channel pressure and pitch
+ * bend. Latest values are kept in primitive arrays per slot, all O(1) per message:
+ * 1. A value is forwarded at once when minInterval has passed since the slot was last forwarded and it differs from
+ *    the forwarded value by at least minDelta (bendDelta for pitch bend)
+ * 2. Otherwise it is kept as the slot's pending value, replacing any older one (last value wins)
+ * 3. A flush thread forwards pending values once minInterval has passed and they either make minDelta or the stream
+ *    went quiet for minInterval. So the final value of a stream is never dropped
+ * 4. Before a note on a channel, its pending values are forwarded first, so the note starts with the latest bend and
+ *    pressure
+ *
+ * Only the controllers given are thinned; others, such as bank select or sustain, are forwarded as they come. Pending
+ * values are handed over with atomic swaps, and the flush thread holds the OutputMerger while it sends, so a value is
+ * forwarded once and never after a newer one. The flush thread does not wait for the OutputMerger: when another
+ * source holds it, pending values are forwarded on the next period.
+ */
+public class ControllerThinner {
+    public static final int CHANNELS = 16;
+
+    private static final int POLY_PRESSURE = 128;
+    private static final int CHANNEL_PRESSURE = 256;
+    private static final int PITCH_BEND = 257;
+    private static final int SLOTS = 258;
+    private static final int WORDS = (SLOTS + 63) / 64;
+
+    private static final int NONE = -1;
+
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final OutputMerger output;
+    private final long minIntervalNanos;
+    private final int minDelta;
+    private final int bendDelta;
+    private final boolean[] thinnedControllers = new boolean[128];
+
+    // Per channel * SLOTS + slot. forwardedValue and forwardedNanos are written by whichever thread forwards a slot,
+    // arrivalNanos by the keyboard and read by the flush thread: all through INTS and LONGS with release and acquire,
+    // so a long is never torn and the flush thread sees the keyboard's forwards. They only decide when a value is
+    // due; the values themselves are handed over by the atomic swaps of pending
+    private final int[] pending = new int[CHANNELS * SLOTS];
+    private final int[] forwardedValue = new int[CHANNELS * SLOTS];
+    private final long[] forwardedNanos = new long[CHANNELS * SLOTS];
+    private final long[] arrivalNanos = new long[CHANNELS * SLOTS];
+
+    // Per channel * WORDS, a bit per slot with a pending value
+    private final long[] dirty = new long[CHANNELS * WORDS];
+
+    // One message per sending thread
+    private final ShortMessage liveMessage = new ShortMessage();
+    private final ShortMessage flushMessage = new ShortMessage();
+
+    private final Thread flushThread;
+    private volatile boolean running = true;
+
+    // Counters, each written by a single thread
+    private volatile long incoming = 0;
+    private volatile long forwardedLive = 0;
+    private volatile long forwardedFlushed = 0;
+
+    // controllers: control change numbers to thin
+    public ControllerThinner(OutputMerger output, long minIntervalNanos, int minDelta, int bendDelta,
+                             int... controllers) {
+        this.output = output;
+        this.minIntervalNanos = Math.max(1, minIntervalNanos);
+        this.minDelta = Math.max(1, minDelta);
+        this.bendDelta = Math.max(1, bendDelta);
+        for (int controller : controllers) {
+            if ((controller >= 0) && (controller < 128)) {
+                thinnedControllers[controller] = true;
+            }
+        }
+
+        Arrays.fill(pending, NONE);
+        Arrays.fill(forwardedValue, NONE);
+        Arrays.fill(forwardedNanos, System.nanoTime() - this.minIntervalNanos);
+
+        flushThread = new Thread(this::flushLoop, "AMIDIFX Controller Flush");
+        flushThread.setDaemon(true);
+        flushThread.setPriority(Thread.MAX_PRIORITY);
+        flushThread.start();
+    }
+
+    // Keyboard thread: true if the caller forwards the message now, false if it was kept back. Messages that are not
+    // thinned are always forwarded
+    public boolean offer(ShortMessage message, long now) {
+        int slot = slotOf(message);
+        if (slot < 0) {
+            return true;
+        }
+
+        incoming++;
+        int channel = message.getChannel();
+        int idx = channel * SLOTS + slot;
+        int value = valueOf(message, slot);
+        LONGS.setRelease(arrivalNanos, idx, now);
+
+        int delta = Math.abs(value - (int) INTS.getAcquire(forwardedValue, idx));
+        if ((now - (long) LONGS.getAcquire(forwardedNanos, idx) >= minIntervalNanos) && (delta >= deltaOf(slot))) {
+            // Newer than anything pending, which is dropped
+            INTS.getAndSet(pending, idx, NONE);
+            INTS.setRelease(forwardedValue, idx, value);
+            LONGS.setRelease(forwardedNanos, idx, now);
+            forwardedLive++;
+            return true;
+        }
+
+        INTS.setVolatile(pending, idx, value);
+        LONGS.getAndBitwiseOr(dirty, channel * WORDS + (slot >>> 6), 1L << slot);
+        return false;
+    }
+
+    // Keyboard thread: forward the pending values of a 0 based channel, before a note plays on it
+    public void flushChannel(int channel) {
+        for (int word = 0; word < WORDS; word++) {
+            int wordIdx = channel * WORDS + word;
+            long bits = (long) LONGS.getVolatile(dirty, wordIdx);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+
+                int slot = word * 64 + bit;
+                int idx = channel * SLOTS + slot;
+                int value = (int) INTS.getAndSet(pending, idx, NONE);
+                clearDirty(wordIdx, bit, idx);
+
+                if (value != NONE) {
+                    forward(liveMessage, output, channel, slot, value, System.nanoTime());
+                    forwardedLive++;
+                }
+            }
+        }
+    }
+
+    // Flush thread: forward the pending values that are due
+    private void flushLoop() {
+        long period = Math.max(100_000L, minIntervalNanos / 2);
+
+        while (running) {
+            LockSupport.parkNanos(period);
+            flushDue(false);
+        }
+        flushDue(true);
+    }
+
+    private void flushDue(boolean all) {
+        boolean claimed = false;
+        long now = System.nanoTime();
+
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            for (int word = 0; word < WORDS; word++) {
+                int wordIdx = channel * WORDS + word;
+                long bits = (long) LONGS.getVolatile(dirty, wordIdx);
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+
+                    int slot = word * 64 + bit;
+                    int idx = channel * SLOTS + slot;
+                    int value = (int) INTS.getVolatile(pending, idx);
+                    if ((value != NONE) && !all && !isDue(idx, slot, value, now)) {
+                        continue;
+                    }
+
+                    // Hold the output while taking the value, so a newer one the keyboard sends goes after it. A busy
+                    // output is tried again next period, the values stay pending
+                    if (!claimed) {
+                        if (!claim(all)) {
+                            return;
+                        }
+                        claimed = true;
+                    }
+
+                    boolean taken = (value != NONE) && INTS.compareAndSet(pending, idx, value, NONE);
+                    clearDirty(wordIdx, bit, idx);
+                    if (taken) {
+                        forward(flushMessage, null, channel, slot, value, now);
+                        forwardedFlushed++;
+                    }
+                }
+            }
+        }
+
+        if (claimed) {
+            output.release();
+        }
+    }
+
+    // The closing flush waits for the output, the others leave it to its owner
+    private boolean claim(boolean wait) {
+        while (!output.tryClaim()) {
+            if (!wait) {
+                return false;
+            }
+            LockSupport.parkNanos(100_000L);
+        }
+        return true;
+    }
+
+    private boolean isDue(int idx, int slot, int value, long now) {
+        if (now - (long) LONGS.getAcquire(forwardedNanos, idx) < minIntervalNanos) {
+            return false;
+        }
+        return (Math.abs(value - (int) INTS.getAcquire(forwardedValue, idx)) >= deltaOf(slot))
+                || (now - (long) LONGS.getAcquire(arrivalNanos, idx) >= minIntervalNanos);
+    }
+
+    // Clear a dirty bit, and set it again if a value was kept back meanwhile
+    private void clearDirty(int wordIdx, int bit, int idx) {
+        LONGS.getAndBitwiseAnd(dirty, wordIdx, ~(1L << bit));
+        if ((int) INTS.getVolatile(pending, idx) != NONE) {
+            LONGS.getAndBitwiseOr(dirty, wordIdx, 1L << bit);
+        }
+    }
+
+    // Send a slot value through the merger, or to the claimed output with a null merger
+    private void forward(ShortMessage message, OutputMerger merger, int channel, int slot, int value, long now) {
+        int idx = channel * SLOTS + slot;
+        INTS.setRelease(forwardedValue, idx, value);
+        LONGS.setRelease(forwardedNanos, idx, now);
+
+        try {
+            if (slot < POLY_PRESSURE) {
+                message.setMessage(ShortMessage.CONTROL_CHANGE, channel, slot, value);
+            }
+            else if (slot < CHANNEL_PRESSURE) {
+                message.setMessage(ShortMessage.POLY_PRESSURE, channel, slot - POLY_PRESSURE, value);
+            }
+            else if (slot == CHANNEL_PRESSURE) {
+                message.setMessage(ShortMessage.CHANNEL_PRESSURE, channel, value, 0);
+            }
+            else {
+                message.setMessage(ShortMessage.PITCH_BEND, channel, value & 0x7F, value >> 7);
+            }
+        }
+        catch (InvalidMidiDataException e) {
+            return;
+        }
+
+        if (merger != null) {
+            merger.send(message, -1);
+        }
+        else {
+            output.sendClaimed(message, -1);
+        }
+    }
+
+    // Slot of a thinned message, -1 if it is forwarded as it comes
+    private int slotOf(ShortMessage message) {
+        switch (message.getCommand()) {
+            case ShortMessage.CONTROL_CHANGE:
+                return thinnedControllers[message.getData1()] ? message.getData1() : -1;
+            case ShortMessage.POLY_PRESSURE:
+                return POLY_PRESSURE + message.getData1();
+            case ShortMessage.CHANNEL_PRESSURE:
+                return CHANNEL_PRESSURE;
+            case ShortMessage.PITCH_BEND:
+                return PITCH_BEND;
+            default:
+                return -1;
+        }
+    }
+
+    private static int valueOf(ShortMessage message, int slot) {
+        if (slot == PITCH_BEND) {
+            return message.getData1() | (message.getData2() << 7);
+        }
+        return (slot == CHANNEL_PRESSURE) ? message.getData1() : message.getData2();
+    }
+
+    private int deltaOf(int slot) {
+        return (slot == PITCH_BEND) ? bendDelta : minDelta;
+    }
+
+    // Stop the flush thread, forwarding every pending value first
+    public void close() {
+        running = false;
+        LockSupport.unpark(flushThread);
+
+        try {
+            flushThread.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getIncoming() {
+        return incoming;
+    }
+
+    public long getForwarded() {
+        return forwardedLive + forwardedFlushed;
+    }
+
+    // Forwarded against incoming thinned messages, 1.0 before any arrived
+    public double getForwardRatio() {
+        long in = incoming;
+        return (in == 0) ? 1.0 : (double) getForwarded() / in;
+    }
+
+    @Override
+    public String toString() {
+        return "Controller Thinner = [incoming=" + incoming + ", forwardedLive=" + forwardedLive
+                + ", forwardedFlushed=" + forwardedFlushed + ", ratio=" + String.format("%.3f", getForwardRatio())
+                + "]";
+    }
+}
@@ -0,0 +1,285 @@
+package com.company;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background monitor that notices MIDI devices being unplugged and plugged back in, and reconnects them.
+ *
+ * Every poll only asks the providers for their device infos and compares the set of names with the previous poll;
+ * devices are only looked at when something changed. The In and Out device lists are updated to match. A watched
+ * device (e.g. the keyboard or a Sound Module) that comes back is handed to its Reconnector, so it is playing again
+ * at most one poll interval plus the reconnect itself after being plugged in. Each reconnect is timed and reported.
+ *
+ * The providers are passed in, so the monitor runs against fake providers as well as the installed ones. Provider
+ * and reconnect failures are reported to the DiagnosticJournal.
+ */
+public class DeviceHotplugMonitor {
+
+    // Connects a (re)appeared device, e.g. its Transmitter to AMidiFXReceiver
+    public interface Reconnector {
+        void reconnect(MidiDevice device) throws MidiUnavailableException;
+    }
+
+    // Told about devices coming and going, and how long reconnects took
+    public interface Listener {
+        void deviceRemoved(String name);
+
+        void deviceAdded(String name);
+
+        void reconnected(String name, long reconnectNanos, long downNanos);
+    }
+
+    // A device to reconnect by (part of) its name
+    private static class Watch {
+        final String name;
+        final boolean needReceiver;
+        final Reconnector reconnector;
+
+        MidiDevice device;
+        long lostAt;
+
+        Watch(String name, boolean needReceiver, Reconnector reconnector) {
+            this.name = name;
+            this.needReceiver = needReceiver;
+            this.reconnector = reconnector;
+        }
+    }
+
+    private final MidiDeviceProvider[] providers;
+    private final List<StatusMidiDevice> inDevices;
+    private final List<StatusMidiDevice> outDevices;
+    private final DiagnosticJournal journal;
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram reconnectTimes = new LatencyHistogram("Reconnect");
+
+    private ScheduledExecutorService poller;
+    private Set<String> known = new HashSet<>();
+
+    private volatile long polls = 0;
+    private volatile long reconnects = 0;
+    private volatile long failedReconnects = 0;
+
+    // Keeps inDevices and outDevices (guarded by their own monitors) in step with the providers. journal may be null
+    public DeviceHotplugMonitor(MidiDeviceProvider[] providers, List<StatusMidiDevice> inDevices,
+                                List<StatusMidiDevice> outDevices, DiagnosticJournal journal) {
+        this.providers = providers.clone();
+        this.inDevices = inDevices;
+        this.outDevices = outDevices;
+        this.journal = journal;
+
+        synchronized (inDevices) {
+            for (StatusMidiDevice status : inDevices) {
+                known.add(keyOf(status.getDevice().getDeviceInfo()));
+            }
+        }
+        synchronized (outDevices) {
+            for (StatusMidiDevice status : outDevices) {
+                known.add(keyOf(status.getDevice().getDeviceInfo()));
+            }
+        }
+    }
+
+    // Reconnect the device whose name contains name whenever it comes back. device is the one connected now, or null
+    public void watch(String name, boolean needReceiver, MidiDevice device, Reconnector reconnector) {
+        Watch watch = new Watch(name, needReceiver, reconnector);
+        watch.device = device;
+        if (device == null) {
+            watch.lostAt = System.nanoTime();
+        }
+        watches.add(watch);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void start(long pollMillis) {
+        if (poller != null) {
+            return;
+        }
+
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MIDI hotplug monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    // One poll: diff the device names, update the lists and reconnect watched devices. Called by the poll thread,
+    // or directly to poll now
+    public synchronized void poll() {
+        polls++;
+
+        Set<String> current = new HashSet<>();
+        List<MidiDevice.Info> infos = new ArrayList<>();
+        List<MidiDeviceProvider> owners = new ArrayList<>();
+        for (MidiDeviceProvider provider : providers) {
+            try {
+                for (MidiDevice.Info info : provider.getDeviceInfo()) {
+                    current.add(keyOf(info));
+                    infos.add(info);
+                    owners.add(provider);
+                }
+            }
+            catch (RuntimeException ex) {
+                error("MIDI hotplug: provider failed " + provider.getClass().getName() + ": " + ex);
+            }
+        }
+
+        if (current.equals(known)) {
+            return;
+        }
+
+        for (String key : known) {
+            if (!current.contains(key)) {
+                removed(key);
+            }
+        }
+
+        for (int i = 0; i < infos.size(); i++) {
+            MidiDevice.Info info = infos.get(i);
+            if (known.contains(keyOf(info))) {
+                continue;
+            }
+
+            try {
+                added(owners.get(i).getDevice(info));
+            }
+            catch (RuntimeException ex) {
+                error("MIDI hotplug: can't get MIDI device " + info.getName() + ": " + ex.getMessage());
+            }
+        }
+
+        known = current;
+    }
+
+    private void removed(String key) {
+        removeFrom(inDevices, key);
+        removeFrom(outDevices, key);
+
+        for (Watch watch : watches) {
+            if ((watch.device != null) && keyOf(watch.device.getDeviceInfo()).equals(key)) {
+                try {
+                    watch.device.close();
+                }
+                catch (RuntimeException ex) {
+                    // The device is gone already
+                }
+                watch.device = null;
+                watch.lostAt = System.nanoTime();
+            }
+        }
+
+        String name = nameOf(key);
+        for (Listener listener : listeners) {
+            listener.deviceRemoved(name);
+        }
+    }
+
+    private void added(MidiDevice device) {
+        List<StatusMidiDevice> addedIn = new ArrayList<>();
+        List<StatusMidiDevice> addedOut = new ArrayList<>();
+        MidiDeviceDiscovery.classify(device, "", "", addedIn, addedOut);
+        synchronized (inDevices) {
+            inDevices.addAll(addedIn);
+        }
+        synchronized (outDevices) {
+            outDevices.addAll(addedOut);
+        }
+
+        String name = device.getDeviceInfo().getName();
+        for (Listener listener : listeners) {
+            listener.deviceAdded(name);
+        }
+
+        for (Watch watch : watches) {
+            int max = watch.needReceiver ? device.getMaxReceivers() : device.getMaxTransmitters();
+            if ((watch.device != null) || (max == 0) || !name.contains(watch.name)) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try {
+                watch.reconnector.reconnect(device);
+            }
+            catch (MidiUnavailableException | RuntimeException ex) {
+                failedReconnects++;
+                error("MIDI hotplug: failed to reconnect " + name + ": " + ex);
+                continue;
+            }
+            long end = System.nanoTime();
+
+            watch.device = device;
+            reconnects++;
+            reconnectTimes.record(end - start);
+
+            for (Listener listener : listeners) {
+                listener.reconnected(name, end - start, end - watch.lostAt);
+            }
+        }
+    }
+
+    // Cold path: provider and reconnect failures
+    private void error(String text) {
+        if (journal != null) {
+            journal.error(text);
+        }
+    }
+
+    private static void removeFrom(List<StatusMidiDevice> devices, String key) {
+        synchronized (devices) {
+            devices.removeIf(status -> keyOf(status.getDevice().getDeviceInfo()).equals(key));
+        }
+    }
+
+    // Info objects are recreated by some providers on every call, so devices are compared by their description
+    private static String keyOf(MidiDevice.Info info) {
+        return info.getName() + '\u0000' + info.getVendor() + '\u0000' + info.getVersion();
+    }
+
+    private static String nameOf(String key) {
+        return key.substring(0, key.indexOf('\u0000'));
+    }
+
+    public long getPolls() {
+        return polls;
+    }
+
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    public long getFailedReconnects() {
+        return failedReconnects;
+    }
+
+    // Time from a device appearing to being reconnected
+    public LatencyHistogram getReconnectTimes() {
+        return reconnectTimes;
+    }
+
+    @Override
+    public String toString() {
+        return "MIDI Hotplug: " + polls + " polls, " + reconnects + " reconnects (" + failedReconnects + " failed), "
+                + "reconnect time " + reconnectTimes;
+    }
+}
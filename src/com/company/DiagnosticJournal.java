@@ -0,0 +1,217 @@
+package com.company;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous diagnostic journal replacing synchronous System.out printing on the MIDI paths.
+ *
+ * Callers write fixed size binary records into a direct buffer ring and return; a background formatter thread
+ * turns the records into text and prints them. Any thread may write. A full ring drops the record and counts it,
+ * so diagnostics never hold up note play. Text records (device names and the like) are meant for cold paths only.
+ *
+ * Record layout, 32 bytes: nanoTime, timeStamp, type, arg1, arg2, commit marker (sequence + 1)
+ */
+public class DiagnosticJournal {
+
+    // Verbosity levels, switchable at runtime
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int INFO = 2;
+    public static final int MIDI = 3;
+
+    // Record types
+    static final int TYPE_TEXT = 1;
+    static final int TYPE_MESSAGE = 2;
+    static final int TYPE_BAD_MESSAGE = 3;
+    static final int TYPE_INVALID_LAYER = 4;
+
+    private static final int RECORD_SIZE = 32;
+    private static final int OFFSET_NANOS = 0;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_TYPE = 16;
+    private static final int OFFSET_ARG1 = 20;
+    private static final int OFFSET_ARG2 = 24;
+    private static final int OFFSET_COMMIT = 28;
+
+    // Ordered access to the commit marker inside the direct buffer
+    private static final VarHandle COMMIT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer ring;
+    private final String[] texts;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final PrintStream out;
+    private final Thread formatter;
+    private volatile int verbosity;
+    private volatile boolean running = true;
+
+    public DiagnosticJournal(int size, PrintStream out, int verbosity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.mask = capacity - 1;
+        this.ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        this.texts = new String[capacity];
+        this.out = out;
+        this.verbosity = verbosity;
+
+        formatter = new Thread(this::formatLoop, "AMIDIFX Journal");
+        formatter.setDaemon(true);
+        formatter.setPriority(Thread.MIN_PRIORITY);
+        formatter.start();
+    }
+
+    public int getVerbosity() {
+        return verbosity;
+    }
+
+    public void setVerbosity(int verbosity) {
+        this.verbosity = verbosity;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= verbosity;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Cold path text at the given level
+    public void text(int level, String text) {
+        if (isEnabled(level)) {
+            write(TYPE_TEXT, level, 0, -1, text);
+        }
+    }
+
+    public void info(String text) {
+        text(INFO, text);
+    }
+
+    public void error(String text) {
+        text(ERROR, text);
+    }
+
+    // Incoming MIDI message: packed status, data1 and data2 (see EventRing.pack) and the message length
+    public void message(int event, int length, long timeStamp) {
+        if (isEnabled(MIDI)) {
+            write(TYPE_MESSAGE, event, length, timeStamp, null);
+        }
+    }
+
+    public void badMessage(int status, int length) {
+        if (isEnabled(ERROR)) {
+            write(TYPE_BAD_MESSAGE, status, length, -1, null);
+        }
+    }
+
+    public void invalidLayer(int channel, int event) {
+        if (isEnabled(ERROR)) {
+            write(TYPE_INVALID_LAYER, channel, event, -1, null);
+        }
+    }
+
+    // Stop the formatter after it printed everything recorded so far
+    public void close() {
+        running = false;
+        LockSupport.unpark(formatter);
+
+        try {
+            formatter.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(int type, int arg1, int arg2, long timeStamp, String text) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head.get() >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int base = ((int) seq & mask) * RECORD_SIZE;
+        ring.putLong(base + OFFSET_NANOS, System.nanoTime());
+        ring.putLong(base + OFFSET_TIMESTAMP, timeStamp);
+        ring.putInt(base + OFFSET_TYPE, type);
+        ring.putInt(base + OFFSET_ARG1, arg1);
+        ring.putInt(base + OFFSET_ARG2, arg2);
+        texts[(int) seq & mask] = text;
+
+        // Release the record to the formatter
+        COMMIT.setRelease(ring, base + OFFSET_COMMIT, (int) (seq + 1));
+    }
+
+    // Formatter thread: print committed records in order, park while there are none
+    private void formatLoop() {
+        StringBuilder sb = new StringBuilder(256);
+        long lastDropped = 0;
+
+        while (true) {
+            long seq = head.get();
+            int base = ((int) seq & mask) * RECORD_SIZE;
+
+            if ((int) COMMIT.getAcquire(ring, base + OFFSET_COMMIT) != (int) (seq + 1)) {
+                if (!running && (seq == tail.get())) {
+                    break;
+                }
+                LockSupport.parkNanos(1_000_000L);
+                continue;
+            }
+
+            sb.setLength(0);
+            format(sb, base, texts[(int) seq & mask]);
+            texts[(int) seq & mask] = null;
+            head.lazySet(seq + 1);
+
+            out.println(sb);
+
+            long drops = dropped.get();
+            if (drops != lastDropped) {
+                out.println("Journal: " + (drops - lastDropped) + " diagnostic records dropped");
+                lastDropped = drops;
+            }
+        }
+
+        out.flush();
+    }
+
+    private void format(StringBuilder sb, int base, String text) {
+        long timeStamp = ring.getLong(base + OFFSET_TIMESTAMP);
+        int arg1 = ring.getInt(base + OFFSET_ARG1);
+        int arg2 = ring.getInt(base + OFFSET_ARG2);
+
+        switch (ring.getInt(base + OFFSET_TYPE)) {
+            case TYPE_TEXT:
+                sb.append(text);
+                break;
+            case TYPE_MESSAGE:
+                MidiMessageFormatter.format(sb, timeStamp, arg1, arg2);
+                break;
+            case TYPE_BAD_MESSAGE:
+                sb.append("Unable to Layer/Output Bad MIDI message: Status 0x").append(Integer.toHexString(arg1))
+                        .append(", Length ").append(arg2);
+                break;
+            case TYPE_INVALID_LAYER:
+                sb.append("Invalid Channel Layer Message ").append(arg1 + 1).append(": Status 0x")
+                        .append(Integer.toHexString(EventRing.status(arg2)))
+                        .append(", Data ").append(EventRing.data1(arg2)).append(' ').append(EventRing.data2(arg2));
+                break;
+            default:
+                sb.append("Journal: Unknown record type");
+        }
+    }
+}
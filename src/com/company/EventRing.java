@@ -0,0 +1,118 @@
+package com.company;
+
+import javax.sound.midi.MidiMessage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-sized single producer, single consumer ring of MIDI events.
+ *
+ * Short messages are stored as packed ints (status | data1 << 8 | data2 << 16) next to their timestamp, so the
+ * producer never allocates. Messages that do not fit (SysEx) are flagged LONG_MESSAGE and kept in a parallel slot.
+ * Exactly one thread may offer() and exactly one other thread may drain().
+ */
+public class EventRing {
+
+    // Packed event flag: the message is held in the message slot instead
+    public static final int LONG_MESSAGE = 1 << 24;
+
+    // Consumer callback, invoked on the draining thread
+    public interface EventHandler {
+        void onEvent(int event, MidiMessage message, long timeStamp);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int[] events;
+    private final long[] timeStamps;
+    private final MidiMessage[] messages;
+
+    // Next sequence to read (consumer owned) and next sequence to write (producer owned)
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Producer side cache of head, refreshed when the ring looks full and by remaining()
+    private long headCache = 0;
+
+    public EventRing(int size) {
+        // Round up to a power of 2 so the slot index is a mask
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.events = new int[capacity];
+        this.timeStamps = new long[capacity];
+        this.messages = new MidiMessage[capacity];
+    }
+
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xff) | ((data1 & 0xff) << 8) | ((data2 & 0xff) << 16);
+    }
+
+    public static int status(int event) {
+        return event & 0xff;
+    }
+
+    public static int data1(int event) {
+        return (event >>> 8) & 0xff;
+    }
+
+    public static int data2(int event) {
+        return (event >>> 16) & 0xff;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Current number of queued events, safe to read from any thread
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // Producer: free slots. Reads the consumer's head every time, as a stale cache would under-report them for good
+    // once nothing is offered
+    public int remaining() {
+        headCache = head.get();
+        return capacity - (int) (tail.get() - headCache);
+    }
+
+    // Producer: queue an event, message may be null unless the event is LONG_MESSAGE. False if the ring is full
+    public boolean offer(int event, MidiMessage message, long timeStamp) {
+        long t = tail.get();
+        if (t - headCache >= capacity) {
+            headCache = head.get();
+            if (t - headCache >= capacity) {
+                return false;
+            }
+        }
+
+        int slot = (int) t & mask;
+        events[slot] = event;
+        timeStamps[slot] = timeStamp;
+        messages[slot] = message;
+
+        // Volatile store publishes the slot, and orders it before any check the producer makes for a parked consumer
+        tail.set(t + 1);
+        return true;
+    }
+
+    // Consumer: hand up to limit queued events to the handler. Returns the number drained
+    public int drain(EventHandler handler, int limit) {
+        long h = head.get();
+        long available = tail.get() - h;
+        int count = (int) Math.min(available, limit);
+
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (h + i) & mask;
+            MidiMessage message = messages[slot];
+            messages[slot] = null;
+
+            handler.onEvent(events[slot], message, timeStamps[slot]);
+        }
+
+        if (count > 0) {
+            head.lazySet(h + count);
+        }
+        return count;
+    }
+}
@@ -1,8 +1,19 @@
 package com.company;
 
 import javax.sound.midi.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import com.company.AppConfig;
 
@@ -28,37 +39,45 @@ public class KeyboardToSoundModule {
     Synthesizer synthesizer;
     Sequencer sequencer;
     Receiver midircv;
+    ModuleRegistry modules;
     AMidiFXReceiver displayReceiver;
 
     AppConfig config;
+
+    // Diagnostics printed off the MIDI threads, verbosity switchable at runtime
+    final DiagnosticJournal journal = new DiagnosticJournal(4096, System.out, DiagnosticJournal.INFO);
     //private String selindevice = "2- Seaboard RISE 49";
     //private String seloutdevice = "Deebach-Blackbox";
     private String selindevice = "default";
     private String seloutdevice = "default";
 
+    // Compiled Presets, if a bank has been converted from the Preset CSV file
+    volatile PresetBank presetBank;
+    volatile PresetCache presetCache;
+
+    // Patches of each Sound Module, null where its patch file is missing
+    final PatchDatabase[] patchDatabases = new PatchDatabase[ModuleRegistry.MAX_MODULES];
+
+    // Preset changes forwarded to the ARM MIDI Controller, once its link is connected
+    final PresetDelta presetDelta = new PresetDelta();
+    PresetDelta.RecordSink controllerLink;
+
     final List<StatusMidiDevice> InDeviceList = new ArrayList<>();
     final List<StatusMidiDevice> OutDeviceList = new ArrayList<>();
 
-    // Layered channels out (defaulted): presetIdx, channelInIdx, (ChannelOutIdx & ModuleIdx) * 10, OctaveTran
-    private byte[] channelOutStruct = {0, 13, 0, 0, 14, 0, 15, 0, 16, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,};
+    // Probes the MIDI device providers once, in parallel, while the preferred devices are opened
+    MidiDeviceDiscovery discovery;
 
-    class StatusMidiDevice {
-        boolean isactive;
-        MidiDevice device;
+    // Reconnects the keyboard and Sound Modules when they are replugged
+    DeviceHotplugMonitor hotplugMonitor;
+    volatile MidiDevice inDevice;
+    final Map<String, MidiDevice> openedOutDevices = new ConcurrentHashMap<>();
 
-        StatusMidiDevice(MidiDevice device, boolean isactive) {
-            this.device = device;
-            this.isactive = isactive;
+    // Encoders of the external MIDI ports, for their statistics at shutdown
+    final List<WireEncoder> wireEncoders = new CopyOnWriteArrayList<>();
 
-            System.out.println("Adding MIDI Device: " + toString());
-        }
-
-        @Override
-        public String toString() {
-            String devicestring = "Device Status Active:" + isactive + " Device:" + device.getDeviceInfo().toString();
-            return devicestring;
-        }
-    }
+    // Layered channels out (defaulted until a Preset is selected): every input channel to 14, 15, 16 and 1
+    private final int[] defaultLayers = {14, 15, 16, 1};
 
     /*
      * Start of main utility
@@ -69,11 +88,6 @@ public class KeyboardToSoundModule {
 
     private void run() {
 
-        // Initialize Input and Output Device Lists
-        loadMidiDevices();
-        listInDevices();
-        listOutDevices();
-
         // Load Config File Properties
         config = new AppConfig();
         if (!config.loadProperties()) {
@@ -81,21 +95,28 @@ public class KeyboardToSoundModule {
             System.exit(-1);
         }
 
-        // Pretend we set it in the user interface after listing available IN and OUT devices
+        // Pretend we set it in the user interface after listing available IN and OUT devices.
+        // Both changes are saved in one write in the background
         config.setInDevice("2- Seaboard RISE 49");
         config.setOutDevice("Deebach-Blackbox");
-
-        if (!config.saveProperties()) {
-            System.err.println("Failed to save AppConfig file!");
-            System.exit(-1);
-        };
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "AMIDIFX Shutdown"));
 
         selindevice = config.getInDevice();
         seloutdevice = config.getOutDevice();
 
+        // Enumerate all devices in the background; the preferred ones are opened on the fast path meanwhile
+        discovery = new MidiDeviceDiscovery(getDeviceCachePath(), journal);
+        discovery.start(selindevice, seloutdevice);
+
+        journal.setVerbosity(config.getVerbosity());
+        presetDelta.setJournal(journal);
+
+        openPresetCache();
+        loadPatchDatabases();
+
         try {
             // Get output Synth or external Sound Module
-            midircv = openMidiReceiver();
+            midircv = openMidiReceiver(seloutdevice);
             if (midircv == null) {
                 return;
             }
@@ -103,7 +124,24 @@ public class KeyboardToSoundModule {
             // Get receiver from the synthesizer, then set it in transmitter.
             // Get a transmitter and synthesizer from their device names using system properties or defaults
             //trans.setReceiver(midircv);
-            displayReceiver = new AMidiFXReceiver(midircv); // optional
+            modules = openModules();
+            displayReceiver = new AMidiFXReceiver(modules, getDefaultRouting()); // optional
+            displayReceiver.setJournal(journal);
+            if (config.getLatencyStats()) {
+                displayReceiver.setLatencyStats(new LatencyStats());
+            }
+            configureControllerThinner(config.getSnapshot());
+            configureMpe(config.getSnapshot());
+
+            // Apply edits of AppConfig.xml while playing
+            config.addChangeListener(this::configChanged);
+            try {
+                config.startWatching();
+            }
+            catch (IOException ex) {
+                journal.error("Failed to watch AppConfig file: " + ex.getMessage());
+            }
+
             Transmitter trans = getTransmitter();
             if (trans != null) {
                 trans.setReceiver(displayReceiver); // or just "receiver"
@@ -113,17 +151,25 @@ public class KeyboardToSoundModule {
             else
                 System.out.println("No musical keyboard connected! Please connect USB keyboard proceed.");
 
+            // Initialize Input and Output Device Lists
+            loadMidiDevices();
+            listInDevices();
+            listOutDevices();
+
+            startHotplugMonitor();
+
             // Get default sequencer, if it exists
             sequencer = getSequencer();
             if (sequencer == null) {
                 return;
             }
 
+            // The sequencer plays to module 0, merged with the keyboard which goes first
             sequencer.open();
-            sequencer.getTransmitter().setReceiver(midircv);
+            sequencer.getTransmitter().setReceiver(modules.getSequencerInput(0));
 
-            // Demo Play Sequencer Song in parallel with Keyboard input
-            playDemoSequence(5);
+            // Play the songs (or the demo song) on the Sequencer in parallel with Keyboard input
+            playSongs(5);
 
             sequencer.close();
         }
@@ -133,569 +179,597 @@ public class KeyboardToSoundModule {
         }
     }
 
-    // Play Song on Sequencer
-    private void playDemoSequence(int replaycnt) {
-
-        for (int i = 1; i <= replaycnt; i++) {
-            System.out.println("Starting Demo Sequencer Play:" + i);
+    // The only shutdown hook, as hooks run concurrently and in no set order: save the config, log the statistics in
+    // a fixed order, then close the journal once all of them are recorded
+    private void shutdown() {
+        if (!config.flushProperties()) {
+            System.err.println("Failed to save AppConfig file!");
+        }
 
-            sequencer.setTempoInBPM(144.0f);
+        PresetCache cache = presetCache;
+        if (cache != null) {
+            journal.info(cache.toString());
+        }
 
-            try {
-                sequencer.setSequence(getMidiInputData());
-            }
-            catch (InvalidMidiDataException e1) {
-                e1.printStackTrace();
-                return;
+        AMidiFXReceiver receiver = displayReceiver;
+        if (receiver != null) {
+            MpeVoiceAllocator allocator = receiver.getMpeAllocator();
+            if (allocator != null) {
+                journal.info(allocator.toString());
             }
 
-            // Start demo sequence
-            sleep(200);
-            sequencer.start();
-            while (sequencer.isRunning()) {
-                sleep(1000);
+            ControllerThinner thinner = receiver.getControllerThinner();
+            if (thinner != null) {
+                journal.info(thinner.toString());
             }
 
-            // Sleep or last note is clipped
-            sleep(200);
+            LatencyStats latencyStats = receiver.getLatencyStats();
+            if (latencyStats != null) {
+                logLatencyStats(latencyStats);
+            }
         }
-    }
-
 
-    /**
-     * Return a specific synthesizer object by setting the system property, otherwise the default
-     */
-    private Synthesizer getSynthesizer() {
-        if (! SYNTH_DEV_NAME.isEmpty() || ! "default".equalsIgnoreCase(SYNTH_DEV_NAME)) {
-            System.setProperty(SYNTH_PROP_KEY, SYNTH_DEV_NAME);
+        for (WireEncoder encoder : wireEncoders) {
+            journal.info(encoder.toString());
         }
 
-        try {
-            return MidiSystem.getSynthesizer();
+        if ((sequencer != null) && (modules != null)) {
+            journal.info(modules.getMerger(0).toString());
         }
-        catch (MidiUnavailableException e) {
-            System.err.println("Error getting synthesizer");
-            e.printStackTrace();
-            return null;
+
+        DeviceHotplugMonitor monitor = hotplugMonitor;
+        if (monitor != null) {
+            journal.info(monitor.toString());
         }
+
+        journal.close();
     }
 
-    /**
-     * Return a specific transmitter object by setting the system property, otherwise the default
-     */
-    private Transmitter getTransmitter() {
+    // The latency report goes to the journal in one record, so it is not split up by other messages
+    private void logLatencyStats(LatencyStats latencyStats) {
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        latencyStats.dump(new PrintStream(dump, true));
+        journal.info(dump.toString().trim());
+    }
 
-        String indevice = config.getInDevice();
-        if (!indevice.isEmpty()) {
-            TRANS_DEV_NAME = TRANS_PROP_KEY + "#" + indevice;
-            System.out.println("TRANS_DEV_NAME set to: " + TRANS_DEV_NAME);
-        }
+    // Register one output per configured Sound Module. With more than one module, or in pipeline mode, each
+    // module is dispatched from its own output thread
+    private ModuleRegistry openModules() {
+        ModuleRegistry registry = new ModuleRegistry();
 
-        if (! TRANS_DEV_NAME.isEmpty() && ! "default".equalsIgnoreCase(TRANS_DEV_NAME)) {
-            System.setProperty(TRANS_PROP_KEY, TRANS_DEV_NAME);
-        }
+        Receiver[] moduleReceivers = new Receiver[ModuleRegistry.MAX_MODULES];
+        String[] moduleDevices = new String[ModuleRegistry.MAX_MODULES];
+        int opened = 0;
 
-        try {
-            return MidiSystem.getTransmitter();
+        for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+            moduleDevices[idx] = config.getModuleDevice(idx);
+            if (idx == 0) {
+                moduleReceivers[idx] = midircv;
+            }
+            else if (!moduleDevices[idx].isEmpty()) {
+                moduleReceivers[idx] = openMidiReceiver(moduleDevices[idx]);
+            }
+
+            if (moduleReceivers[idx] != null) {
+                opened++;
+            }
         }
-        catch (MidiUnavailableException e) {
-            System.err.println("No External MIDI keyboard available! Please connect a USB keyboard.");
-            //e.printStackTrace();
-            return null;
+
+        boolean parallel = config.getOutPipeline() || (opened > 1);
+        for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+            if (moduleReceivers[idx] == null) {
+                continue;
+            }
+
+            if (parallel) {
+                registry.registerParallel(idx, moduleDevices[idx], moduleReceivers[idx], config.getOutPipelineSize());
+            }
+            else {
+                registry.register(idx, moduleDevices[idx], moduleReceivers[idx]);
+            }
         }
+
+        return registry;
     }
 
-    /**
-     * Rreturn a specific sequencer object by setting the system property, otherwise the default
-     */
-    private Sequencer getSequencer() {
-        if (!SEQ_DEV_NAME.isEmpty()
-                || !"default".equalsIgnoreCase(SEQ_DEV_NAME)) {
-            System.setProperty(SEQ_PROP_KEY, SEQ_DEV_NAME);
-        }
+    // Compile the default layering into a Routing Table for AMidiFXReceiver
+    private RoutingTable getDefaultRouting() {
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
 
-        try {
-            return MidiSystem.getSequencer();
-        }
-        catch (MidiUnavailableException e) {
-            System.err.println("Error getting sequencer");
-            e.printStackTrace();
-            return null;
+        for (int channelIn = 1; channelIn <= RoutingTable.CHANNELS; channelIn++) {
+            for (int channelOut : defaultLayers) {
+                builder.addLayer(channelIn, channelOut, 0);
+            }
         }
+
+        return builder.build();
     }
 
-    /**
-     * Implement custom Receiver to read Keyboard input and layer/multiplex
-     */
-    private class AMidiFXReceiver implements Receiver {
-        private Receiver receiver;
-        boolean isSystemExclusiveData = false;
+    // React to AppConfig.xml edits, only for the keys that changed
+    private void configChanged(AppConfig.Snapshot previous, AppConfig.Snapshot current, Set<String> changedKeys) {
+        journal.info("Config changed: " + changedKeys);
 
-        public AMidiFXReceiver(Receiver receiver) {
-            this.receiver = receiver;
+        if (changedKeys.contains("verbosity")) {
+            journal.setVerbosity(current.getVerbosity());
         }
 
-        @Override
-        public void send(MidiMessage message, long timeStamp) {
-            //receiver.send(message, timeStamp);
-            routeMessage(message, timeStamp);
+        if (changedKeys.contains("latencystats") && (displayReceiver != null)) {
+            LatencyStats latencyStats = displayReceiver.getLatencyStats();
+            if (current.getLatencyStats() && (latencyStats == null)) {
+                displayReceiver.setLatencyStats(new LatencyStats());
+            }
+            else if (!current.getLatencyStats() && (latencyStats != null)) {
+                displayReceiver.setLatencyStats(null);
+                logLatencyStats(latencyStats);
+            }
+        }
 
-            //displayMessage(message, timeStamp);
+        for (String key : changedKeys) {
+            if (key.startsWith("ctlthin") && (displayReceiver != null)) {
+                configureControllerThinner(current);
+                break;
+            }
         }
 
-        @Override
-        public void close() {
-            receiver.close();
+        for (String key : changedKeys) {
+            if (key.startsWith("mpe") && (displayReceiver != null)) {
+                configureMpe(current);
+                break;
+            }
         }
 
-        // Prepare to Route and Layer incoming MIDI messages
-        private void routeMessage(MidiMessage message, long timeStamp) {
+        if (changedKeys.contains("dirconfig") || changedKeys.contains("presetbank")
+                || changedKeys.contains("presetcache")) {
+            openPresetCache();
+        }
+        else if (changedKeys.contains("songsfile") && (presetCache != null)) {
+            presetCache.setSongs(loadSongs());
+        }
 
-            //receiver.send(message, timeStamp);
+        for (String key : changedKeys) {
+            if (key.startsWith("sndmodfil") || key.equals("patchoffheap")) {
+                loadPatchDatabases();
+                break;
+            }
+        }
 
-            // Check: Are we printing system exclusive data?
-            if (isSystemExclusiveData) {
-                receiver.send(message, timeStamp);
-                return;
+        // The keyboard and the Sound Module devices are switched while playing; output threads and running status
+        // are set up once
+        if (changedKeys.contains("indevice") && (displayReceiver != null)) {
+            switchInDevice(current.getInDevice());
+        }
+        for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+            if (!previous.getModuleDevice(idx).equals(current.getModuleDevice(idx)) && (modules != null)) {
+                switchModuleDevice(idx, current.getModuleDevice(idx));
             }
+        }
+        for (String key : changedKeys) {
+            if (key.startsWith("outpipeline") || key.equals("runningstatus")) {
+                journal.info("Config: " + key + " takes effect after restart");
+            }
+        }
+    }
 
-            int status = message.getStatus();
+    // Play from another keyboard, closing the current one. The hotplug monitor only reconnects the devices it
+    // started with, while they are still configured
+    private void switchInDevice(String name) {
+        MidiDevice device = discovery.findPreferred(name, false);
+        if (device == null) {
+            journal.error("Config: MIDI In device " + name + " not found, keeping the current one");
+            return;
+        }
 
-            // Do not route status and timing messages
-            if (( status == 0xf8 ) || ( status == 0xfe )) {
-                receiver.send(message, timeStamp);
-                return;
-            }
+        MidiDevice previous = inDevice;
+        if (device == previous) {
+            return;
+        }
 
-            //System.out.printf("%d - Status: 0x%s", timeStamp, Integer.toHexString(status));
-
-            // These statuses have MIDI channel numbers and data (except 0xf0 thru 0xff)
-            // Strip channel number out of status
-            int leftNibble = status & 0xf0;
-            switch (leftNibble) {
-                case 0x80: //displayNoteOff(message);
-                case 0x90: //displayNoteOn(message);
-                    //receiver.send(message, timeStamp);
-                    layerMessages(message, timeStamp);
-                    break;
-                case 0xa0: //displayKeyPressure(message);
-                case 0xb0: //displayControllerChange(message);
-                case 0xc0: //displayProgramChange(message);
-                case 0xd0: //displayChannelPressure(message);
-                case 0xe0: //displayPitchBend(message);
-                case 0xf0:
-                    receiver.send(message, timeStamp);
-                    //layerMessages(message, timeStamp);
-                    break;
-                default:
-                    // Not recognized, but forward
-                    receiver.send(message, timeStamp);
-            }
-        }
-
-        // Play original keyboard messages and any layering as needed
-        private void layerMessages(MidiMessage message, long timeStamp) {
-            ShortMessage shortmessage;
-
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println("Unable to Layer/Output Bad MIDI message");
-                return;
+        try {
+            if (!device.isOpen()) {
+                device.open();
             }
+            device.getTransmitter().setReceiver(displayReceiver);
+        }
+        catch (MidiUnavailableException ex) {
+            journal.error("Config: Failed to open MIDI In device " + name + ": " + ex.getMessage());
+            return;
+        }
 
-            // Now dissect to determine if Layering is needed and forward in layered channels
-            byte[] bytes = message.getMessage();
-            int command = message.getStatus() & 0xf0;
-            int channel = message.getStatus() & 0x0f;
-
-            try {
-                // Layer the first/origin Channel
-                int chan = channelOutStruct[2];
-                if (chan != 0) {
-                    shortmessage = new ShortMessage();
-                    shortmessage.setMessage(command, chan - 1, byteToInt(bytes[1]) + 4, byteToInt(bytes[2]));
-                    receiver.send(shortmessage, timeStamp);
-
-                    System.out.println("Layer Channel index[0]: " + chan);
-                }
+        inDevice = device;
+        if (previous != null) {
+            previous.close();
+        }
+        journal.info("Config: Playing from MIDI In device " + name);
+    }
 
-                // Lookup and layer the remaining up to 9 channels until a 0 out is found
-                int startidx = 4;
-                int idx = 0;
+    // Point a Sound Module at another device, as a replugged one is. A module that was not opened at start, or is
+    // no longer configured, takes effect after restart
+    private void switchModuleDevice(int moduleIdx, String name) {
+        if (!modules.isRegistered(moduleIdx) || name.isEmpty()) {
+            journal.info("Config: Sound Module " + moduleIdx + " device takes effect after restart");
+            return;
+        }
 
-                chan = channelOutStruct[startidx];
-                if ((chan < 0) || (chan > 16)) return;
+        Receiver receiver = openMidiReceiver(name);
+        if (receiver == null) {
+            return;
+        }
 
-                while ((chan != 0) && (idx < 10)) {
-                    shortmessage = new ShortMessage();
-                    shortmessage.setMessage(command, chan - 1, byteToInt(bytes[1]), byteToInt(bytes[2]));
-                    receiver.send(shortmessage, timeStamp);
+        Receiver previous = modules.reconnect(moduleIdx, receiver);
+        if (moduleIdx == 0) {
+            midircv = receiver;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        journal.info("Config: Sound Module " + moduleIdx + " plays on " + name);
+    }
 
-                    // Read next channel mapping
-                    int offsetidx = startidx + (idx++ * 2);
-                    if (offsetidx > (channelOutStruct.length - 1))
-                        break;
+    // Thin the keyboard's controller streams to module 0 as configured, or stop thinning. The previous thinner
+    // forwards what it kept back before it stops
+    private void configureControllerThinner(AppConfig.Snapshot snapshot) {
+        ControllerThinner thinner = null;
+        if (snapshot.getControllerThinning()) {
+            thinner = new ControllerThinner(modules.getMerger(0), snapshot.getThinInterval() * 1000L,
+                    snapshot.getThinDelta(), snapshot.getThinBendDelta(), snapshot.getThinControllers());
+        }
 
-                    chan = channelOutStruct[offsetidx];
-                    if ((chan <= 0) || (chan > 16)) return;
+        ControllerThinner previous = displayReceiver.setControllerThinner(thinner);
+        if (previous != null) {
+            previous.close();
+            journal.info(previous.toString());
+        }
+    }
 
-                    System.out.println("Layer Channel index[" + idx + "]: " + chan);
-                }
+    // Allocate voices per note for an MPE keyboard in the configured zone, or layer as usual
+    private void configureMpe(AppConfig.Snapshot snapshot) {
+        MpeVoiceAllocator.Zone zone = null;
+        if (snapshot.getMpe()) {
+            MpeVoiceAllocator.StealPolicy policy;
+            try {
+                policy = MpeVoiceAllocator.StealPolicy.valueOf(snapshot.getMpeSteal().trim().toUpperCase());
             }
-            catch (InvalidMidiDataException ex) {
-                System.out.print("Invalid Channel Layer Message" + channel);
-                System.out.print(ex);
+            catch (IllegalArgumentException ex) {
+                journal.error("Config: Invalid mpesteal " + snapshot.getMpeSteal() + ", using oldest");
+                policy = MpeVoiceAllocator.StealPolicy.OLDEST;
             }
+            zone = new MpeVoiceAllocator.Zone(snapshot.getMpeMaster(), snapshot.getMpeMembers(),
+                    snapshot.getMpeVoices(), policy);
         }
 
-        // Display MIDI message
-        private void displayMessage(MidiMessage message, long timeStamp) {
+        displayReceiver.setMpeZone(zone);
+    }
 
-            // Check: Are we printing system exclusive data?
-            if (isSystemExclusiveData) {
-                displayRawData(message);
-                return;
-            }
+    // (Re)open the Preset bank and a Preset cache in front of it
+    private void openPresetCache() {
+        PresetCache previous = presetCache;
 
-            int status = message.getStatus();
+        presetBank = openPresetBank();
+        presetCache = (presetBank != null) ? new PresetCache(presetBank, config.getPresetCacheSize()) : null;
+        if (presetCache != null) {
+            presetCache.setSongs(loadSongs());
+        }
 
-            // These statuses clutter the display
-            if ( status == 0xf8 ) { return; } // ignore timing messages
-            if ( status == 0xfe ) { return; } // ignore status active
+        if (previous != null) {
+            previous.close();
+        }
+    }
 
-            System.out.printf("%d - Status: 0x%s", timeStamp, Integer.toHexString(status));
+    // Load the patch file of each Sound Module from the config directory
+    private void loadPatchDatabases() {
+        for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+            String file = config.getSoundModule(idx);
+            if ((file == null) || file.isEmpty()) {
+                patchDatabases[idx] = null;
+                continue;
+            }
 
-            // Strip channel number out of status
-            int leftNibble = status & 0xf0;
+            Path patchPath = Paths.get(config.getDirConfig(), file);
+            if (!Files.exists(patchPath)) {
+                journal.info("No patch file found for module " + idx + ": " + patchPath);
+                patchDatabases[idx] = null;
+                continue;
+            }
 
-            // These statuses have MIDI channel numbers and data (except 0xf0 thru 0xff)
-            switch (leftNibble) {
-                case 0x80: displayNoteOff(message); break;
-                case 0x90: displayNoteOn(message); break;
-                case 0xa0: displayKeyPressure(message); break;
-                case 0xb0: displayControllerChange(message); break;
-                case 0xc0: displayProgramChange(message); break;
-                case 0xd0: displayChannelPressure(message); break;
-                case 0xe0: displayPitchBend(message); break;
-                case 0xf0: displaySystemMessage(message); break;
-                default:
-                    System.out.println(" Unknown status");
-                    displayRawData(message);
+            try {
+                patchDatabases[idx] = PatchDatabase.load(patchPath, config.getPatchOffHeap());
+                journal.info(patchDatabases[idx].toString());
+            }
+            catch (IOException ex) {
+                journal.error("Failed to load patch file: " + ex.getMessage());
+                patchDatabases[idx] = null;
             }
         }
+    }
 
-        // Displays raw data as integers, if any
-        private void displayRawData(MidiMessage message) {
-            byte[] bytes = message.getMessage();
-
-            if (message.getLength() > 1) {
-                System.out.print("\tRaw data: ");
+    // Patches of a Sound Module by moduleIdx, null if it has none
+    public PatchDatabase getPatchDatabase(int module) {
+        return ((module >= 0) && (module < patchDatabases.length)) ? patchDatabases[module] : null;
+    }
 
-                for (int i = 1; i < bytes.length; i++) {
-                    System.out.print(byteToInt(bytes[i]) + " ");
-                }
+    // Map the compiled Preset bank from the config directory, if there is one
+    private PresetBank openPresetBank() {
+        Path bankPath = Paths.get(config.getDirConfig(), config.getPresetBank());
+        if (!Files.exists(bankPath)) {
+            journal.info("No Preset bank found: " + bankPath);
+            return null;
+        }
 
-                System.out.println();
-            }
+        try {
+            PresetBank bank = PresetBank.open(bankPath);
+            journal.info("Opened Preset bank " + bankPath + " with " + bank.getRecordCount() + " layers");
+            return bank;
         }
+        catch (IOException ex) {
+            journal.error("Failed to open Preset bank: " + ex.getMessage());
+            return null;
+        }
+    }
 
-        // Display status and data of a NoteOn message.  Data may come
-        // in pairs after the status byte.
-        //
-        // Note that a NoteOn with a velocity of 0 is synonymous with
-        // a NoteOff message.
-        private void displayNoteOn(MidiMessage message) {
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println(" Bad MIDI message");
-                return;
-            }
+    // Songs of the songsfile in the config directory, null if there are none
+    private SongList loadSongs() {
+        if (config.getSongsFile() == null) {
+            return null;
+        }
 
-            byte[] bytes = message.getMessage();
+        Path songsPath = Paths.get(config.getDirConfig(), config.getSongsFile());
+        if (!Files.exists(songsPath)) {
+            journal.info("No songs file found: " + songsPath);
+            return null;
+        }
 
-            // Zero velocity
-            if ( bytes[2] == 0 ) {
-                System.out.print(" = Note off");
-            } else {
-                System.out.print(" = Note on");
-            }
+        try {
+            return SongList.load(songsPath);
+        }
+        catch (IOException ex) {
+            journal.error("Failed to load songs file: " + ex.getMessage());
+            return null;
+        }
+    }
 
-            System.out.print(", Channel " + midiChannelToInt(message));
+    // Select a Preset from the Preset cache
+    public void selectPreset(int presetIdx) {
+        PresetCache.CompiledPreset preset = (presetCache != null) ? presetCache.get(presetIdx) : null;
+        if (preset == null) {
+            journal.error("Preset not found: " + presetIdx);
+            return;
+        }
 
-            if ( bytes[2] == 0 ) {
-                System.out.println(", Note " + byteToInt(bytes[1]));
-                return;
-            }
+        selectPreset(presetIdx, preset.getRouting(), preset.getLayers());
+    }
 
-            System.out.print("\n\t");
+    // Select a Preset: publish its routing to the keyboard receiver and forward the layer changes to the controller
+    public void selectPreset(int presetIdx, MidiLayer[] layers) {
+        selectPreset(presetIdx, RoutingTable.compile(presetIdx, layers), layers);
+    }
 
-            for (int i = 1; i < message.getLength(); i += 2) {
-                if ( i > 1 ) {
-                    System.out.print("; ");
-                }
-                System.out.printf( "Number %d, Velocity %d", byteToInt(bytes[i]), byteToInt(bytes[i + 1]) );
-            }
+    private void selectPreset(int presetIdx, RoutingTable routing, MidiLayer[] layers) {
+        if (displayReceiver != null) {
+            displayReceiver.setRoutingTable(routing);
+        }
 
-            System.out.println();
+        if (controllerLink != null) {
+            presetDelta.forward(presetIdx, layers, controllerLink);
         }
+    }
 
-        // Display status and data of a NoteOff message.
-        private void displayNoteOff(MidiMessage message) {
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println(" Bad MIDI message");
-            }
-            else {
-                byte[] bytes = message.getMessage();
-                System.out.printf(" = Note off, Channel %d, Note %d%n", midiChannelToInt(message), byteToInt(bytes[1]));
-                System.out.println();
+    // Play the songs of the songsfile back to back on the Sequencer, replaycnt times over. Without songs that have
+    // a MIDI file, play the demo song instead
+    private void playSongs(int replaycnt) {
+        List<SongList.Song> playlist = new ArrayList<>();
+        SongList songs = loadSongs();
+        if (songs != null) {
+            for (SongList.Song song : songs.getSongs()) {
+                if (!song.getMidiFile().isEmpty()) {
+                    playlist.add(song);
+                }
             }
         }
 
-        // Display status and data of a ControllerChange message.  Data may come
-        // in pairs after the status byte.
-        private void displayControllerChange(MidiMessage message) {
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println(" Bad MIDI message");
+        PlaylistPlayer.SequenceLoader loader;
+        MidiFileStore store = null;
+        if (playlist.isEmpty()) {
+            Sequence demo = getMidiInputData();
+            if (demo == null) {
                 return;
             }
-
-            System.out.print(" = Controller Change, Channel " + midiChannelToInt(message) + "\n\t");
-
-            byte[] bytes = message.getMessage();
-            for (int i = 1; i < message.getLength(); i += 2) {
-                if ( i > 1 ) {
-                    System.out.print("; ");
+            playlist.add(new SongList.Song(0, "Mary Had a Little Lamb", -1, ""));
+            loader = song -> demo;
+        }
+        else {
+            store = openMidiStore();
+            MidiFileStore songStore = store;
+            loader = song -> {
+                // The Sequence of a stored song is only built when the sequencer can't play the store
+                MidiFileStore.StoredSong stored = (songStore != null) ? songStore.get(song.getMidiFile()) : null;
+                if (stored != null) {
+                    return stored.toSequence();
                 }
-                System.out.printf( "Controller %d, Value %d", byteToInt(bytes[i]), byteToInt(bytes[i + 1]) );
+                return MidiSystem.getSequence(Paths.get(config.getDirMidi(), song.getMidiFile()).toFile());
+            };
+        }
+
+        PlaylistPlayer player = new PlaylistPlayer(sequencer, playlist, loader, store, journal);
+        player.addSongListener((song, gapNanos) -> {
+            journal.info("Playing song " + song.getSongIdx() + ": " + song.getTitle());
+            if ((song.getPresetIdx() >= 0) && (presetCache != null)) {
+                selectPreset(song.getPresetIdx());
             }
+        });
 
-            System.out.println();
+        player.play(replaycnt);
+        try {
+            player.awaitEnd(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        // Display status and data of a KeyPressure message.  Data may come
-        // in pairs after the status byte.
-        private void displayKeyPressure(MidiMessage message) {
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println(" Bad MIDI message");
-                return;
-            }
+        journal.info(player.getGaps().toString());
+        if (sequencer instanceof PrecisionSequencer) {
+            journal.info(((PrecisionSequencer) sequencer).getJitter().toString());
+        }
+        player.close();
+    }
 
-            System.out.print(" = Key Pressure, Channel " + midiChannelToInt(message) + "\n\t");
 
-            byte[] bytes = message.getMessage();
-            for (int i = 1; i < message.getLength(); i += 2) {
-                if ( i > 1 ) {
-                    System.out.print("; ");
-                }
-                System.out.printf( "Note Number %d, Pressure %d", byteToInt(bytes[i]), byteToInt(bytes[i + 1]) );
-            }
+    /**
+     * Return a specific synthesizer object by setting the system property, otherwise the default
+     */
+    private Synthesizer getSynthesizer() {
+        if (! SYNTH_DEV_NAME.isEmpty() || ! "default".equalsIgnoreCase(SYNTH_DEV_NAME)) {
+            System.setProperty(SYNTH_PROP_KEY, SYNTH_DEV_NAME);
+        }
 
-            System.out.println();
+        try {
+            return MidiSystem.getSynthesizer();
         }
+        catch (MidiUnavailableException e) {
+            System.err.println("Error getting synthesizer");
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        // Display status and data of a PitchBend message.  Data may come
-        // in pairs after the status byte.
-        private void displayPitchBend(MidiMessage message) {
-            if (message.getLength() < 3 || message.getLength() % 2 == 0) {
-                System.out.println(" Bad MIDI message");
-                return;
-            }
+    /**
+     * Return a specific transmitter object by setting the system property, otherwise the default
+     */
+    private Transmitter getTransmitter() {
 
-            System.out.print(" = Pitch Bend, Channel " + midiChannelToInt(message) + "\n\t");
+        String indevice = config.getInDevice();
 
-            byte[] bytes = message.getMessage();
-            for (int i = 1; i < message.getLength(); i += 2) {
-                if ( i > 1 ) {
-                    System.out.print("; ");
+        // Fast path: the preferred keyboard from the device discovery
+        MidiDevice device = discovery.findPreferred(indevice, false);
+        if (device != null) {
+            try {
+                if (!device.isOpen()) {
+                    device.open();
                 }
-                System.out.printf( "Value %d", bytesToInt(bytes[i], bytes[i + 1]) );
+                System.out.println("Opened MIDI In Device *** " + device.getDeviceInfo().getName() + " ***");
+                inDevice = device;
+                return device.getTransmitter();
             }
+            catch (MidiUnavailableException e) {
+                System.err.println("Failed to open MIDI In device " + device.getDeviceInfo().getName() + ": " + e);
+            }
+        }
 
-            System.out.println();
+        if (!indevice.isEmpty()) {
+            TRANS_DEV_NAME = TRANS_PROP_KEY + "#" + indevice;
+            System.out.println("TRANS_DEV_NAME set to: " + TRANS_DEV_NAME);
         }
 
-        // Display status and data of a ProgramChange message
-        private void displayProgramChange(MidiMessage message) {
-            if (message.getLength() < 2) {
-                System.out.println(" Bad MIDI message");
-                return;
-            }
+        if (! TRANS_DEV_NAME.isEmpty() && ! "default".equalsIgnoreCase(TRANS_DEV_NAME)) {
+            System.setProperty(TRANS_PROP_KEY, TRANS_DEV_NAME);
+        }
 
-            System.out.print(" = Program Change, Channel " + midiChannelToInt(message) + "\n\t");
+        try {
+            return MidiSystem.getTransmitter();
+        }
+        catch (MidiUnavailableException e) {
+            System.err.println("No External MIDI keyboard available! Please connect a USB keyboard.");
+            //e.printStackTrace();
+            return null;
+        }
+    }
 
-            byte[] bytes = message.getMessage();
-            for (int i = 1; i < message.getLength(); i++) {
-                if ( i > 1 ) {
-                    System.out.print(", ");
-                }
-                System.out.println("Program Number " + byteToInt(bytes[i]));
-            }
+    /**
+     * Rreturn a specific sequencer object by setting the system property, otherwise the default.
+     * With sequencer "precise" in AppConfig, return the high resolution PrecisionSequencer instead
+     */
+    private Sequencer getSequencer() {
+        if ("precise".equalsIgnoreCase(config.getSequencer())) {
+            return new PrecisionSequencer(config.getSequencerSpin() * 1000L);
         }
 
-        // Display status and data of a ChannelPressure message
-        private void displayChannelPressure(MidiMessage message) {
-            if (message.getLength() < 2) {
-                System.out.println(" Bad MIDI message");
-                return;
-            }
+        if (!SEQ_DEV_NAME.isEmpty()
+                || !"default".equalsIgnoreCase(SEQ_DEV_NAME)) {
+            System.setProperty(SEQ_PROP_KEY, SEQ_DEV_NAME);
+        }
 
-            System.out.print(" = Channel Pressure, Channel " + midiChannelToInt(message) + "\n\t");
+        try {
+            return MidiSystem.getSequencer();
+        }
+        catch (MidiUnavailableException e) {
+            System.err.println("Error getting sequencer");
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            byte[] bytes = message.getMessage();
-            for (int i = 1; i < message.getLength(); i++) {
-                if ( i > 1 ) {
-                    System.out.print(", ");
-                }
-                System.out.println("Pressure " + byteToInt(bytes[i]));
-            }
-        }
-
-        // Display system messages.  Some may have data.
-        //
-        // "Begin System Exclusive" stops data interpretation, "End of
-        // System Exclusive" starts it again
-        private void displaySystemMessage(MidiMessage message) {
-            byte[] bytes = message.getMessage();
-
-            switch (message.getStatus()) {
-                case 0xf0:
-                    System.out.println(" = Begin System Exclusive");
-                    isSystemExclusiveData = true;
-                    break;
-                case 0xf1:
-                    if (bytes.length < 2) {
-                        System.out.println(" Bad Data");
-                    } else {
-                        System.out.println(" = MIDI Time Code 1/4 Frame, Time Code " + byteToInt(bytes[1]));
-                    }
-                    break;
-                case 0xf2:
-                    if (bytes.length < 3) {
-                        System.out.println(" Bad Data");
-                    } else {
-                        System.out.println(" = Song Position, Pointer " + bytesToInt(bytes[1], bytes[2]));
-                    }
-                case 0xf3:
-                    if (bytes.length < 2) {
-                        System.out.println(" Bad Data");
-                    } else {
-                        System.out.println(" = Song Select, Song " + byteToInt(bytes[1]));
-                    }
-                    break;
-                case 0xf6:
-                    System.out.println(" = Tune Request");
-                    break;
-                case 0xf7:
-                    System.out.println(" = End of System Exclusive");
-                    isSystemExclusiveData = false;
-                    break;
-                case 0xf8:
-                    System.out.println(" = Timing Clock"); // ignored
-                    break;
-                case 0xfa:
-                    System.out.println(" = Start");
-                    break;
-                case 0xfb:
-                    System.out.println(" = Continue");
-                    break;
-                case 0xfc:
-                    System.out.println(" = Stop");
-                    break;
-                case 0xfe:
-                    System.out.println(" = Active Sensing"); // ignored
-                    break;
-                case 0xff:
-                    System.out.println(" = System Reset");
-                    break;
-                default:
-                    System.out.println(" Unknow System Message");
-                    displayRawData(message);
-            }
-        }
-
-        private int byteToInt(byte b) {
-            return b & 0xff;
-        }
-
-        // Two 7-bit bytes
-        private int bytesToInt(byte msb, byte lsb) {
-            return byteToInt(msb) * 128 + byteToInt(lsb);
-        }
-
-        private int midiChannelToInt(MidiMessage message) {
-            return (message.getStatus() & 0x0f) + 1;
-        }
-    }
-
-    // Check if at least one MIDI (port) device is correctly installed
-    public Receiver openMidiReceiver() {
+    // Check if at least one MIDI (port) device is correctly installed and open the preferred device
+    public Receiver openMidiReceiver(String seloutdevice) {
         Receiver midircv = null;
         MidiDevice selectedDevice;
 
-        System.out.println("** openMidiReceiver **");
+        journal.info("** openMidiReceiver **");
 
         try {
-            selectedDevice = MidiSystem.getSynthesizer();
-            MidiDevice.Info[] devices = MidiSystem.getMidiDeviceInfo();
-
-            if (devices.length == 0) {
-                System.err.println("Error: No MIDI devices found");
-                return midircv;
+            // Fast path: the preferred device, otherwise the first device with receivers, otherwise the synthesizer
+            selectedDevice = discovery.findPreferred(seloutdevice, true);
+            if (selectedDevice != null) {
+                journal.info("Matched preferred MIDI Device: " + selectedDevice.getDeviceInfo().toString());
             }
             else {
-                boolean binit = true;
-
-                // Loop through all devices looking to Synth or Sound Modules
-                for (MidiDevice.Info dev : devices) {
-                    if (MidiSystem.getMidiDevice(dev).getMaxReceivers() == 0) {
-                        continue;
-                    }
-
-                    if (binit) {
-                        // Default to first device and override with preferred
-                        selectedDevice = MidiSystem.getMidiDevice(dev);
-                        binit = false;
-
-                        System.out.println("Default MIDI Out Device: " + dev.toString());
-                    }
-                    else
-                        System.out.println("Found MIDI Out Device " + dev.getName());
-
-                    if ( dev.getName().contains(seloutdevice) ) {
-                        selectedDevice = MidiSystem.getMidiDevice(dev);
-
-                        System.out.println("Matched preferred MIDI Device: " + dev.toString());
+                for (MidiDevice device : discovery.getResult().getDevices()) {
+                    if (device.getMaxReceivers() != 0) {
+                        selectedDevice = device;
+                        journal.info("Default MIDI Out Device: " + device.getDeviceInfo().toString());
                         break;
                     }
                 }
             }
 
+            if (selectedDevice == null) {
+                if (discovery.getResult().getDevices().isEmpty()) {
+                    journal.error("Error: No MIDI devices found");
+                }
+                selectedDevice = MidiSystem.getSynthesizer();
+            }
+
             if (!selectedDevice.isOpen()) {
                 try {
                     selectedDevice.open();
 
-                    System.out.println("Opened MIDI Out Device *** " + selectedDevice.getDeviceInfo().getName() + " ***");
+                    journal.info("Opened MIDI Out Device *** " + selectedDevice.getDeviceInfo().getName() + " ***");
                 }
                 catch (MidiUnavailableException e) {
-                    System.err.println("Error selecting MIDI Out device " + e);
+                    journal.error("Error selecting MIDI Out device " + e);
                     return midircv;
                 }
-
-                // Found output Device or Synth
-                midircv = selectedDevice.getReceiver();
             }
+
+            // Found output Device or Synth. A device shared by two modules is already open
+            midircv = wrapDeviceReceiver(selectedDevice, selectedDevice.getReceiver());
+            openedOutDevices.put(seloutdevice, selectedDevice);
         } catch (MidiUnavailableException ex) {
-            System.err.println("Error: Could not open MIDI synthesizer: " + ex);
+            journal.error("Error: Could not open MIDI synthesizer: " + ex);
         }
 
         return midircv;
     }
 
+    // With runningstatus in AppConfig, put a WireEncoder in front of external MIDI ports. Synthesizers are left as
+    // they are. A device Receiver takes messages, not bytes, so the encoder passes them on one by one and only counts
+    private Receiver wrapDeviceReceiver(MidiDevice device, Receiver receiver) {
+        if (!config.getRunningStatus() || (device instanceof Synthesizer)) {
+            return receiver;
+        }
+
+        WireEncoder encoder = new WireEncoder(device.getDeviceInfo().getName(), new WireEncoder.ReceiverWire(receiver));
+        wireEncoders.add(encoder);
+        return encoder;
+    }
+
     // Create a sequence and set all MIDI events
     private Sequence getMidiInputData() {
         int ticksPerQuarterNote = 4;
         Sequence seq;
         try {
             seq = new Sequence(Sequence.PPQ, ticksPerQuarterNote);
-            setMidiEvents(seq.createTrack());
+            Track track = seq.createTrack();
+            setTempo(track, 144);
+            setMidiEvents(track);
         }
         catch (InvalidMidiDataException e) {
             e.printStackTrace();
@@ -726,108 +800,172 @@ public class KeyboardToSoundModule {
         addMidiEvent(track, ShortMessage.NOTE_OFF, channel, note, 0, tick + 31);
     }
 
-    // Create a MIDI event and add it to the track
-    private void addMidiEvent(Track track, int command, int channel, int data1, int data2, int tick) {
-        ShortMessage message = new ShortMessage();
+    // Tempo meta event at tick 0, so the demo plays at the same tempo every time it is set on the Sequencer
+    private void setTempo(Track track, int bpm) {
+        int microsPerQuarter = 60000000 / bpm;
+        byte[] data = {(byte) (microsPerQuarter >> 16), (byte) (microsPerQuarter >> 8), (byte) microsPerQuarter};
         try {
-            message.setMessage(command, channel, data1, data2);
+            track.add(new MidiEvent(new MetaMessage(0x51, data, data.length), 0));
         }
         catch (InvalidMidiDataException e) {
             e.printStackTrace();
         }
-        track.add(new MidiEvent(message, tick));
     }
 
-    private void sleep(long millis) {
+    // Create a MIDI event and add it to the track
+    private void addMidiEvent(Track track, int command, int channel, int data1, int data2, int tick) {
+        ShortMessage message = new ShortMessage();
         try {
-            Thread.sleep(millis);
+            message.setMessage(command, channel, data1, data2);
         }
-        catch (InterruptedException e) {
+        catch (InvalidMidiDataException e) {
             e.printStackTrace();
         }
+        track.add(new MidiEvent(message, tick));
     }
 
     // List all Midi Devices detected
     private void loadMidiDevices() {
-        MidiDevice.Info[] deviceInfo = MidiSystem.getMidiDeviceInfo();
-        if (deviceInfo.length == 0) {
+        MidiDeviceDiscovery.Result devices = discovery.getResult();
+        if (devices.getDevices().isEmpty()) {
             System.out.println("No MIDI devices found");
             return;
         }
 
-        for (MidiDevice.Info info : deviceInfo) {
-            System.out.println("**********************");
-            System.out.println("Device name: " + info.getName());
-            System.out.println("Description: " + info.getDescription());
-            System.out.println("Vendor: " + info.getVendor());
-            System.out.println("Version: " + info.getVersion());
+        synchronized (InDeviceList) {
+            InDeviceList.clear();
+            InDeviceList.addAll(devices.getInDevices());
+        }
+        synchronized (OutDeviceList) {
+            OutDeviceList.clear();
+            OutDeviceList.addAll(devices.getOutDevices());
+        }
 
-            try {
-                MidiDevice device = MidiSystem.getMidiDevice(info);
-                addDeviceType(device, false);
+        journal.info("Found " + devices.getDevices().size() + " MIDI devices in "
+                + (devices.getProbeNanos() / 1000000) + " ms");
+    }
 
-                System.out.println("Maximum receivers: " + maxToString(device.getMaxReceivers()));
-                System.out.println("Maximum transmitters: " + maxToString(device.getMaxTransmitters()));
-            }
-            catch (MidiUnavailableException e) {
-                System.out.println("Can't get MIDI device");
-                e.printStackTrace();
-            }
+    // Watch the keyboard and every Sound Module device, and reconnect them when they are plugged back in
+    private void startHotplugMonitor() {
+        int pollMillis = config.getHotplugPoll();
+        if (pollMillis <= 0) {
+            return;
         }
-    }
 
-    /*
-     * Add MIDI In and Out Devices to respective lists for future lookup
-     * Flag (override) named 1x IN and 1 x Out Device as active
-     */
-    private void addDeviceType(MidiDevice device, boolean isactive) {
+        hotplugMonitor = new DeviceHotplugMonitor(discovery.getProviders(), InDeviceList, OutDeviceList, journal);
 
-        if (device instanceof Sequencer) {
-            System.out.println("This is a sequencer");
-            InDeviceList.add(new StatusMidiDevice(device, false));
-        }
-        else if (device instanceof Synthesizer) {
-            System.out.println("This is a synthesizer");
-            OutDeviceList.add(new StatusMidiDevice(device, false));
+        if ((selindevice != null) && !selindevice.isEmpty()) {
+            String name = selindevice;
+            hotplugMonitor.watch(name, false, inDevice, device -> {
+                // Switched to another keyboard in AppConfig meanwhile
+                if (!name.equals(config.getInDevice())) {
+                    return;
+                }
+                if (!device.isOpen()) {
+                    device.open();
+                }
+                device.getTransmitter().setReceiver(displayReceiver);
+                inDevice = device;
+            });
         }
-        else {
-            System.out.print("This is a MIDI port ");
-            if (device.getMaxReceivers() != 0) {
-                System.out.println("IN ");
 
-                //boolean isactive = false;
-                if ( device.getDeviceInfo().getName().contains(selindevice) ) {
-                    isactive = true;
-                }
-                InDeviceList.add(new StatusMidiDevice(device, isactive));
+        for (int idx = 0; idx < ModuleRegistry.MAX_MODULES; idx++) {
+            String name = config.getModuleDevice(idx);
+            if (!modules.isRegistered(idx) || (name == null) || name.isEmpty()) {
+                continue;
             }
-            if (device.getMaxTransmitters() != 0) {
-                System.out.println("OUT ");
 
-                //boolean isactive = false;
-                if ( device.getDeviceInfo().getName().contains(seloutdevice) ) {
-                    isactive = true;
+            int moduleIdx = idx;
+            hotplugMonitor.watch(name, true, openedOutDevices.get(name), device -> {
+                if (!name.equals(config.getModuleDevice(moduleIdx))) {
+                    return;
+                }
+                if (!device.isOpen()) {
+                    device.open();
+                }
+                Receiver receiver = wrapDeviceReceiver(device, device.getReceiver());
+                Receiver previous = modules.reconnect(moduleIdx, receiver);
+
+                // The sequencer plays to module 0 through the registry, so it follows the reconnect
+                if (moduleIdx == 0) {
+                    midircv = receiver;
                 }
-                OutDeviceList.add(new StatusMidiDevice(device, isactive));
+
+                if (previous != null) {
+                    previous.close();
+                }
+            });
+        }
+
+        hotplugMonitor.addListener(new DeviceHotplugMonitor.Listener() {
+            @Override
+            public void deviceRemoved(String name) {
+                journal.info("MIDI device unplugged: " + name);
+            }
+
+            @Override
+            public void deviceAdded(String name) {
+                journal.info("MIDI device plugged in: " + name);
             }
+
+            @Override
+            public void reconnected(String name, long reconnectNanos, long downNanos) {
+                journal.info(String.format("Reconnected %s in %.2f ms, after %.1f s down", name,
+                        reconnectNanos / 1e6, downNanos / 1e9));
+            }
+        });
+        hotplugMonitor.start(pollMillis);
+    }
+
+    // Pre-parsed store of the MIDI files in dirmidi, indexed again if the files changed. Null if there is no
+    // dirmidi or config directory, or the store can't be built; songs are then read from their MIDI files
+    private MidiFileStore openMidiStore() {
+        if ((config.getDirMidi() == null) || (config.getDirConfig() == null)) {
+            return null;
+        }
+
+        Path dir = Paths.get(config.getDirMidi());
+        Path configDir = Paths.get(config.getDirConfig());
+        if (!Files.isDirectory(dir) || !Files.isDirectory(configDir)) {
+            return null;
+        }
+
+        try {
+            MidiFileStore store = MidiFileStore.openOrBuild(dir, configDir.resolve(config.getMidiStore()), journal);
+            journal.info("MIDI file store " + store.getPath() + ": " + store.size() + " songs");
+            return store;
+        }
+        catch (IOException ex) {
+            journal.error("Can't open MIDI file store: " + ex.getMessage());
+            return null;
         }
     }
 
-    private String maxToString(int max) {
-        return max == -1 ? "Unlimited" : String.valueOf(max);
+    // Device discovery cache in the config directory, null (in memory only) if there is no such directory
+    private Path getDeviceCachePath() {
+        if (config.getDirConfig() == null) {
+            return null;
+        }
+
+        Path dir = Paths.get(config.getDirConfig());
+        return Files.isDirectory(dir) ? dir.resolve(config.getDeviceCache()) : null;
     }
 
     public void listInDevices() {
         System.out.println("**********************");
-        for (StatusMidiDevice statusdevice : InDeviceList ) {
-            System.out.println("MIDI In:" + statusdevice.toString());
+        synchronized (InDeviceList) {
+            for (StatusMidiDevice statusdevice : InDeviceList ) {
+                System.out.println("MIDI In:" + statusdevice.toString());
+            }
         }
     }
 
     public void listOutDevices() {
         System.out.println("**********************");
-        for (StatusMidiDevice statusdevice : OutDeviceList ) {
-            System.out.println("MIDI Out:" + statusdevice.toString());
+        synchronized (OutDeviceList) {
+            for (StatusMidiDevice statusdevice : OutDeviceList ) {
+                System.out.println("MIDI Out:" + statusdevice.toString());
+            }
         }
     }
 
@@ -0,0 +1,78 @@
+package com.company;
+
+import java.io.PrintStream;
+
+/**
+ * End to end latency of the keyboard path, from message arrival in AMidiFXReceiver to the return of the output
+ * receiver's send(), kept per input channel, per layer and per output module.
+ *
+ * Arrival time is taken on entry to AMidiFXReceiver.send, as Transmitter timestamps are on the device clock
+ * (microseconds, often -1) and cannot be compared with System.nanoTime().
+ */
+public class LatencyStats {
+
+    private final LatencyHistogram[] byChannel = new LatencyHistogram[RoutingTable.CHANNELS];
+    private final LatencyHistogram[] byLayer = new LatencyHistogram[RoutingTable.MAX_LAYERS];
+    private final LatencyHistogram[] byModule = new LatencyHistogram[ModuleRegistry.MAX_MODULES];
+
+    public LatencyStats() {
+        for (int i = 0; i < byChannel.length; i++) {
+            byChannel[i] = new LatencyHistogram("Channel " + (i + 1));
+        }
+        for (int i = 0; i < byLayer.length; i++) {
+            byLayer[i] = new LatencyHistogram("Layer " + i);
+        }
+        for (int i = 0; i < byModule.length; i++) {
+            byModule[i] = new LatencyHistogram("Module " + i);
+        }
+    }
+
+    // Record a layered message: 0 based input channel, layer index and module index
+    public void recordLayer(int channel, int layer, int module, long nanos) {
+        byChannel[channel].record(nanos);
+        byLayer[layer].record(nanos);
+        byModule[module].record(nanos);
+    }
+
+    // Record a message forwarded without layering to module 0
+    public void recordForward(int channel, long nanos) {
+        byChannel[channel].record(nanos);
+        byModule[0].record(nanos);
+    }
+
+    public LatencyHistogram getChannel(int channel) {
+        return byChannel[channel];
+    }
+
+    public LatencyHistogram getLayer(int layer) {
+        return byLayer[layer];
+    }
+
+    public LatencyHistogram getModule(int module) {
+        return byModule[module];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : byChannel) histogram.reset();
+        for (LatencyHistogram histogram : byLayer) histogram.reset();
+        for (LatencyHistogram histogram : byModule) histogram.reset();
+    }
+
+    // Print every histogram that recorded something
+    public void dump(PrintStream out) {
+        out.println("**********************");
+        out.println("Latency from keyboard arrival to output send:");
+
+        dump(out, byChannel);
+        dump(out, byLayer);
+        dump(out, byModule);
+    }
+
+    private void dump(PrintStream out, LatencyHistogram[] histograms) {
+        for (LatencyHistogram histogram : histograms) {
+            if (histogram.getCount() > 0) {
+                out.println(histogram.toString());
+            }
+        }
+    }
+}
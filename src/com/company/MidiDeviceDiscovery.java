@@ -0,0 +1,394 @@
+package com.company;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MIDI device discovery, probing each MidiDeviceProvider once and in parallel.
+ *
+ * The result, the In and Out StatusMidiDevice lists, is kept in memory so later lookups do not enumerate again.
+ * A description of every device and the provider it came from is persisted with a fingerprint of the device set.
+ * On the next start findPreferred() uses that file to probe only the provider of the preferred device and open it
+ * while the full enumeration is still running. The file is rewritten when the fingerprint changes.
+ *
+ * Devices are sorted into the In and Out lists as the device list always has: sequencers and ports with receivers
+ * are In, synthesizers and ports with transmitters are Out.
+ */
+public class MidiDeviceDiscovery {
+
+    private static final String FINGERPRINT = "fingerprint=";
+
+    // Persisted description of a device
+    static class DeviceHint {
+        final int providerIdx;
+        final String provider;
+        final String name;
+        final String vendor;
+        final String version;
+        final int maxReceivers;
+        final int maxTransmitters;
+
+        DeviceHint(int providerIdx, String provider, String name, String vendor, String version, int maxReceivers,
+                   int maxTransmitters) {
+            this.providerIdx = providerIdx;
+            this.provider = provider;
+            this.name = name;
+            this.vendor = vendor;
+            this.version = version;
+            this.maxReceivers = maxReceivers;
+            this.maxTransmitters = maxTransmitters;
+        }
+
+        boolean matches(MidiDevice.Info info) {
+            return name.equals(info.getName()) && vendor.equals(info.getVendor()) && version.equals(info.getVersion());
+        }
+    }
+
+    /**
+     * Devices found by one enumeration
+     */
+    public static class Result {
+        private final List<MidiDevice> devices;
+        private final List<StatusMidiDevice> inDevices;
+        private final List<StatusMidiDevice> outDevices;
+        private final List<DeviceHint> hints;
+        private final long fingerprint;
+        private final long probeNanos;
+
+        Result(List<MidiDevice> devices, List<StatusMidiDevice> inDevices, List<StatusMidiDevice> outDevices,
+               List<DeviceHint> hints, long fingerprint, long probeNanos) {
+            this.devices = Collections.unmodifiableList(devices);
+            this.inDevices = Collections.unmodifiableList(inDevices);
+            this.outDevices = Collections.unmodifiableList(outDevices);
+            this.hints = hints;
+            this.fingerprint = fingerprint;
+            this.probeNanos = probeNanos;
+        }
+
+        // Every device, in provider order
+        public List<MidiDevice> getDevices() {
+            return devices;
+        }
+
+        public List<StatusMidiDevice> getInDevices() {
+            return inDevices;
+        }
+
+        public List<StatusMidiDevice> getOutDevices() {
+            return outDevices;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getProbeNanos() {
+            return probeNanos;
+        }
+    }
+
+    private final MidiDeviceProvider[] providers;
+    private final Path cacheFile;
+    private final ExecutorService probers;
+    private final List<DeviceHint> cachedHints;
+    private final long cachedFingerprint;
+
+    // Device, provider and cache file errors, dropped while null
+    private final DiagnosticJournal journal;
+
+    private volatile CompletableFuture<Result> result;
+
+    // Discover the installed providers, persisting to cacheFile (null for in memory only)
+    public MidiDeviceDiscovery(Path cacheFile, DiagnosticJournal journal) {
+        this(installedProviders(), cacheFile, journal);
+    }
+
+    public MidiDeviceDiscovery(MidiDeviceProvider[] providers, Path cacheFile) {
+        this(providers, cacheFile, null);
+    }
+
+    public MidiDeviceDiscovery(MidiDeviceProvider[] providers, Path cacheFile, DiagnosticJournal journal) {
+        this.providers = providers.clone();
+        this.cacheFile = cacheFile;
+        this.journal = journal;
+        this.probers = Executors.newFixedThreadPool(Math.max(1, providers.length), runnable -> {
+            Thread thread = new Thread(runnable, "MIDI device probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<DeviceHint> hints = new ArrayList<>();
+        this.cachedFingerprint = readCache(hints);
+        this.cachedHints = hints;
+    }
+
+    // Providers registered with the Java Sound service loader, as MidiSystem uses them
+    public static MidiDeviceProvider[] installedProviders() {
+        List<MidiDeviceProvider> providers = new ArrayList<>();
+        for (MidiDeviceProvider provider : ServiceLoader.load(MidiDeviceProvider.class)) {
+            providers.add(provider);
+        }
+        return providers.toArray(new MidiDeviceProvider[0]);
+    }
+
+    public MidiDeviceProvider[] getProviders() {
+        return providers.clone();
+    }
+
+    // Start the full enumeration, if it has not been started. Returns at once
+    public synchronized CompletableFuture<Result> start(String inName, String outName) {
+        if (result == null) {
+            result = probe(inName, outName);
+        }
+        return result;
+    }
+
+    // Enumerate again, e.g. after devices were plugged in
+    public synchronized CompletableFuture<Result> refresh(String inName, String outName) {
+        result = probe(inName, outName);
+        return result;
+    }
+
+    // Result of the last enumeration, waiting for it if it is still running
+    public Result getResult() {
+        CompletableFuture<Result> current = result;
+        if (current == null) {
+            current = start("", "");
+        }
+        return current.join();
+    }
+
+    // Preferred device by name: from the persisted hints, probing only the provider that had it, else from the full
+    // enumeration. needReceiver picks a device to send to, otherwise a device to receive from. Null if not found
+    public MidiDevice findPreferred(String name, boolean needReceiver) {
+        if ((name == null) || name.isEmpty()) {
+            return null;
+        }
+
+        for (DeviceHint hint : cachedHints) {
+            if (!hint.name.contains(name) || ((needReceiver ? hint.maxReceivers : hint.maxTransmitters) == 0)) {
+                continue;
+            }
+
+            if ((hint.providerIdx >= providers.length)
+                    || !providers[hint.providerIdx].getClass().getName().equals(hint.provider)) {
+                continue;
+            }
+
+            MidiDeviceProvider provider = providers[hint.providerIdx];
+            try {
+                for (MidiDevice.Info info : provider.getDeviceInfo()) {
+                    if (hint.matches(info)) {
+                        return provider.getDevice(info);
+                    }
+                }
+            }
+            catch (RuntimeException ex) {
+                // Stale hint or provider failure: fall back to the full enumeration
+            }
+        }
+
+        for (MidiDevice device : getResult().getDevices()) {
+            int max = needReceiver ? device.getMaxReceivers() : device.getMaxTransmitters();
+            if ((max != 0) && device.getDeviceInfo().getName().contains(name)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    public void close() {
+        probers.shutdownNow();
+    }
+
+    private CompletableFuture<Result> probe(String inName, String outName) {
+        long start = System.nanoTime();
+
+        List<CompletableFuture<List<Probed>>> probes = new ArrayList<>();
+        for (int idx = 0; idx < providers.length; idx++) {
+            int providerIdx = idx;
+            MidiDeviceProvider provider = providers[idx];
+            probes.add(CompletableFuture.supplyAsync(() -> probeProvider(providerIdx, provider), probers));
+        }
+
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<MidiDevice> devices = new ArrayList<>();
+            List<StatusMidiDevice> inDevices = new ArrayList<>();
+            List<StatusMidiDevice> outDevices = new ArrayList<>();
+            List<DeviceHint> hints = new ArrayList<>();
+            long fingerprint = 1;
+
+            for (CompletableFuture<List<Probed>> probe : probes) {
+                for (Probed probed : probe.join()) {
+                    devices.add(probed.device);
+                    classify(probed.device, inName, outName, inDevices, outDevices);
+                    hints.add(probed.hint);
+                    fingerprint = 31 * fingerprint + fingerprintOf(probed.hint);
+                }
+            }
+
+            Result discovered = new Result(devices, inDevices, outDevices, hints, fingerprint,
+                    System.nanoTime() - start);
+            if (fingerprint != cachedFingerprint) {
+                writeCache(discovered);
+            }
+            return discovered;
+        });
+    }
+
+    // Device and its description, probed once
+    private static class Probed {
+        final MidiDevice device;
+        final DeviceHint hint;
+
+        Probed(MidiDevice device, DeviceHint hint) {
+            this.device = device;
+            this.hint = hint;
+        }
+    }
+
+    private List<Probed> probeProvider(int providerIdx, MidiDeviceProvider provider) {
+        List<Probed> probed = new ArrayList<>();
+
+        try {
+            for (MidiDevice.Info info : provider.getDeviceInfo()) {
+                try {
+                    MidiDevice device = provider.getDevice(info);
+                    DeviceHint hint = new DeviceHint(providerIdx, provider.getClass().getName(), info.getName(),
+                            info.getVendor(), info.getVersion(), device.getMaxReceivers(), device.getMaxTransmitters());
+                    probed.add(new Probed(device, hint));
+                }
+                catch (RuntimeException ex) {
+                    error("Can't get MIDI device " + info.getName() + ": " + ex.getMessage());
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            error("MIDI device provider failed " + provider.getClass().getName() + ": " + ex);
+        }
+
+        return probed;
+    }
+
+    // Sort a device into the In and Out lists, flagging the selected devices active
+    static void classify(MidiDevice device, String inName, String outName, List<StatusMidiDevice> inDevices,
+                         List<StatusMidiDevice> outDevices) {
+        if (device instanceof Sequencer) {
+            inDevices.add(new StatusMidiDevice(device, false));
+        }
+        else if (device instanceof Synthesizer) {
+            outDevices.add(new StatusMidiDevice(device, false));
+        }
+        else {
+            String name = device.getDeviceInfo().getName();
+            if (device.getMaxReceivers() != 0) {
+                inDevices.add(new StatusMidiDevice(device, isSelected(name, inName)));
+            }
+            if (device.getMaxTransmitters() != 0) {
+                outDevices.add(new StatusMidiDevice(device, isSelected(name, outName)));
+            }
+        }
+    }
+
+    private static boolean isSelected(String name, String selected) {
+        return (selected != null) && !selected.isEmpty() && name.contains(selected);
+    }
+
+    private static long fingerprintOf(DeviceHint hint) {
+        long hash = hint.providerIdx;
+        hash = 31 * hash + hint.provider.hashCode();
+        hash = 31 * hash + hint.name.hashCode();
+        hash = 31 * hash + hint.vendor.hashCode();
+        hash = 31 * hash + hint.version.hashCode();
+        hash = 31 * hash + hint.maxReceivers;
+        return 31 * hash + hint.maxTransmitters;
+    }
+
+    // Fills hints from the cache file. Returns its fingerprint, 0 if there is none
+    private long readCache(List<DeviceHint> hints) {
+        if ((cacheFile == null) || !Files.exists(cacheFile)) {
+            return 0;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if ((line == null) || !line.startsWith(FINGERPRINT)) {
+                return 0;
+            }
+            long fingerprint = Long.parseUnsignedLong(line.substring(FINGERPRINT.length()), 16);
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 7) {
+                    hints.add(new DeviceHint(Integer.parseInt(fields[0]), fields[1], fields[2], fields[3], fields[4],
+                            Integer.parseInt(fields[5]), Integer.parseInt(fields[6])));
+                }
+            }
+            return fingerprint;
+        }
+        catch (IOException | RuntimeException ex) {
+            error("Ignoring MIDI device cache " + cacheFile + ": " + ex.getMessage());
+            hints.clear();
+            return 0;
+        }
+    }
+
+    // Tab separated, one device per line after the fingerprint; written to a temp file and renamed
+    private void writeCache(Result discovered) {
+        if (cacheFile == null) {
+            return;
+        }
+
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(FINGERPRINT + Long.toHexString(discovered.fingerprint));
+                writer.newLine();
+                for (DeviceHint hint : discovered.hints) {
+                    writer.write(hint.providerIdx + "\t" + clean(hint.provider) + "\t" + clean(hint.name) + "\t"
+                            + clean(hint.vendor) + "\t" + clean(hint.version) + "\t" + hint.maxReceivers + "\t"
+                            + hint.maxTransmitters);
+                    writer.newLine();
+                }
+            }
+
+            try {
+                Files.move(tempFile, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ex) {
+            error("Failed to write MIDI device cache " + cacheFile + ": " + ex.getMessage());
+        }
+    }
+
+    // Cold path: device and cache file problems
+    private void error(String text) {
+        if (journal != null) {
+            journal.error(text);
+        }
+    }
+
+    private static String clean(String field) {
+        return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,583 @@
+package com.company;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-parsed store of the Standard MIDI Files in dirmidi, in one memory mapped cache file.
+ *
+ * Indexing reads every .mid file through a mapped buffer and flattens its tracks into a single tick ordered list of
+ * channel messages, kept as parallel primitive arrays (tick, status, data1, data2), plus a tempo map (tick, micros
+ * per quarter note). Other meta events are not kept. A file with SysEx events gets a directory entry flagged FLAG_SYSEX
+ * and no data, so it is played from the file with its SysEx. Layout of the store (big endian):
+ * 1. Header, 32 bytes: magic "AMSF", version, song count, directory offset
+ * 2. Directory, 112 bytes per song: file name (64 bytes UTF-8, zero padded), file size, last modified, data offset,
+ *    SMF division, event count, tempo count, end tick, flags
+ * 3. Data per song: ticks (int), status, data1, data2 (bytes), padding to 4, tempo ticks (int), tempo micros (int)
+ *
+ * Opening the store maps it and creates one StoredSong per file; getting a song is a map lookup and reading events
+ * creates no objects. PrecisionSequencer.setSong() plays the arrays as they are; a Sequence is only built when one is
+ * asked for.
+ */
+public class MidiFileStore {
+    public static final int MAGIC = 0x414D5346;     // "AMSF"
+    public static final int VERSION = 2;
+
+    // Directory entry flags
+    public static final int FLAG_SYSEX = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 112;
+    static final int NAME_SIZE = 64;
+
+    /**
+     * A song in the store: its events are read straight from the mapped arrays
+     */
+    public static class StoredSong {
+        private final ByteBuffer buffer;
+        private final String name;
+        private final long fileSize;
+        private final long lastModified;
+        private final int division;
+        private final int eventCount;
+        private final int tempoCount;
+        private final int endTick;
+        private final int flags;
+
+        private final int ticksOffset;
+        private final int statusOffset;
+        private final int data1Offset;
+        private final int data2Offset;
+        private final int tempoTicksOffset;
+        private final int tempoMicrosOffset;
+
+        StoredSong(ByteBuffer buffer, int entry) {
+            this.buffer = buffer;
+
+            byte[] nameBytes = new byte[NAME_SIZE];
+            int length = 0;
+            while ((length < NAME_SIZE) && (buffer.get(entry + length) != 0)) {
+                nameBytes[length] = buffer.get(entry + length);
+                length++;
+            }
+            this.name = new String(nameBytes, 0, length, StandardCharsets.UTF_8);
+
+            this.fileSize = buffer.getLong(entry + 64);
+            this.lastModified = buffer.getLong(entry + 72);
+            int dataOffset = (int) buffer.getLong(entry + 80);
+            this.division = buffer.getInt(entry + 88);
+            this.eventCount = buffer.getInt(entry + 92);
+            this.tempoCount = buffer.getInt(entry + 96);
+            this.endTick = buffer.getInt(entry + 100);
+            this.flags = buffer.getInt(entry + 104);
+
+            ticksOffset = dataOffset;
+            statusOffset = ticksOffset + eventCount * 4;
+            data1Offset = statusOffset + eventCount;
+            data2Offset = data1Offset + eventCount;
+            tempoTicksOffset = align4(data2Offset + eventCount);
+            tempoMicrosOffset = tempoTicksOffset + tempoCount * 4;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // SMF division: ticks per quarter note, or SMPTE frames (negative high byte) and ticks per frame
+        public int getDivision() {
+            return division;
+        }
+
+        // Sequence division type of getDivision(): PPQ or an SMPTE frame rate
+        public float getDivisionType() {
+            if ((division & 0x8000) == 0) {
+                return Sequence.PPQ;
+            }
+
+            int frames = -((byte) (division >> 8));
+            return (frames == 29) ? Sequence.SMPTE_30DROP : frames;
+        }
+
+        // Ticks per quarter note, or per frame
+        public int getResolution() {
+            return ((division & 0x8000) == 0) ? division : (division & 0xFF);
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        public int getEndTick() {
+            return endTick;
+        }
+
+        public int getTick(int event) {
+            return buffer.getInt(ticksOffset + event * 4);
+        }
+
+        public int getStatus(int event) {
+            return buffer.get(statusOffset + event) & 0xFF;
+        }
+
+        public int getData1(int event) {
+            return buffer.get(data1Offset + event);
+        }
+
+        public int getData2(int event) {
+            return buffer.get(data2Offset + event);
+        }
+
+        public int getTempoCount() {
+            return tempoCount;
+        }
+
+        public int getTempoTick(int change) {
+            return buffer.getInt(tempoTicksOffset + change * 4);
+        }
+
+        // Microseconds per quarter note from getTempoTick(change) on
+        public int getTempoMicros(int change) {
+            return buffer.getInt(tempoMicrosOffset + change * 4);
+        }
+
+        // Build a single track Sequence of the stored events and tempo map
+        public Sequence toSequence() throws InvalidMidiDataException {
+            Sequence sequence = new Sequence(getDivisionType(), getResolution());
+            Track track = sequence.createTrack();
+            for (int change = 0; change < tempoCount; change++) {
+                int micros = getTempoMicros(change);
+                byte[] data = {(byte) (micros >> 16), (byte) (micros >> 8), (byte) micros};
+                track.add(new MidiEvent(new MetaMessage(0x51, data, data.length), getTempoTick(change)));
+            }
+            for (int event = 0; event < eventCount; event++) {
+                int status = getStatus(event);
+                track.add(new MidiEvent(new ShortMessage(status & 0xF0, status & 0x0F, getData1(event),
+                        getData2(event)), getTick(event)));
+            }
+
+            // Keep trailing rests: Track moves its end of track to the last tick added
+            if (endTick > track.ticks()) {
+                track.add(new MidiEvent(new MetaMessage(PlaylistPlayer.END_OF_TRACK, new byte[0], 0), endTick));
+            }
+            return sequence;
+        }
+
+        @Override
+        public String toString() {
+            return "Stored Song " + name + ": " + eventCount + " events, " + tempoCount + " tempo changes, "
+                    + endTick + " ticks";
+        }
+    }
+
+    private final Path path;
+
+    // Every file indexed, and those of them that can be played from the store
+    private final Map<String, StoredSong> entries;
+    private final Map<String, StoredSong> songs;
+
+    private MidiFileStore(Path path, ByteBuffer buffer) throws IOException {
+        this.path = path;
+
+        if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)) {
+            throw new IOException("Not a MIDI file store: " + path);
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported MIDI file store version " + buffer.getShort(4) + ": " + path);
+        }
+
+        int count = buffer.getInt(8);
+        int directory = buffer.getInt(12);
+        Map<String, StoredSong> byName = new HashMap<>();
+        Map<String, StoredSong> playable = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            StoredSong song = new StoredSong(buffer, directory + i * ENTRY_SIZE);
+            byName.put(song.getName(), song);
+            if ((song.getFlags() & FLAG_SYSEX) == 0) {
+                playable.put(song.getName(), song);
+            }
+        }
+        this.entries = Collections.unmodifiableMap(byName);
+        this.songs = Collections.unmodifiableMap(playable);
+    }
+
+    // Map a store file
+    public static MidiFileStore open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MidiFileStore(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Open the store of dir, indexing the directory again first if files were added, removed or changed, or the store
+    // is of another version. Files skipped while indexing are reported to journal (null for none)
+    public static MidiFileStore openOrBuild(Path dir, Path path, DiagnosticJournal journal) throws IOException {
+        if (Files.exists(path)) {
+            try {
+                MidiFileStore store = open(path);
+                if (store.isCurrent(dir)) {
+                    return store;
+                }
+            }
+            catch (IOException ex) {
+                log(journal, "MIDI file store: indexing again, " + ex.getMessage());
+            }
+        }
+
+        build(dir, path, journal);
+        return open(path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Song by MIDI file name, null if it is not in the store or has SysEx events
+    public StoredSong get(String name) {
+        return songs.get(name);
+    }
+
+    public int size() {
+        return songs.size();
+    }
+
+    private boolean isCurrent(Path dir) throws IOException {
+        List<Path> files = listMidiFiles(dir);
+        if (files.size() != entries.size()) {
+            return false;
+        }
+
+        for (Path file : files) {
+            StoredSong song = entries.get(file.getFileName().toString());
+            if ((song == null) || (song.fileSize != Files.size(file))
+                    || (song.lastModified != Files.getLastModifiedTime(file).toMillis())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Path> listMidiFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{mid,MID,midi,MIDI}")) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    // Index every MIDI file in dir into a new store at path. Files that are not valid MIDI files are skipped, files
+    // with SysEx events are flagged to be played from the file; both are reported to journal (null for none).
+    // Returns the number of songs stored
+    public static int build(Path dir, Path path, DiagnosticJournal journal) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<ParsedSong> parsed = new ArrayList<>();
+        for (Path file : listMidiFiles(dir)) {
+            if (file.getFileName().toString().getBytes(StandardCharsets.UTF_8).length > NAME_SIZE) {
+                log(journal, "MIDI file store: skipping " + file + ", name too long");
+                continue;
+            }
+            try {
+                ParsedSong song = parse(file);
+                if (song.sysex) {
+                    log(journal, "MIDI file store: " + file + " has SysEx events, it is played from the file");
+                    song.events = 0;
+                    song.tempos = 0;
+                }
+                parsed.add(song);
+                files.add(file);
+            }
+            catch (IOException ex) {
+                log(journal, "MIDI file store: skipping " + file + ": " + ex.getMessage());
+            }
+        }
+
+        int directory = HEADER_SIZE;
+        long size = directory + (long) parsed.size() * ENTRY_SIZE;
+        long[] dataOffsets = new long[parsed.size()];
+        for (int i = 0; i < parsed.size(); i++) {
+            ParsedSong song = parsed.get(i);
+            dataOffsets[i] = size;
+            size = align4(size + song.events * 7L) + song.tempos * 8L;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("MIDI file store would exceed 2 GB: " + dir);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, (short) VERSION);
+        buffer.putInt(8, parsed.size());
+        buffer.putInt(12, directory);
+
+        for (int i = 0; i < parsed.size(); i++) {
+            ParsedSong song = parsed.get(i);
+            Path file = files.get(i);
+            int entry = directory + i * ENTRY_SIZE;
+
+            buffer.position(entry);
+            buffer.put(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            buffer.putLong(entry + 64, Files.size(file));
+            buffer.putLong(entry + 72, Files.getLastModifiedTime(file).toMillis());
+            buffer.putLong(entry + 80, dataOffsets[i]);
+            buffer.putInt(entry + 88, song.division);
+            buffer.putInt(entry + 92, song.events);
+            buffer.putInt(entry + 96, song.tempos);
+            buffer.putInt(entry + 100, song.endTick);
+            buffer.putInt(entry + 104, song.sysex ? FLAG_SYSEX : 0);
+
+            int offset = (int) dataOffsets[i];
+            for (int event = 0; event < song.events; event++) {
+                buffer.putInt(offset + event * 4, song.ticks[event]);
+                buffer.put(offset + song.events * 4 + event, song.status[event]);
+                buffer.put(offset + song.events * 5 + event, song.data1[event]);
+                buffer.put(offset + song.events * 6 + event, song.data2[event]);
+            }
+
+            int tempoOffset = align4(offset + song.events * 7);
+            for (int change = 0; change < song.tempos; change++) {
+                buffer.putInt(tempoOffset + change * 4, song.tempoTicks[change]);
+                buffer.putInt(tempoOffset + song.tempos * 4 + change * 4, song.tempoMicros[change]);
+            }
+        }
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, buffer.array());
+        try {
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return parsed.size();
+    }
+
+    private static void log(DiagnosticJournal journal, String text) {
+        if (journal != null) {
+            journal.error(text);
+        }
+    }
+
+    private static int align4(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    private static long align4(long offset) {
+        return (offset + 3) & ~3L;
+    }
+
+    // Flattened song, while indexing
+    static class ParsedSong {
+        int division;
+        int events;
+        int[] ticks = new int[1024];
+        byte[] status = new byte[1024];
+        byte[] data1 = new byte[1024];
+        byte[] data2 = new byte[1024];
+        int tempos;
+        int[] tempoTicks = new int[8];
+        int[] tempoMicros = new int[8];
+        int endTick;
+        boolean sysex;
+
+        void addEvent(int tick, int statusByte, int d1, int d2) {
+            if (events == ticks.length) {
+                ticks = Arrays.copyOf(ticks, events * 2);
+                status = Arrays.copyOf(status, events * 2);
+                data1 = Arrays.copyOf(data1, events * 2);
+                data2 = Arrays.copyOf(data2, events * 2);
+            }
+            ticks[events] = tick;
+            status[events] = (byte) statusByte;
+            data1[events] = (byte) d1;
+            data2[events] = (byte) d2;
+            events++;
+        }
+
+        void addTempo(int tick, int micros) {
+            if (tempos == tempoTicks.length) {
+                tempoTicks = Arrays.copyOf(tempoTicks, tempos * 2);
+                tempoMicros = Arrays.copyOf(tempoMicros, tempos * 2);
+            }
+            tempoTicks[tempos] = tick;
+            tempoMicros[tempos] = micros;
+            tempos++;
+        }
+    }
+
+    // Parse a Standard MIDI File through a mapped buffer
+    static ParsedSong parse(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static ParsedSong parse(ByteBuffer smf) throws IOException {
+        try {
+            if ((smf.remaining() < 14) || (smf.getInt(0) != 0x4D546864)) {       // "MThd"
+                throw new IOException("no MThd header");
+            }
+            int headerLength = smf.getInt(4);
+            int tracks = smf.getShort(10) & 0xFFFF;
+
+            ParsedSong song = new ParsedSong();
+            song.division = smf.getShort(12) & 0xFFFF;
+
+            // Events of all tracks, each track in tick order. Merged by sorting (tick, order added)
+            int pos = 8 + headerLength;
+            for (int track = 0; (track < tracks) && (pos + 8 <= smf.limit()); track++) {
+                int length = smf.getInt(pos + 4);
+                int start = pos + 8;
+                if (smf.getInt(pos) == 0x4D54726B) {                            // "MTrk"
+                    parseTrack(smf, start, Math.min(start + length, smf.limit()), song);
+                }
+                pos = start + length;
+            }
+
+            sortByTick(song);
+            return song;
+        }
+        catch (IndexOutOfBoundsException ex) {
+            throw new IOException("truncated MIDI file");
+        }
+    }
+
+    private static void parseTrack(ByteBuffer smf, int pos, int end, ParsedSong song) throws IOException {
+        int tick = 0;
+        int runningStatus = 0;
+
+        while (pos < end) {
+            // Variable length delta time
+            int delta = 0;
+            int b;
+            do {
+                b = smf.get(pos++) & 0xFF;
+                delta = (delta << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            tick += delta;
+
+            int status = smf.get(pos) & 0xFF;
+            if (status < 0x80) {
+                if (runningStatus == 0) {
+                    throw new IOException("data byte without status");
+                }
+                status = runningStatus;
+            }
+            else {
+                pos++;
+            }
+
+            if (status == 0xFF) {
+                int type = smf.get(pos++) & 0xFF;
+                int length = 0;
+                do {
+                    b = smf.get(pos++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+
+                if ((type == 0x51) && (length == 3)) {
+                    song.addTempo(tick, ((smf.get(pos) & 0xFF) << 16) | ((smf.get(pos + 1) & 0xFF) << 8)
+                            | (smf.get(pos + 2) & 0xFF));
+                }
+                pos += length;
+                if (type == PlaylistPlayer.END_OF_TRACK) {
+                    break;
+                }
+            }
+            else if ((status == 0xF0) || (status == 0xF7)) {
+                int length = 0;
+                do {
+                    b = smf.get(pos++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+                pos += length;
+                runningStatus = 0;
+                song.sysex = true;
+            }
+            else if (status >= 0xF0) {
+                throw new IOException("unexpected status " + Integer.toHexString(status));
+            }
+            else {
+                runningStatus = status;
+                int command = status & 0xF0;
+                int data1 = smf.get(pos++) & 0x7F;
+                int data2 = 0;
+                if ((command != 0xC0) && (command != 0xD0)) {
+                    data2 = smf.get(pos++) & 0x7F;
+                }
+                song.addEvent(tick, status, data1, data2);
+            }
+        }
+
+        song.endTick = Math.max(song.endTick, tick);
+    }
+
+    // Merge the tracks: sort events, then tempo changes, by tick. Ties keep the order they were added in
+    private static void sortByTick(ParsedSong song) {
+        long[] keys = new long[song.events];
+        for (int i = 0; i < song.events; i++) {
+            keys[i] = ((long) song.ticks[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] ticks = new int[song.events];
+        byte[] status = new byte[song.events];
+        byte[] data1 = new byte[song.events];
+        byte[] data2 = new byte[song.events];
+        for (int i = 0; i < song.events; i++) {
+            int from = (int) keys[i];
+            ticks[i] = song.ticks[from];
+            status[i] = song.status[from];
+            data1[i] = song.data1[from];
+            data2[i] = song.data2[from];
+        }
+        song.ticks = ticks;
+        song.status = status;
+        song.data1 = data1;
+        song.data2 = data2;
+
+        long[] tempoKeys = new long[song.tempos];
+        for (int i = 0; i < song.tempos; i++) {
+            tempoKeys[i] = ((long) song.tempoTicks[i] << 32) | i;
+        }
+        Arrays.sort(tempoKeys);
+
+        int[] tempoTicks = new int[song.tempos];
+        int[] tempoMicros = new int[song.tempos];
+        for (int i = 0; i < song.tempos; i++) {
+            int from = (int) tempoKeys[i];
+            tempoTicks[i] = song.tempoTicks[from];
+            tempoMicros[i] = song.tempoMicros[from];
+        }
+        song.tempoTicks = tempoTicks;
+        song.tempoMicros = tempoMicros;
+    }
+}
@@ -18,6 +18,8 @@ public class MidiLayer {
     private int octaveTran;
     private int moduleIdx;
     private int patchIdx;
+    private VelocityCurve velocityCurve = VelocityCurve.LINEAR;
+    private String name = "";
 
     // Layered channels out (defaulted): presetIdx, channelInIdx, (ChannelOutIdx & ModuleIdx) * 10, OctaveTran
     private byte[] channelOutStruct = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,};
@@ -48,6 +50,33 @@ public class MidiLayer {
         parseChannelOut();
     }
 
+    // Preset layer from an already compiled channel out structure, e.g. loaded from a PresetBank. No parsing.
+    // The structure only holds the low byte of presetIdx, so the full index is passed in
+    public MidiLayer(int presetIdx, byte[] channelOutStruct, int moduleIdx, int patchIdx, VelocityCurve velocityCurve) {
+
+        System.arraycopy(channelOutStruct, 0, this.channelOutStruct, 0, this.channelOutStruct.length);
+
+        this.presetIdx = presetIdx;
+        this.channelIdx = channelOutStruct[1];
+        this.octaveTran = channelOutStruct[channelOutStruct.length - 1];
+        this.moduleIdx = moduleIdx;
+        this.patchIdx = patchIdx;
+        this.velocityCurve = velocityCurve;
+
+        // Channel out string as it would be stored in the preset file
+        int last = 1;
+        for (int j = 3; j < channelOutStruct.length - 1; j = j + 2) {
+            if (channelOutStruct[j] != 0) last = j;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int j = 3; j <= last; j = j + 2) {
+            if (j > 3) sb.append('|');
+            sb.append(channelOutStruct[j]);
+        }
+        this.channelOutIdx = sb.toString();
+    }
+
     public int getPresetIdx() {
         return presetIdx;
     }
@@ -90,33 +119,68 @@ public class MidiLayer {
         this.patchIdx = patchIdx;
     }
 
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public VelocityCurve getVelocityCurve() {
+        return velocityCurve;
+    }
+    public void setVelocityCurve(VelocityCurve velocityCurve) {
+        this.velocityCurve = velocityCurve;
+    }
+
 
     // Parse Channel Out String into Byte Array to be shared with ARM Controller
+    // Channels are separated by ',' or '|', may have more than one digit and may be padded with spaces, e.g. "13, 0|14".
+    // Up to 10 channels are kept. Returns false if the string holds anything else
     // To do: In future, modify the Preset file structure to allow moduleIdx to be spcified at the Channel Out level
     // in order to allow for multiplexing input channels to multiple output modules
-    private boolean parseChannelOut() {
+    boolean parseChannelOut() {
 
         channelOutStruct[0] = (byte)(presetIdx & 0xFF);
         channelOutStruct[1] = (byte)(channelIdx & 0xFF);
+        for (int j = 2; j < channelOutStruct.length - 1; j++) {
+            channelOutStruct[j] = 0;
+        }
 
         // Convert the channel out string from preset into bytes
         byte[] outchannels = channelOutIdx.getBytes();
+        boolean valid = true;
 
         int i = 0, j = 2;
-        while (i < outchannels.length) {
-            // Skip out channel separator
-            if (outchannels[i] == '|') {
+        while ((i < outchannels.length) && (j < channelOutStruct.length - 1)) {
+            // Skip padding and out channel separators
+            byte b = outchannels[i];
+            if ((b == ' ') || (b == ',') || (b == '|')) {
                 i++;
+                continue;
             }
+            if ((b < '0') || (b > '9')) {
+                valid = false;
+                i++;
+                continue;
+            }
+
+            int channel = 0;
+            while ((i < outchannels.length) && (outchannels[i] >= '0') && (outchannels[i] <= '9')) {
+                channel = channel * 10 + (outchannels[i++] - '0');
+            }
+
             channelOutStruct[j] = (byte)(moduleIdx & 0xFF);
-            channelOutStruct[j+1] = (byte)(outchannels[i++] - 48);
+            channelOutStruct[j+1] = (byte)(channel & 0xFF);
             //System.out.print("moduleIdx: " + channelOutStruct[j] +  ", channelOutIdx: " + channelOutStruct[j+1]);
 
             j = j + 2;
         }
         //System.out.println(" <- Channel out byte array");
 
-        return true;
+        channelOutStruct[channelOutStruct.length - 1] = (byte)(octaveTran & 0xFF);
+
+        return valid;
     }
 
 
@@ -129,6 +193,6 @@ public class MidiLayer {
     public String toString() {
         return "Preset String = [presetIdx=" + presetIdx + ", channelIdx=" + channelIdx
                 + ", channelOutIdx=" + channelOutIdx + ", moduleIdx=" + moduleIdx
-                + ", patchIdx=" + patchIdx + "]";
+                + ", patchIdx=" + patchIdx + ", name=" + name + "]";
     }
 }
\ No newline at end of file
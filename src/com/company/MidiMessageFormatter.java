@@ -0,0 +1,158 @@
+package com.company;
+
+/**
+ * Turns journaled MIDI messages back into the text the display* methods used to print.
+ *
+ * Runs on the DiagnosticJournal formatter thread. A message is its packed status, data1 and data2 (see
+ * EventRing.pack) plus the original message length; SysEx and other long messages keep only their first two data
+ * bytes.
+ */
+public class MidiMessageFormatter {
+
+    private MidiMessageFormatter() {
+    }
+
+    // Display MIDI message
+    public static void format(StringBuilder sb, long timeStamp, int event, int length) {
+        int status = EventRing.status(event);
+        int data1 = EventRing.data1(event);
+        int data2 = EventRing.data2(event);
+
+        sb.append(timeStamp).append(" - Status: 0x").append(Integer.toHexString(status));
+
+        // Strip channel number out of status
+        int leftNibble = status & 0xf0;
+        int channel = (status & 0x0f) + 1;
+
+        // These statuses have MIDI channel numbers and data (except 0xf0 thru 0xff)
+        switch (leftNibble) {
+            case 0x80: formatNoteOff(sb, channel, data1, length); break;
+            case 0x90: formatNoteOn(sb, channel, data1, data2, length); break;
+            case 0xa0: formatPairs(sb, " = Key Pressure", channel, "Note Number ", data1, ", Pressure ", data2, length); break;
+            case 0xb0: formatPairs(sb, " = Controller Change", channel, "Controller ", data1, ", Value ", data2, length); break;
+            case 0xc0: formatSingle(sb, " = Program Change", channel, "Program Number ", data1, length); break;
+            case 0xd0: formatSingle(sb, " = Channel Pressure", channel, "Pressure ", data1, length); break;
+            case 0xe0: formatPitchBend(sb, channel, data1, data2, length); break;
+            case 0xf0: formatSystemMessage(sb, status, data1, data2, length); break;
+            default:
+                sb.append(" Unknown status");
+                formatRawData(sb, data1, data2, length);
+        }
+    }
+
+    // Note that a NoteOn with a velocity of 0 is synonymous with a NoteOff message.
+    private static void formatNoteOn(StringBuilder sb, int channel, int data1, int data2, int length) {
+        if (isBadPair(length)) {
+            sb.append(" Bad MIDI message");
+            return;
+        }
+
+        sb.append((data2 == 0) ? " = Note off" : " = Note on").append(", Channel ").append(channel);
+
+        if (data2 == 0) {
+            sb.append(", Note ").append(data1);
+            return;
+        }
+
+        sb.append("\n\tNumber ").append(data1).append(", Velocity ").append(data2);
+    }
+
+    private static void formatNoteOff(StringBuilder sb, int channel, int data1, int length) {
+        if (isBadPair(length)) {
+            sb.append(" Bad MIDI message");
+            return;
+        }
+
+        sb.append(" = Note off, Channel ").append(channel).append(", Note ").append(data1);
+    }
+
+    // Controller Change and Key Pressure
+    private static void formatPairs(StringBuilder sb, String name, int channel, String label1, int data1,
+                                    String label2, int data2, int length) {
+        if (isBadPair(length)) {
+            sb.append(" Bad MIDI message");
+            return;
+        }
+
+        sb.append(name).append(", Channel ").append(channel).append("\n\t")
+                .append(label1).append(data1).append(label2).append(data2);
+    }
+
+    // Program Change and Channel Pressure
+    private static void formatSingle(StringBuilder sb, String name, int channel, String label, int data1, int length) {
+        if (length < 2) {
+            sb.append(" Bad MIDI message");
+            return;
+        }
+
+        sb.append(name).append(", Channel ").append(channel).append("\n\t").append(label).append(data1);
+    }
+
+    private static void formatPitchBend(StringBuilder sb, int channel, int data1, int data2, int length) {
+        if (isBadPair(length)) {
+            sb.append(" Bad MIDI message");
+            return;
+        }
+
+        // Two 7-bit bytes
+        sb.append(" = Pitch Bend, Channel ").append(channel).append("\n\tValue ").append(data1 * 128 + data2);
+    }
+
+    // Display system messages.  Some may have data.
+    private static void formatSystemMessage(StringBuilder sb, int status, int data1, int data2, int length) {
+        switch (status) {
+            case 0xf0:
+                sb.append(" = Begin System Exclusive, Length ").append(length);
+                break;
+            case 0xf1:
+                if (length < 2) {
+                    sb.append(" Bad Data");
+                } else {
+                    sb.append(" = MIDI Time Code 1/4 Frame, Time Code ").append(data1);
+                }
+                break;
+            case 0xf2:
+                if (length < 3) {
+                    sb.append(" Bad Data");
+                } else {
+                    sb.append(" = Song Position, Pointer ").append(data1 * 128 + data2);
+                }
+                break;
+            case 0xf3:
+                if (length < 2) {
+                    sb.append(" Bad Data");
+                } else {
+                    sb.append(" = Song Select, Song ").append(data1);
+                }
+                break;
+            case 0xf6: sb.append(" = Tune Request"); break;
+            case 0xf7: sb.append(" = End of System Exclusive"); break;
+            case 0xf8: sb.append(" = Timing Clock"); break;
+            case 0xfa: sb.append(" = Start"); break;
+            case 0xfb: sb.append(" = Continue"); break;
+            case 0xfc: sb.append(" = Stop"); break;
+            case 0xfe: sb.append(" = Active Sensing"); break;
+            case 0xff: sb.append(" = System Reset"); break;
+            default:
+                sb.append(" Unknow System Message");
+                formatRawData(sb, data1, data2, length);
+        }
+    }
+
+    // Displays raw data as integers, if any
+    private static void formatRawData(StringBuilder sb, int data1, int data2, int length) {
+        if (length > 1) {
+            sb.append("\n\tRaw data: ").append(data1);
+            if (length > 2) {
+                sb.append(' ').append(data2);
+            }
+            if (length > 3) {
+                sb.append(" ...");
+            }
+        }
+    }
+
+    private static boolean isBadPair(int length) {
+        return (length < 3) || (length % 2 == 0);
+    }
+}
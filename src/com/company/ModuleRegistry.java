@@ -0,0 +1,155 @@
+package com.company;
+
+import javax.sound.midi.Receiver;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output Receivers per sound module, indexed by the MidiLayer moduleIdx.
+ *
+ * Module 0 is the primary output device and receives everything that is not layered. A moduleIdx without a
+ * registered module falls back to module 0, resolved at registration so note play is a plain array load.
+ * Modules registered as parallel get their own OutputPipeline, so a slow module never delays notes for another.
+ * Every module output is an OutputMerger, so the keyboard and the Sequencer can play to the same module at once.
+ * A replugged device is swapped in with reconnect() while notes are playing.
+ */
+public class ModuleRegistry {
+    public static final int MAX_MODULES = 2;
+
+    // Messages each source of an OutputMerger can queue while the other one is sending
+    public static final int MERGE_SIZE = 256;
+
+    private static final VarHandle RECEIVERS = MethodHandles.arrayElementVarHandle(OutputMerger[].class);
+
+    private final OutputMerger[] receivers = new OutputMerger[MAX_MODULES];
+    private final String[] names = new String[MAX_MODULES];
+    private final boolean[] registered = new boolean[MAX_MODULES];
+
+    // Everything opened through the registry, closed once each on close()
+    private final List<OutputMerger> opened = new ArrayList<>();
+
+    public ModuleRegistry() {
+    }
+
+    // Single module registry around an already opened Receiver
+    public ModuleRegistry(Receiver receiver) {
+        register(0, "Module 0", receiver);
+    }
+
+    // Register the output of a module, sent to directly from the calling thread
+    public void register(int moduleIdx, String name, Receiver receiver) {
+        if ((moduleIdx < 0) || (moduleIdx >= MAX_MODULES)) {
+            System.err.println("Module Registry: Invalid module index " + moduleIdx + " for " + name);
+            return;
+        }
+
+        OutputMerger merger = new OutputMerger(name, receiver, MERGE_SIZE);
+        receivers[moduleIdx] = merger;
+        names[moduleIdx] = name;
+        registered[moduleIdx] = true;
+        opened.add(merger);
+
+        // Point unregistered modules at the primary module
+        for (int i = 0; i < MAX_MODULES; i++) {
+            if (!registered[i]) {
+                receivers[i] = receivers[0];
+                names[i] = names[0];
+            }
+        }
+
+        System.out.println("Module Registry: Module " + moduleIdx + " is " + name);
+    }
+
+    // Register the output of a module, dispatched from its own output thread
+    public void registerParallel(int moduleIdx, String name, Receiver receiver, int pipelineSize) {
+        register(moduleIdx, name, new OutputPipeline(name, receiver, pipelineSize,
+                OutputPipeline.Backpressure.WAIT_NOTE_ON));
+    }
+
+    public boolean isRegistered(int moduleIdx) {
+        return (moduleIdx >= 0) && (moduleIdx < MAX_MODULES) && registered[moduleIdx];
+    }
+
+    // Receiver for a layer's moduleIdx, called from the keyboard Transmitter thread
+    public Receiver getReceiver(int moduleIdx) {
+        return (Receiver) RECEIVERS.getAcquire(receivers, moduleIdx);
+    }
+
+    // Receiver for the Sequencer playing to moduleIdx. Keyboard messages to the module take priority
+    public Receiver getSequencerInput(int moduleIdx) {
+        return getMerger(moduleIdx).getSequencerInput();
+    }
+
+    // Keyboard thread: hold the outputs of the modules in moduleMask (a bit per moduleIdx, see RoutingTable
+    // getModuleMask) for the layers of one message, so they go out together. Modules the message does not play on
+    // are left to the Sequencer
+    public void beginBatch(int moduleMask) {
+        for (int moduleIdx = 0; moduleIdx < MAX_MODULES; moduleIdx++) {
+            OutputMerger merger = batchMerger(moduleMask, moduleIdx);
+            if (merger != null) {
+                merger.beginBatch();
+            }
+        }
+    }
+
+    public void endBatch(int moduleMask) {
+        for (int moduleIdx = 0; moduleIdx < MAX_MODULES; moduleIdx++) {
+            OutputMerger merger = batchMerger(moduleMask, moduleIdx);
+            if (merger != null) {
+                merger.endBatch();
+            }
+        }
+    }
+
+    // Merger of a module in moduleMask, null if it is not in the mask or a lower module of the mask falls back to
+    // the same merger, so each merger is held once
+    private OutputMerger batchMerger(int moduleMask, int moduleIdx) {
+        if ((moduleMask & (1 << moduleIdx)) == 0) {
+            return null;
+        }
+
+        OutputMerger merger = getMerger(moduleIdx);
+        for (int i = 0; i < moduleIdx; i++) {
+            if (((moduleMask & (1 << i)) != 0) && (getMerger(i) == merger)) {
+                return null;
+            }
+        }
+        return merger;
+    }
+
+    // Merge of keyboard and Sequencer output of a module, for its counters
+    public OutputMerger getMerger(int moduleIdx) {
+        return (OutputMerger) RECEIVERS.getAcquire(receivers, moduleIdx);
+    }
+
+    // Point a registered module at the Receiver of its reconnected device. Returns the device Receiver it replaces,
+    // which the caller closes
+    public synchronized Receiver reconnect(int moduleIdx, Receiver device) {
+        if (!isRegistered(moduleIdx)) {
+            return null;
+        }
+
+        // Modules falling back to this one share its merger
+        OutputMerger merger = receivers[moduleIdx];
+        Receiver current = merger.getReceiver();
+        if (current instanceof OutputPipeline) {
+            return ((OutputPipeline) current).setReceiver(device);
+        }
+
+        System.out.println("Module Registry: Module " + moduleIdx + " reconnected");
+        return merger.setReceiver(device);
+    }
+
+    public String getName(int moduleIdx) {
+        return names[moduleIdx];
+    }
+
+    public void close() {
+        for (OutputMerger merger : opened) {
+            merger.close();
+        }
+        opened.clear();
+    }
+}
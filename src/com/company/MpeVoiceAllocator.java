@@ -0,0 +1,457 @@
+package com.company;
+
+import javax.sound.midi.ShortMessage;
+import java.util.Arrays;
+
+/**
+ * Voice allocation for an MPE keyboard, which plays every note on its own member channel of a zone.
+ *
+ * The layers of the zone's master channel in the RoutingTable are played, as AMidiFXReceiver layers a normal note,
+ * but every layer gets a pool of up to voicesPerLayer output channels starting at its output channel (wrapping from 16
+ * to 1). A note takes one channel of each layer's pool, so its pitch bend, pressure and timbre (CC74) reach only that
+ * channel and expression stays per note on the sound module. Pools of layers on one module never overlap: a pool ends
+ * before the output channel of another layer or a channel of an earlier pool, and a layer repeating the module and
+ * output channel of an earlier one gets no pool. All per note work is O(1) array work:
+ * 1. Free channels of a layer are a stack; channels in use are a list in allocation order
+ * 2. Per input channel and note, the pool channel it got on every layer; per member channel, the channels of its
+ *    latest note, which its expression goes to
+ * 3. A new voice first gets the member channel's current bend, pressure and timbre, then its Note On
+ *
+ * When a layer's pool is full the StealPolicy decides: end the oldest or quietest note and take its channel, share
+ * the oldest channel (expression is then last note wins on that channel), or drop the new note on that layer.
+ * Keyboard Transmitter thread only.
+ */
+public class MpeVoiceAllocator {
+
+    public static final int CC_TIMBRE = 74;
+
+    private static final int NOTES = 128;
+    private static final int NONE = -1;
+
+    public enum StealPolicy {
+        OLDEST,
+        QUIETEST,
+        SHARE,
+        NONE
+    }
+
+    // Where voices are played: module index, 0 based output channel
+    public interface VoiceSink {
+        void sendVoice(int module, int command, int channel, int data1, int data2);
+    }
+
+    /**
+     * MPE zone of the keyboard: a master channel and the member channels above it, 1 based, and how voices are
+     * allocated for it. Immutable
+     */
+    public static final class Zone {
+        private final int masterChannel;
+        private final int memberChannels;
+        private final int voicesPerLayer;
+        private final StealPolicy policy;
+
+        public Zone(int masterChannel, int memberChannels, int voicesPerLayer, StealPolicy policy) {
+            this.masterChannel = Math.max(1, Math.min(RoutingTable.CHANNELS, masterChannel));
+            this.memberChannels = Math.max(0, Math.min(RoutingTable.CHANNELS - this.masterChannel, memberChannels));
+            this.voicesPerLayer = Math.max(1, Math.min(RoutingTable.CHANNELS, voicesPerLayer));
+            this.policy = policy;
+        }
+
+        // Whether a 0 based input channel is the master or a member channel
+        public boolean contains(int channel) {
+            return (channel >= masterChannel - 1) && (channel < masterChannel + memberChannels);
+        }
+
+        public int getMasterChannel() {
+            return masterChannel;
+        }
+
+        public int getMemberChannels() {
+            return memberChannels;
+        }
+
+        public int getVoicesPerLayer() {
+            return voicesPerLayer;
+        }
+
+        public StealPolicy getPolicy() {
+            return policy;
+        }
+    }
+
+    private final RoutingTable routing;
+    private final Zone zone;
+    private final int master;
+    private final int voices;
+    private final StealPolicy policy;
+    private final int layers;
+
+    // Per layer * voices + pool index
+    private final byte[] poolChannel;
+    private final int[] notesOn;
+    private final int[] voiceKey;
+    private final int[] voiceVelocity;
+    private final int[] prev;
+    private final int[] next;
+
+    // Per layer
+    private final int[] poolSize;
+    private final int[] freeStack;
+    private final int[] freeCount;
+    private final int[] head;
+    private final int[] tail;
+
+    // Per (channel << 7 | note) * MAX_LAYERS + layer: pool index + 1, 0 if not playing on the layer
+    private final byte[] assigned = new byte[RoutingTable.CHANNELS * NOTES * RoutingTable.MAX_LAYERS];
+
+    // Per member channel * MAX_LAYERS + layer: pool index of its latest note
+    private final int[] memberVoice = new int[RoutingTable.CHANNELS * RoutingTable.MAX_LAYERS];
+
+    // Current expression per member channel, sent to a voice before its Note On
+    private final int[] bend = new int[RoutingTable.CHANNELS];
+    private final int[] pressure = new int[RoutingTable.CHANNELS];
+    private final int[] timbre = new int[RoutingTable.CHANNELS];
+
+    private int activeVoices = 0;
+    private long steals = 0;
+    private long dropped = 0;
+
+    // Voices for the layers of the zone's master channel. previous (may be null) hands over the current expression
+    // of the member channels
+    public MpeVoiceAllocator(RoutingTable routing, Zone zone, MpeVoiceAllocator previous) {
+        this.routing = routing;
+        this.zone = zone;
+        this.master = zone.getMasterChannel() - 1;
+        this.voices = zone.getVoicesPerLayer();
+        this.policy = zone.getPolicy();
+        this.layers = routing.getLayerCount(master);
+
+        int size = layers * voices;
+        poolChannel = new byte[size];
+        notesOn = new int[size];
+        voiceKey = new int[size];
+        voiceVelocity = new int[size];
+        prev = new int[size];
+        next = new int[size];
+        freeStack = new int[size];
+        poolSize = new int[layers];
+        freeCount = new int[layers];
+        head = new int[layers];
+        tail = new int[layers];
+
+        // Per module, a bit per output channel in use by a pool. The layers' own output channels are taken first
+        int modules = 0;
+        for (int layer = 0; layer < layers; layer++) {
+            modules = Math.max(modules, routing.getOutModule(master, layer) + 1);
+        }
+        int[] taken = new int[modules];
+        boolean[] owner = new boolean[layers];
+        for (int layer = 0; layer < layers; layer++) {
+            int module = routing.getOutModule(master, layer);
+            int bit = 1 << (routing.getOutChannel(master, layer) - 1);
+            owner[layer] = (taken[module] & bit) == 0;
+            taken[module] |= bit;
+        }
+
+        for (int layer = 0; layer < layers; layer++) {
+            int base = layer * voices;
+            int module = routing.getOutModule(master, layer);
+            int first = routing.getOutChannel(master, layer) - 1;
+
+            int count = 0;
+            if (owner[layer]) {
+                poolChannel[base + count++] = (byte) first;
+                int channel = (first + 1) % RoutingTable.CHANNELS;
+                while ((count < voices) && ((taken[module] & (1 << channel)) == 0)) {
+                    taken[module] |= 1 << channel;
+                    poolChannel[base + count++] = (byte) channel;
+                    channel = (channel + 1) % RoutingTable.CHANNELS;
+                }
+            }
+
+            for (int p = 0; p < count; p++) {
+                // Lowest channel on top of the stack
+                freeStack[base + p] = count - 1 - p;
+            }
+            poolSize[layer] = count;
+            freeCount[layer] = count;
+            head[layer] = NONE;
+            tail[layer] = NONE;
+        }
+        Arrays.fill(voiceKey, NONE);
+        Arrays.fill(memberVoice, NONE);
+
+        if (previous != null) {
+            System.arraycopy(previous.bend, 0, bend, 0, bend.length);
+            System.arraycopy(previous.pressure, 0, pressure, 0, pressure.length);
+            System.arraycopy(previous.timbre, 0, timbre, 0, timbre.length);
+        }
+        else {
+            Arrays.fill(bend, 8192);
+            Arrays.fill(timbre, 64);
+        }
+    }
+
+    public RoutingTable getRouting() {
+        return routing;
+    }
+
+    public Zone getZone() {
+        return zone;
+    }
+
+    // Output channels a layer plays its notes on, less than voicesPerLayer where other layers' channels are in the way
+    public int getPoolSize(int layer) {
+        return poolSize[layer];
+    }
+
+    // Layers whose pool is smaller than voicesPerLayer
+    public int getShortPools() {
+        int count = 0;
+        for (int layer = 0; layer < layers; layer++) {
+            if (poolSize[layer] < voices) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Note On from 0 based input channel: a voice on every layer
+    public void noteOn(int channel, int note, int velocity, VoiceSink sink) {
+        int key = (channel << 7) | note;
+
+        for (int layer = 0; layer < layers; layer++) {
+            // A repeated Note On without Note Off retriggers on the same voice
+            int p = assigned[key * RoutingTable.MAX_LAYERS + layer] - 1;
+            if (p < 0) {
+                p = allocate(layer, sink);
+                if (p < 0) {
+                    dropped++;
+                    continue;
+                }
+                assigned[key * RoutingTable.MAX_LAYERS + layer] = (byte) (p + 1);
+            }
+
+            int v = layer * voices + p;
+            voiceKey[v] = key;
+            voiceVelocity[v] = velocity;
+            memberVoice[channel * RoutingTable.MAX_LAYERS + layer] = p;
+
+            int module = routing.getOutModule(master, layer);
+            int out = poolChannel[v];
+            sink.sendVoice(module, ShortMessage.PITCH_BEND, out, bend[channel] & 0x7F, bend[channel] >> 7);
+            sink.sendVoice(module, ShortMessage.CHANNEL_PRESSURE, out, pressure[channel], 0);
+            sink.sendVoice(module, ShortMessage.CONTROL_CHANGE, out, CC_TIMBRE, timbre[channel]);
+            sink.sendVoice(module, ShortMessage.NOTE_ON, out, routing.getNote(master, layer, note),
+                    routing.getVelocity(master, layer, velocity));
+        }
+    }
+
+    // Note Off (or Note On velocity 0) from 0 based input channel: end its voice on every layer and free it
+    public void noteOff(int channel, int note, int velocity, VoiceSink sink) {
+        int key = (channel << 7) | note;
+
+        for (int layer = 0; layer < layers; layer++) {
+            int idx = key * RoutingTable.MAX_LAYERS + layer;
+            int p = assigned[idx] - 1;
+            if (p < 0) {
+                // Stolen or dropped
+                continue;
+            }
+            assigned[idx] = 0;
+
+            int v = layer * voices + p;
+            sink.sendVoice(routing.getOutModule(master, layer), ShortMessage.NOTE_OFF, poolChannel[v],
+                    routing.getNote(master, layer, note), velocity);
+            release(layer, p, key);
+        }
+    }
+
+    // End every note still playing, e.g. before a new routing or zone takes over the output channels
+    public void allNotesOff(VoiceSink sink) {
+        for (int key = 0; key < RoutingTable.CHANNELS * NOTES; key++) {
+            for (int layer = 0; layer < layers; layer++) {
+                if (assigned[key * RoutingTable.MAX_LAYERS + layer] != 0) {
+                    noteOff(key >> 7, key & 0x7F, 0, sink);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Pitch bend, channel pressure or timbre of a member channel: to the voices of its latest note. Poly pressure
+    // goes to the voices of its note
+    public void expression(int command, int channel, int data1, int data2, VoiceSink sink) {
+        int value;
+        switch (command) {
+            case ShortMessage.PITCH_BEND:
+                bend[channel] = data1 | (data2 << 7);
+                break;
+            case ShortMessage.CHANNEL_PRESSURE:
+                pressure[channel] = data1;
+                break;
+            case ShortMessage.CONTROL_CHANGE:
+                timbre[channel] = data2;
+                break;
+            default:
+                break;
+        }
+
+        for (int layer = 0; layer < layers; layer++) {
+            int p;
+            if (command == ShortMessage.POLY_PRESSURE) {
+                p = assigned[(((channel << 7) | data1) * RoutingTable.MAX_LAYERS) + layer] - 1;
+                value = routing.getNote(master, layer, data1);
+            }
+            else {
+                p = memberVoice[channel * RoutingTable.MAX_LAYERS + layer];
+                value = data1;
+            }
+
+            if (p >= 0) {
+                sink.sendVoice(routing.getOutModule(master, layer), command, poolChannel[layer * voices + p],
+                        value, data2);
+            }
+        }
+    }
+
+    // Pool index for a new note on a layer, NONE if the policy drops it
+    private int allocate(int layer, VoiceSink sink) {
+        int base = layer * voices;
+
+        if (freeCount[layer] > 0) {
+            int p = freeStack[base + --freeCount[layer]];
+            append(layer, p);
+            return p;
+        }
+        if (poolSize[layer] == 0) {
+            return NONE;
+        }
+
+        int p;
+        switch (policy) {
+            case OLDEST:
+                p = head[layer];
+                break;
+            case QUIETEST:
+                p = head[layer];
+                for (int q = next[base + p]; q != NONE; q = next[base + q]) {
+                    if (voiceVelocity[base + q] < voiceVelocity[base + p]) {
+                        p = q;
+                    }
+                }
+                break;
+            case SHARE:
+                // Round robin over the channels: the oldest one goes to the back
+                p = head[layer];
+                unlink(layer, p);
+                append(layer, p);
+                notesOn[base + p]++;
+                activeVoices++;
+                return p;
+            default:
+                return NONE;
+        }
+
+        // End the victim note on this layer and take over its channel
+        int victim = voiceKey[base + p];
+        int victimChannel = victim >> 7;
+        int victimNote = victim & 0x7F;
+        sink.sendVoice(routing.getOutModule(master, layer), ShortMessage.NOTE_OFF, poolChannel[base + p],
+                routing.getNote(master, layer, victimNote), 0);
+        assigned[victim * RoutingTable.MAX_LAYERS + layer] = 0;
+        if (memberVoice[victimChannel * RoutingTable.MAX_LAYERS + layer] == p) {
+            memberVoice[victimChannel * RoutingTable.MAX_LAYERS + layer] = NONE;
+        }
+        steals++;
+
+        unlink(layer, p);
+        append(layer, p);
+        return p;
+    }
+
+    // A note of key left pool channel p: free the channel once no note plays on it
+    private void release(int layer, int p, int key) {
+        int v = layer * voices + p;
+        activeVoices--;
+
+        if (--notesOn[v] > 0) {
+            return;
+        }
+
+        unlink(layer, p);
+        freeStack[layer * voices + freeCount[layer]++] = p;
+        voiceKey[v] = NONE;
+
+        int channel = key >> 7;
+        if (memberVoice[channel * RoutingTable.MAX_LAYERS + layer] == p) {
+            memberVoice[channel * RoutingTable.MAX_LAYERS + layer] = NONE;
+        }
+    }
+
+    // Add p to the back of the layer's in use list, counting the note it plays
+    private void append(int layer, int p) {
+        int base = layer * voices;
+        if (notesOn[base + p] == 0) {
+            notesOn[base + p] = 1;
+            activeVoices++;
+        }
+
+        prev[base + p] = tail[layer];
+        next[base + p] = NONE;
+        if (tail[layer] != NONE) {
+            next[base + tail[layer]] = p;
+        }
+        else {
+            head[layer] = p;
+        }
+        tail[layer] = p;
+    }
+
+    private void unlink(int layer, int p) {
+        int base = layer * voices;
+        int before = prev[base + p];
+        int after = next[base + p];
+
+        if (before != NONE) {
+            next[base + before] = after;
+        }
+        else {
+            head[layer] = after;
+        }
+        if (after != NONE) {
+            prev[base + after] = before;
+        }
+        else {
+            tail[layer] = before;
+        }
+    }
+
+    // Notes sounding over all layers
+    public int getActiveVoices() {
+        return activeVoices;
+    }
+
+    public long getSteals() {
+        return steals;
+    }
+
+    // Notes not played on a layer because its pool was full under StealPolicy.NONE, or it has no pool
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder pools = new StringBuilder();
+        for (int layer = 0; layer < layers; layer++) {
+            if (layer > 0) {
+                pools.append('|');
+            }
+            pools.append(poolSize[layer]);
+        }
+        return "MPE Voice Allocator = [master=" + (master + 1) + ", layers=" + layers + ", voices=" + voices
+                + ", pools=" + pools + ", policy=" + policy + ", active=" + activeVoices + ", steals=" + steals + ", dropped=" + dropped
+                + "]";
+    }
+}
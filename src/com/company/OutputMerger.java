@@ -0,0 +1,322 @@
+package com.company;
+
+import javax.sound.midi.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merges live keyboard and sequencer output into one sound module output without locks, live first.
+ *
+ * Each source queues into its own single producer EventRing: send() for the keyboard Transmitter thread and
+ * getSequencerInput() for the Sequencer. Whichever source finds the output free claims it with a single CAS, sends
+ * its own message to the device after any queued before it, and then drains both rings before letting go:
+ * 1. Queued live messages go out first, and are checked for again before every sequencer message, so a live note
+ *    waits behind at most the one sequencer message being sent
+ * 2. A source that finds the output claimed queues its message and counts it as contended. The owner, or the source
+ *    itself once the output is free again, sends it
+ *
+ * The device Receiver is only ever called by the current owner, so it never sees two threads at once. The keyboard
+ * can also hold the output for all layers of a note with beginBatch() and endBatch(); a WireEncoder behind the merge
+ * is flushed whenever the output is let go, so a batch goes out in one write.
+ *
+ * The keyboard never waits for the sequencer: a batch begun while the sequencer holds the output is queued on the
+ * live ring instead, and the owner sends no sequencer message until the batch ends. Whoever finds the output free
+ * next, the keyboard included, sends the queued layers ahead of anything else.
+ */
+public class OutputMerger implements Receiver, EventRing.EventHandler {
+
+    private final String name;
+    private volatile Receiver receiver;
+
+    private final EventRing liveRing;
+    private final EventRing sequencerRing;
+    private final AtomicBoolean owned = new AtomicBoolean();
+    private final Receiver sequencerInput = new SequencerInput();
+
+    // Reused by whichever thread owns the output
+    private final ShortMessage outMessage = new ShortMessage();
+
+    // Counters, each written by a single thread
+    private volatile long liveSent = 0;
+    private volatile long liveContended = 0;
+    private volatile long sequencerSent = 0;
+    private volatile long sequencerContended = 0;
+    private volatile long sendErrors = 0;
+
+    // Keyboard thread only: the keyboard holds the output for a batch, or queues the batch behind the owner
+    private boolean batching = false;
+    private boolean queuedBatch = false;
+
+    // Set while the keyboard queues a batch behind the owner, so no sequencer message goes out in the middle of it
+    private volatile boolean liveWaiting = false;
+
+    // Sequencer side of the merge
+    private class SequencerInput implements Receiver {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            sequencerSent++;
+            if (!liveWaiting && owned.compareAndSet(false, true)) {
+                // Queued messages are older, and queued live messages go first anyway
+                drainQueued();
+                deliver(message, timeStamp);
+                drainAndRelease();
+                return;
+            }
+
+            sequencerContended++;
+            enqueue(sequencerRing, message, timeStamp);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public OutputMerger(String name, Receiver receiver, int size) {
+        this.name = name;
+        this.receiver = receiver;
+        this.liveRing = new EventRing(size);
+        this.sequencerRing = new EventRing(size);
+    }
+
+    // Live side of the merge, called on the keyboard Transmitter thread
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        liveSent++;
+        if (batching) {
+            deliver(message, timeStamp);
+            return;
+        }
+
+        if (queuedBatch) {
+            queueLayer(message, timeStamp);
+            return;
+        }
+
+        if (owned.compareAndSet(false, true)) {
+            // Keep the order of live messages queued before this one
+            liveRing.drain(this, Integer.MAX_VALUE);
+            deliver(message, timeStamp);
+            drainAndRelease();
+            return;
+        }
+
+        liveContended++;
+        enqueue(liveRing, message, timeStamp);
+    }
+
+    // Keyboard thread: hold the output until endBatch(), ahead of any queued sequencer messages. If the sequencer
+    // holds it, queue the batch for the owner instead of waiting
+    public void beginBatch() {
+        if (owned.compareAndSet(false, true)) {
+            liveRing.drain(this, Integer.MAX_VALUE);
+            batching = true;
+            return;
+        }
+
+        liveContended++;
+        liveWaiting = true;
+        queuedBatch = true;
+        if (owned.compareAndSet(false, true)) {
+            takeOverBatch();
+        }
+    }
+
+    // Keyboard thread: send what the sequencer queued meanwhile, flush and let go of the output. A queued batch is
+    // left to the owner, or sent now if the output was let go
+    public void endBatch() {
+        if (batching) {
+            batching = false;
+            drainAndRelease();
+            return;
+        }
+
+        queuedBatch = false;
+        liveWaiting = false;
+        if (owned.compareAndSet(false, true)) {
+            drainAndRelease();
+        }
+    }
+
+    // Any thread: hold the output to send with sendClaimed(), e.g. from a timer, until release(). False if it is
+    // held, so the caller can try again later instead of waiting
+    public boolean tryClaim() {
+        return owned.compareAndSet(false, true);
+    }
+
+    public void sendClaimed(MidiMessage message, long timeStamp) {
+        deliver(message, timeStamp);
+    }
+
+    // Send what was queued meanwhile, flush and let go of the output
+    public void release() {
+        drainAndRelease();
+    }
+
+    // Receiver for the Sequencer Transmitter
+    public Receiver getSequencerInput() {
+        return sequencerInput;
+    }
+
+    @Override
+    public void close() {
+        receiver.close();
+        System.out.println("Output Merger closed: " + toString());
+    }
+
+    // Point the merge at a reconnected device. Returns the Receiver it replaces
+    public Receiver setReceiver(Receiver receiver) {
+        Receiver previous = this.receiver;
+        this.receiver = receiver;
+        return previous;
+    }
+
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    // Keyboard thread, having claimed the output during a queued batch: send the layers queued so far and hold the
+    // output for the rest of it
+    private void takeOverBatch() {
+        liveRing.drain(this, Integer.MAX_VALUE);
+        queuedBatch = false;
+        liveWaiting = false;
+        batching = true;
+    }
+
+    // Keyboard thread: queue a layer of a queued batch, or send it if the output was let go meanwhile. Waits only
+    // while the live ring is full
+    private void queueLayer(MidiMessage message, long timeStamp) {
+        int event;
+        MidiMessage queued = null;
+        if (message instanceof ShortMessage) {
+            ShortMessage shortmessage = (ShortMessage) message;
+            event = EventRing.pack(shortmessage.getStatus(), shortmessage.getData1(), shortmessage.getData2());
+        }
+        else {
+            event = EventRing.LONG_MESSAGE | message.getStatus();
+            queued = (MidiMessage) message.clone();
+        }
+
+        while (!liveRing.offer(event, queued, timeStamp)) {
+            if (owned.compareAndSet(false, true)) {
+                takeOverBatch();
+                deliver(message, timeStamp);
+                return;
+            }
+            Thread.onSpinWait();
+        }
+
+        if (owned.compareAndSet(false, true)) {
+            takeOverBatch();
+        }
+    }
+
+    // Queue for the owner, then claim the output in case it was let go before the message was queued
+    private void enqueue(EventRing ring, MidiMessage message, long timeStamp) {
+        int event;
+        if (message instanceof ShortMessage) {
+            ShortMessage shortmessage = (ShortMessage) message;
+            event = EventRing.pack(shortmessage.getStatus(), shortmessage.getData1(), shortmessage.getData2());
+            message = null;
+        }
+        else {
+            // SysEx is rare: copy it, the caller may reuse the message
+            event = EventRing.LONG_MESSAGE | message.getStatus();
+            message = (MidiMessage) message.clone();
+        }
+
+        while (!ring.offer(event, message, timeStamp)) {
+            if (owned.compareAndSet(false, true)) {
+                drainAndRelease();
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+
+        if (owned.compareAndSet(false, true)) {
+            drainAndRelease();
+        }
+    }
+
+    // Owner: send everything queued, live first, flush and let go. Claim the output again if a message was queued
+    // while letting go and nobody else claimed it
+    private void drainAndRelease() {
+        do {
+            drainQueued();
+            Receiver current = receiver;
+            if (current instanceof WireEncoder) {
+                ((WireEncoder) current).flush();
+            }
+            owned.set(false);
+        } while (!liveWaiting && ((liveRing.size() > 0) || (sequencerRing.size() > 0))
+                && owned.compareAndSet(false, true));
+    }
+
+    // Owner: send queued messages until both rings are empty, checking for live ones before every sequencer one.
+    // Sequencer messages are left for later while the keyboard queues a batch
+    private void drainQueued() {
+        while (true) {
+            if (liveRing.drain(this, Integer.MAX_VALUE) > 0) {
+                continue;
+            }
+            if (liveWaiting || (sequencerRing.drain(this, 1) == 0)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onEvent(int event, MidiMessage message, long timeStamp) {
+        if ((event & EventRing.LONG_MESSAGE) != 0) {
+            deliver(message, timeStamp);
+            return;
+        }
+
+        try {
+            outMessage.setMessage(EventRing.status(event), EventRing.data1(event), EventRing.data2(event));
+            deliver(outMessage, timeStamp);
+        }
+        catch (InvalidMidiDataException ex) {
+            sendErrors++;
+        }
+    }
+
+    private void deliver(MidiMessage message, long timeStamp) {
+        try {
+            receiver.send(message, timeStamp);
+        }
+        catch (RuntimeException ex) {
+            sendErrors++;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLiveSent() {
+        return liveSent;
+    }
+
+    // Live messages that found the output busy with a sequencer message
+    public long getLiveContended() {
+        return liveContended;
+    }
+
+    public long getSequencerSent() {
+        return sequencerSent;
+    }
+
+    // Sequencer messages that found the output busy
+    public long getSequencerContended() {
+        return sequencerContended;
+    }
+
+    @Override
+    public String toString() {
+        return "Output Merger = [name=" + name + ", liveSent=" + liveSent + ", liveContended=" + liveContended
+                + ", sequencerSent=" + sequencerSent + ", sequencerContended=" + sequencerContended
+                + ", sendErrors=" + sendErrors + "]";
+    }
+}
@@ -0,0 +1,272 @@
+package com.company;
+
+import javax.sound.midi.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional output stage that decouples the keyboard Transmitter thread from a (slow) output device.
+ *
+ * send() packs the message into a pre-sized EventRing and returns; a dedicated output thread per device drains the
+ * ring into the device Receiver. When the ring fills up:
+ * 1. Controllers, pressure, pitch bend and real time messages are dropped first. They are only queued while more
+ *    than the reserved headroom is free, which keeps that headroom for notes
+ * 2. Note On is dropped or waited for, depending on the Backpressure policy
+ * 3. Note Off (including Note On with velocity 0), Program Change, Bank Select and SysEx are not dropped, the
+ *    producer waits for a free slot
+ *
+ * The producer spins briefly, then parks between retries. A device that takes no messages for MAX_WAIT_NANOS is taken
+ * as stuck: the event is dropped and counted, so the keyboard thread never hangs on it.
+ */
+public class OutputPipeline implements Receiver, EventRing.EventHandler {
+
+    // Longest a producer waits for a free slot, and how long it spins before it parks
+    public static final long MAX_WAIT_NANOS = 200_000_000L;
+    private static final int SPINS = 1000;
+    private static final long PARK_NANOS = 100_000L;
+
+    // Bank Select MSB and LSB
+    private static final int BANK_SELECT = 0;
+    private static final int BANK_SELECT_LSB = 32;
+
+    // What to do with a Note On when the ring is full
+    public enum Backpressure {
+        DROP_NOTE_ON,
+        WAIT_NOTE_ON
+    }
+
+    private final String name;
+    private volatile Receiver receiver;
+    private final EventRing ring;
+    private final Backpressure backpressure;
+    private final int controllerReserve;
+
+    private final Thread outputThread;
+    private volatile boolean running = true;
+    private volatile boolean waiting = false;
+
+    // Reused by the output thread for every event it sends
+    private final ShortMessage outMessage = new ShortMessage();
+
+    // Counters, each written by a single thread
+    private volatile long queued = 0;
+    private volatile long maxDepth = 0;
+    private volatile long droppedControllers = 0;
+    private volatile long droppedNoteOns = 0;
+    private volatile long producerWaits = 0;
+    private volatile long waitTimeouts = 0;
+    private volatile long sent = 0;
+    private volatile long sendErrors = 0;
+
+    public OutputPipeline(String name, Receiver receiver, int size, Backpressure backpressure) {
+        this.name = name;
+        this.receiver = receiver;
+        this.ring = new EventRing(size);
+        this.backpressure = backpressure;
+        this.controllerReserve = ring.capacity() / 4;
+
+        outputThread = new Thread(this::drainLoop, "AMIDIFX Out " + name);
+        outputThread.setDaemon(true);
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        outputThread.start();
+
+        System.out.println("Output Pipeline started for " + name + ", ring size " + ring.capacity());
+    }
+
+    // Called on the Transmitter thread: queue and return without touching the device
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        int status = message.getStatus();
+        int command = status & 0xf0;
+
+        if (!(message instanceof ShortMessage)) {
+            // SysEx and meta data are rare: copy the message and never drop it
+            offerWaiting(EventRing.LONG_MESSAGE | status, (MidiMessage) message.clone(), timeStamp);
+            return;
+        }
+
+        ShortMessage shortmessage = (ShortMessage) message;
+        int data2 = shortmessage.getData2();
+        int event = EventRing.pack(status, shortmessage.getData1(), data2);
+
+        if ((command == 0x80) || ((command == 0x90) && (data2 == 0)) || (command == 0xc0)
+                || ((command == 0xb0) && isBankSelect(shortmessage.getData1()))) {
+            // A lost Note Off hangs a note, a lost program or bank plays the wrong sound from then on
+            offerWaiting(event, null, timeStamp);
+        }
+        else if (command == 0x90) {
+            if (backpressure == Backpressure.WAIT_NOTE_ON) {
+                offerWaiting(event, null, timeStamp);
+            }
+            else if (!offer(event, null, timeStamp)) {
+                droppedNoteOns++;
+            }
+        }
+        else if ((ring.remaining() <= controllerReserve) || !offer(event, null, timeStamp)) {
+            droppedControllers++;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(outputThread);
+
+        try {
+            outputThread.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        receiver.close();
+        System.out.println("Output Pipeline closed: " + toString());
+    }
+
+    // Point the output thread at a reconnected device. Returns the Receiver it replaces
+    public Receiver setReceiver(Receiver receiver) {
+        Receiver previous = this.receiver;
+        this.receiver = receiver;
+        return previous;
+    }
+
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    private boolean offer(int event, MidiMessage message, long timeStamp) {
+        if (!ring.offer(event, message, timeStamp)) {
+            return false;
+        }
+
+        long depth = ++queued - sent;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+
+        if (waiting) {
+            LockSupport.unpark(outputThread);
+        }
+        return true;
+    }
+
+    private static boolean isBankSelect(int controller) {
+        return (controller == BANK_SELECT) || (controller == BANK_SELECT_LSB);
+    }
+
+    // Wait for the output thread to free a slot: spin, then park, for at most MAX_WAIT_NANOS
+    private void offerWaiting(int event, MidiMessage message, long timeStamp) {
+        if (offer(event, message, timeStamp)) {
+            return;
+        }
+
+        producerWaits++;
+        LockSupport.unpark(outputThread);
+        for (int spin = 0; spin < SPINS; spin++) {
+            Thread.onSpinWait();
+            if (offer(event, message, timeStamp)) {
+                return;
+            }
+        }
+
+        long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+        while (running) {
+            LockSupport.unpark(outputThread);
+            LockSupport.parkNanos(PARK_NANOS);
+            if (offer(event, message, timeStamp)) {
+                return;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        waitTimeouts++;
+    }
+
+    // Output thread: drain the ring into the device, park while there is nothing to do
+    private void drainLoop() {
+        while (running) {
+            if (ring.drain(this, 64) > 0) {
+                continue;
+            }
+
+            // Caught up: what was drained goes out in one write
+            flushReceiver();
+
+            waiting = true;
+            if (ring.size() == 0 && running) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+            waiting = false;
+        }
+
+        // Flush what is left so no Note Off is lost on close
+        while (ring.drain(this, 64) > 0);
+        flushReceiver();
+    }
+
+    private void flushReceiver() {
+        Receiver current = receiver;
+        if (current instanceof WireEncoder) {
+            ((WireEncoder) current).flush();
+        }
+    }
+
+    @Override
+    public void onEvent(int event, MidiMessage message, long timeStamp) {
+        try {
+            if ((event & EventRing.LONG_MESSAGE) != 0) {
+                receiver.send(message, timeStamp);
+            }
+            else {
+                outMessage.setMessage(EventRing.status(event), EventRing.data1(event), EventRing.data2(event));
+                receiver.send(outMessage, timeStamp);
+            }
+        }
+        catch (InvalidMidiDataException | RuntimeException ex) {
+            sendErrors++;
+        }
+        sent++;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Events currently queued for the device
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public long getDroppedControllers() {
+        return droppedControllers;
+    }
+
+    public long getDroppedNoteOns() {
+        return droppedNoteOns;
+    }
+
+    public long getProducerWaits() {
+        return producerWaits;
+    }
+
+    // Events dropped after waiting MAX_WAIT_NANOS for a stuck device
+    public long getWaitTimeouts() {
+        return waitTimeouts;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    @Override
+    public String toString() {
+        return "Output Pipeline = [name=" + name + ", depth=" + getQueueDepth() + ", maxDepth=" + maxDepth
+                + ", sent=" + sent + ", droppedControllers=" + droppedControllers
+                + ", droppedNoteOns=" + droppedNoteOns + ", producerWaits=" + producerWaits
+                + ", waitTimeouts=" + waitTimeouts + ", sendErrors=" + sendErrors + "]";
+    }
+}
@@ -0,0 +1,330 @@
+package com.company;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Patches of a Sound Module, loaded once from its patch file (AppConfig sndmodfile0, sndmodfile1) into a compact,
+ * indexed table.
+ *
+ * One patch per line: patchIdx,bankMSB,bankLSB,program,name
+ * with the bank select and program values 0..127. Empty lines and lines starting with '#' are skipped.
+ *
+ * Patches are stored as fixed size records in a ByteBuffer, optionally off-heap, plus three int indexes:
+ * 1. patchIdx to record, a direct array lookup (MidiLayer patchIdx)
+ * 2. Sorted bank/program keys, a binary search
+ * 3. Records sorted by lower case name, a binary search for the first name with a prefix
+ * Bank select (CC0/CC32) and Program Change bytes of a patch are written without scanning or allocating.
+ */
+public class PatchDatabase {
+
+    public static final int NOT_FOUND = -1;
+
+    // Record: patchIdx (int), bank MSB, bank LSB, program, name length, name offset (int)
+    static final int RECORD_SIZE = 12;
+    static final int MAX_NAME = 127;
+
+    // PresetBank stores patchIdx as a short
+    static final int MAX_PATCH_IDX = Short.MAX_VALUE;
+
+    // Bytes of Bank Select MSB, Bank Select LSB and Program Change messages
+    public static final int PROGRAM_BYTES = 8;
+
+    private final String file;
+    private final int count;
+    private final ByteBuffer records;
+    private final ByteBuffer names;
+    private final int[] byPatchIdx;
+    private final int[] bankKeys;
+    private final int[] byBankKey;
+    private final int[] byName;
+
+    private PatchDatabase(String file, List<Patch> patches, boolean offHeap) {
+        this.file = file;
+        this.count = patches.size();
+
+        int nameBytes = 0;
+        int maxPatchIdx = -1;
+        List<byte[]> encoded = new ArrayList<>(count);
+        for (Patch patch : patches) {
+            byte[] name = patch.name.getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME) {
+                name = Arrays.copyOf(name, MAX_NAME);
+            }
+            encoded.add(name);
+            nameBytes += name.length;
+            maxPatchIdx = Math.max(maxPatchIdx, patch.patchIdx);
+        }
+
+        records = offHeap ? ByteBuffer.allocateDirect(count * RECORD_SIZE) : ByteBuffer.allocate(count * RECORD_SIZE);
+        names = offHeap ? ByteBuffer.allocateDirect(nameBytes) : ByteBuffer.allocate(nameBytes);
+        byPatchIdx = new int[maxPatchIdx + 1];
+        Arrays.fill(byPatchIdx, NOT_FOUND);
+
+        int nameOffset = 0;
+        for (int record = 0; record < count; record++) {
+            Patch patch = patches.get(record);
+            byte[] name = encoded.get(record);
+            int offset = record * RECORD_SIZE;
+
+            records.putInt(offset, patch.patchIdx);
+            records.put(offset + 4, (byte) patch.bankMsb);
+            records.put(offset + 5, (byte) patch.bankLsb);
+            records.put(offset + 6, (byte) patch.program);
+            records.put(offset + 7, (byte) name.length);
+            records.putInt(offset + 8, nameOffset);
+
+            names.position(nameOffset);
+            names.put(name);
+            nameOffset += name.length;
+
+            byPatchIdx[patch.patchIdx] = record;
+        }
+        names.clear();
+
+        // Bank/program keys, with the record in the low bits so equal keys keep file order
+        long[] keyed = new long[count];
+        for (int record = 0; record < count; record++) {
+            keyed[record] = ((long) bankKey(getBankMsbAt(record), getBankLsbAt(record), getProgramAt(record)) << 32)
+                    | record;
+        }
+        Arrays.sort(keyed);
+        bankKeys = new int[count];
+        byBankKey = new int[count];
+        for (int i = 0; i < count; i++) {
+            bankKeys[i] = (int) (keyed[i] >>> 32);
+            byBankKey[i] = (int) keyed[i];
+        }
+
+        Integer[] sorted = new Integer[count];
+        for (int record = 0; record < count; record++) {
+            sorted[record] = record;
+        }
+        Arrays.sort(sorted, (a, b) -> compareNames(a, b));
+        byName = new int[count];
+        for (int i = 0; i < count; i++) {
+            byName[i] = sorted[i];
+        }
+    }
+
+    // Parsed line of a patch file
+    private static class Patch {
+        final int patchIdx;
+        final int bankMsb;
+        final int bankLsb;
+        final int program;
+        final String name;
+
+        Patch(int patchIdx, int bankMsb, int bankLsb, int program, String name) {
+            this.patchIdx = patchIdx;
+            this.bankMsb = bankMsb;
+            this.bankLsb = bankLsb;
+            this.program = program;
+            this.name = name;
+        }
+    }
+
+    public static PatchDatabase load(Path path, boolean offHeap) throws IOException {
+        List<Patch> patches = new ArrayList<>();
+
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split(",", 5);
+                if (fields.length < 5) {
+                    throw new IOException(path + " line " + lineNumber + ": expected 5 fields");
+                }
+
+                try {
+                    Patch patch = new Patch(Integer.parseInt(fields[0].trim()), dataByte(fields[1]),
+                            dataByte(fields[2]), dataByte(fields[3]), fields[4].trim());
+                    if ((patch.patchIdx < 0) || (patch.patchIdx > MAX_PATCH_IDX)) {
+                        throw new IllegalArgumentException("patchIdx " + patch.patchIdx + " out of range");
+                    }
+                    patches.add(patch);
+                }
+                catch (IllegalArgumentException ex) {
+                    throw new IOException(path + " line " + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        return new PatchDatabase(path.getFileName().toString(), patches, offHeap);
+    }
+
+    private static int dataByte(String field) {
+        int value = Integer.parseInt(field.trim());
+        if ((value < 0) || (value > 127)) {
+            throw new IllegalArgumentException("value " + value + " out of range 0..127");
+        }
+        return value;
+    }
+
+    private static int bankKey(int bankMsb, int bankLsb, int program) {
+        return (bankMsb << 14) | (bankLsb << 7) | program;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Record of a MidiLayer patchIdx, NOT_FOUND if the module has no such patch
+    public int find(int patchIdx) {
+        if ((patchIdx < 0) || (patchIdx >= byPatchIdx.length)) {
+            return NOT_FOUND;
+        }
+        return byPatchIdx[patchIdx];
+    }
+
+    // Record of the first patch with this bank select and program, NOT_FOUND if there is none
+    public int findByProgram(int bankMsb, int bankLsb, int program) {
+        int key = bankKey(bankMsb & 0x7F, bankLsb & 0x7F, program & 0x7F);
+        int i = Arrays.binarySearch(bankKeys, key);
+        if (i < 0) {
+            return NOT_FOUND;
+        }
+        while ((i > 0) && (bankKeys[i - 1] == key)) {
+            i--;
+        }
+        return byBankKey[i];
+    }
+
+    // Records of up to max patches whose name starts with prefix (ignoring case), in name order. Returns the number
+    public int findByNamePrefix(String prefix, int[] found, int max) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) lower(key[i]);
+        }
+
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareName(byName[middle], key, key.length) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        int n = 0;
+        for (int i = low; (i < count) && (n < max) && (n < found.length); i++) {
+            if (compareName(byName[i], key, key.length) != 0) {
+                break;
+            }
+            found[n++] = byName[i];
+        }
+        return n;
+    }
+
+    public int getPatchIdxAt(int record) {
+        return records.getInt(record * RECORD_SIZE);
+    }
+
+    public int getBankMsbAt(int record) {
+        return records.get(record * RECORD_SIZE + 4);
+    }
+
+    public int getBankLsbAt(int record) {
+        return records.get(record * RECORD_SIZE + 5);
+    }
+
+    public int getProgramAt(int record) {
+        return records.get(record * RECORD_SIZE + 6);
+    }
+
+    public String getNameAt(int record) {
+        int length = records.get(record * RECORD_SIZE + 7);
+        int offset = records.getInt(record * RECORD_SIZE + 8);
+
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = names.get(offset + i);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    // Bank Select MSB (CC0), Bank Select LSB (CC32) and Program Change of a record for 1 based channel into out,
+    // which must hold PROGRAM_BYTES. Returns the number of bytes written
+    public int getProgramBytes(int record, int channel, byte[] out) {
+        int offset = record * RECORD_SIZE;
+        int ch = (channel - 1) & 0x0F;
+
+        out[0] = (byte) (0xB0 | ch);
+        out[1] = 0;
+        out[2] = records.get(offset + 4);
+        out[3] = (byte) (0xB0 | ch);
+        out[4] = 32;
+        out[5] = records.get(offset + 5);
+        out[6] = (byte) (0xC0 | ch);
+        out[7] = records.get(offset + 6);
+
+        return PROGRAM_BYTES;
+    }
+
+    // Program bytes of the patch of a MidiLayer, 0 if this module does not have it
+    public int getProgramBytes(MidiLayer layer, int channel, byte[] out) {
+        int record = find(layer.getPatchIdx());
+        return (record == NOT_FOUND) ? 0 : getProgramBytes(record, channel, out);
+    }
+
+    // Names compare as lower case ASCII bytes, other bytes as is
+    private int compareNames(int a, int b) {
+        int lengthA = records.get(a * RECORD_SIZE + 7);
+        int offsetA = records.getInt(a * RECORD_SIZE + 8);
+        int lengthB = records.get(b * RECORD_SIZE + 7);
+        int offsetB = records.getInt(b * RECORD_SIZE + 8);
+
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int diff = lower(names.get(offsetA + i)) - lower(names.get(offsetB + i));
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    // Compare the first length bytes of the name of record with a lower case key; a shorter name sorts first
+    private int compareName(int record, byte[] key, int length) {
+        int nameLength = records.get(record * RECORD_SIZE + 7);
+        int offset = records.getInt(record * RECORD_SIZE + 8);
+
+        int n = Math.min(nameLength, length);
+        for (int i = 0; i < n; i++) {
+            int diff = lower(names.get(offset + i)) - (key[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (nameLength < length) ? -1 : 0;
+    }
+
+    private static int lower(byte b) {
+        int c = b & 0xFF;
+        return ((c >= 'A') && (c <= 'Z')) ? c + ('a' - 'A') : c;
+    }
+
+    @Override
+    public String toString() {
+        return "Patch Database " + file + ": " + count + " patches" + (records.isDirect() ? " (off-heap)" : "");
+    }
+}
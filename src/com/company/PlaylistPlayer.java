@@ -0,0 +1,250 @@
+package com.company;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the songs of a song list back to back on a Sequencer, driven by end of track events instead of polling.
+ *
+ * While a song plays, the Sequence of the next one is loaded on a background thread. When the sequencer reports
+ * end of track (meta type 0x2F), the next Sequence is set and started right from the meta event callback, so songs
+ * follow each other without a gap. The time from end of track to the next start is recorded per song change.
+ *
+ * On a PrecisionSequencer, songs in the MidiFileStore are played straight from the store with setSong(): there is
+ * nothing to load, so the loader is only used for songs the store does not hold.
+ */
+public class PlaylistPlayer implements MetaEventListener {
+
+    public static final int END_OF_TRACK = 0x2F;
+
+    // Loads the Sequence of a song, e.g. from its MIDI file in dirmidi
+    public interface SequenceLoader {
+        Sequence load(SongList.Song song) throws IOException, InvalidMidiDataException;
+    }
+
+    // Told when a song starts, e.g. to select its Preset. gapNanos is 0 for the first song
+    public interface SongListener {
+        void songStarted(SongList.Song song, long gapNanos);
+    }
+
+    private final Sequencer sequencer;
+    private final List<SongList.Song> songs;
+    private final SequenceLoader loader;
+    private final MidiFileStore store;
+    private final PrecisionSequencer storeSequencer;
+    private final DiagnosticJournal journal;
+    private final ExecutorService preloader;
+    private final List<SongListener> listeners = new ArrayList<>();
+    private final LatencyHistogram gaps = new LatencyHistogram("Song gap");
+
+    private volatile CountDownLatch finished = new CountDownLatch(0);
+    private volatile boolean playing = false;
+    private int position;
+    private int repeatsLeft;
+    private CompletableFuture<Cue> next;
+
+    // A song ready to start: a stored song or a Sequence
+    private static final class Cue {
+        final MidiFileStore.StoredSong stored;
+        final Sequence sequence;
+
+        Cue(MidiFileStore.StoredSong stored, Sequence sequence) {
+            this.stored = stored;
+            this.sequence = sequence;
+        }
+    }
+
+    // songs are played in list order; songs without a Sequence are skipped
+    public PlaylistPlayer(Sequencer sequencer, List<SongList.Song> songs, SequenceLoader loader) {
+        this(sequencer, songs, loader, null, null);
+    }
+
+    // Songs in store (null for none) are played from it when sequencer is a PrecisionSequencer. Songs that can't be
+    // loaded or played are reported to journal (null for none)
+    public PlaylistPlayer(Sequencer sequencer, List<SongList.Song> songs, SequenceLoader loader,
+                          MidiFileStore store, DiagnosticJournal journal) {
+        this.sequencer = sequencer;
+        this.journal = journal;
+        this.songs = new ArrayList<>(songs);
+        this.loader = loader;
+        this.storeSequencer = (sequencer instanceof PrecisionSequencer) ? (PrecisionSequencer) sequencer : null;
+        this.store = (storeSequencer != null) ? store : null;
+        this.preloader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Song preload");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    public void addSongListener(SongListener listener) {
+        listeners.add(listener);
+    }
+
+    // Start playing the list repeat times over. Returns at once; see awaitEnd()
+    public synchronized void play(int repeat) {
+        if (songs.isEmpty() || (repeat <= 0)) {
+            return;
+        }
+
+        stop();
+        sequencer.addMetaEventListener(this);
+        finished = new CountDownLatch(1);
+        playing = true;
+        repeatsLeft = repeat - 1;
+        position = 0;
+
+        next = preload(position);
+        startNext(0);
+    }
+
+    // Wait until the last song ends. Returns false on timeout
+    public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public synchronized void stop() {
+        if (!playing) {
+            return;
+        }
+
+        playing = false;
+        sequencer.removeMetaEventListener(this);
+        if (sequencer.isOpen()) {
+            sequencer.stop();
+        }
+        finished.countDown();
+    }
+
+    public void close() {
+        stop();
+        preloader.shutdownNow();
+    }
+
+    // Called on the sequencer's event thread
+    @Override
+    public void meta(MetaMessage meta) {
+        if (meta.getType() != END_OF_TRACK) {
+            return;
+        }
+
+        long endOfTrack = System.nanoTime();
+        synchronized (this) {
+            if (!playing) {
+                return;
+            }
+
+            position++;
+            if (position == songs.size()) {
+                if (repeatsLeft == 0) {
+                    playing = false;
+                    sequencer.removeMetaEventListener(this);
+                    finished.countDown();
+                    return;
+                }
+                repeatsLeft--;
+                position = 0;
+            }
+
+            startNext(endOfTrack);
+        }
+    }
+
+    // Start the preloaded song at position, skipping songs that fail to load. endOfTrack is 0 for the first song
+    private void startNext(long endOfTrack) {
+        int skipped = 0;
+
+        while (skipped < songs.size()) {
+            SongList.Song song = songs.get(position);
+            Cue cue = next.join();
+            next = preload((position + 1) % songs.size());
+
+            if (cue != null) {
+                try {
+                    // The sequencer stops itself at end of track, but may not have noticed yet
+                    if (sequencer.isRunning()) {
+                        sequencer.stop();
+                    }
+                    if (cue.stored != null) {
+                        storeSequencer.setSong(cue.stored);
+                    }
+                    else {
+                        sequencer.setSequence(cue.sequence);
+                    }
+                    sequencer.setTickPosition(0);
+                    sequencer.start();
+                }
+                catch (InvalidMidiDataException ex) {
+                    error("Playlist: can't play " + song.getTitle() + ": " + ex.getMessage());
+                    cue = null;
+                }
+            }
+
+            if (cue != null) {
+                long gap = 0;
+                if (endOfTrack != 0) {
+                    gap = System.nanoTime() - endOfTrack;
+                    gaps.record(gap);
+                }
+                for (SongListener listener : listeners) {
+                    listener.songStarted(song, gap);
+                }
+                return;
+            }
+
+            skipped++;
+            position = (position + 1) % songs.size();
+        }
+
+        error("Playlist: no playable songs");
+        playing = false;
+        sequencer.removeMetaEventListener(this);
+        finished.countDown();
+    }
+
+    // Load a song in the background; completes with null if it can't be loaded. A stored song needs no loading
+    private CompletableFuture<Cue> preload(int songPosition) {
+        SongList.Song song = songs.get(songPosition);
+        MidiFileStore.StoredSong stored = (store != null) ? store.get(song.getMidiFile()) : null;
+        if (stored != null) {
+            return CompletableFuture.completedFuture(new Cue(stored, null));
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Sequence sequence = loader.load(song);
+                return (sequence != null) ? new Cue(null, sequence) : null;
+            }
+            catch (IOException | InvalidMidiDataException | RuntimeException ex) {
+                error("Playlist: can't load " + song.getTitle() + ": " + ex.getMessage());
+                return null;
+            }
+        }, preloader);
+    }
+
+    private void error(String text) {
+        if (journal != null) {
+            journal.error(text);
+        }
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    // End of track to next song start
+    public LatencyHistogram getGaps() {
+        return gaps;
+    }
+}
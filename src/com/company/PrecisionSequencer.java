@@ -0,0 +1,1120 @@
+package com.company;
+
+import javax.sound.midi.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * High resolution Sequencer that times every event from precomputed tick to nanosecond tables, as an alternative to
+ * MidiSystem.getSequencer() (AppConfig key "sequencer", value "precise").
+ *
+ * setSequence() merges the tracks into one tick ordered event array and builds a TempoMap from the tempo meta events:
+ * per tempo segment its start tick, its time in nanoseconds from tick 0 and the nanoseconds per tick. setSong() plays a
+ * MidiFileStore song straight from its mapped arrays instead, without building a Sequence. A dedicated playback thread
+ * parks until spinNanos before the next event is due, spins on System.nanoTime() for the rest, and sends the event to
+ * the Transmitters. How late each event went out is recorded in the jitter histogram.
+ *
+ * Note:
+ * 1. Tempo (setTempoInMPQ/BPM) and tempo factor changes swap in a new Timeline that the playback thread picks up
+ *    before the next event. A tempo set while stopped is also the tempo of the next Sequence until its first tempo
+ *    event
+ * 2. Meta events are passed to the MetaEventListeners on the playback thread, so listeners must return quickly.
+ *    End of track is passed once the Sequencer has stopped, so a listener can set and start the next Sequence
+ * 3. Every start() runs a new playback thread with its own table of sounding notes. The thread sends Note Off for
+ *    the notes it left sounding on its way out: at end of track, or when stopped
+ * 4. Loop points and count apply from the next start(). Recording and external sync are not supported
+ * 5. The events of a stored song are sent in one reused ShortMessage: Receivers and ControllerEventListeners that
+ *    keep a message must copy it
+ */
+public class PrecisionSequencer implements Sequencer {
+
+    public static final long DEFAULT_SPIN_NANOS = 100_000L;
+
+    private static final int DEFAULT_MPQ = 500_000;
+    private static final int TEMPO = 0x51;
+
+    private static final MidiDevice.Info INFO = new Info();
+
+    private static class Info extends MidiDevice.Info {
+        Info() {
+            super("AMIDIFX Precision Sequencer", "AMIDIFX", "Sequencer timed from tick to nanosecond tables", "1.0");
+        }
+    }
+
+    /**
+     * Tempo map of a Sequence: per tempo segment its start tick, start time and nanoseconds per tick. Immutable; a
+     * tempo change builds a new one.
+     */
+    static final class TempoMap {
+        private final float divisionType;
+        private final int resolution;
+
+        private final long[] ticks;
+        private final int[] mpq;
+        private final long[] nanos;
+        private final double[] nanosPerTick;
+
+        // tempoTicks in tick order; of two tempos at the same tick the later one wins. No tempo at tick 0 plays
+        // defaultMpq up to the first one
+        TempoMap(float divisionType, int resolution, int defaultMpq, long[] tempoTicks, int[] tempoMpq, int tempos) {
+            this.divisionType = divisionType;
+            this.resolution = resolution;
+
+            long[] segTicks = new long[tempos + 1];
+            int[] segMpq = new int[tempos + 1];
+            segMpq[0] = defaultMpq;
+            int segments = 1;
+            for (int i = 0; i < tempos; i++) {
+                if (tempoTicks[i] != segTicks[segments - 1]) {
+                    segTicks[segments] = tempoTicks[i];
+                    segments++;
+                }
+                segMpq[segments - 1] = tempoMpq[i];
+            }
+
+            ticks = Arrays.copyOf(segTicks, segments);
+            mpq = Arrays.copyOf(segMpq, segments);
+            nanos = new long[segments];
+            nanosPerTick = new double[segments];
+            for (int s = 0; s < segments; s++) {
+                // SMPTE time does not follow the tempo
+                nanosPerTick[s] = (divisionType == Sequence.PPQ)
+                        ? mpq[s] * 1000.0 / resolution
+                        : 1e9 / (divisionType * resolution);
+                if (s > 0) {
+                    nanos[s] = nanos[s - 1] + (long) ((ticks[s] - ticks[s - 1]) * nanosPerTick[s - 1]);
+                }
+            }
+        }
+
+        // Same map with mpq from tick up to the next tempo change
+        TempoMap withTempo(long tick, int newMpq) {
+            int segment = segmentOfTick(tick);
+            int tempos = ticks.length + 1;
+            long[] tempoTicks = new long[tempos];
+            int[] tempoMpq = new int[tempos];
+
+            System.arraycopy(ticks, 0, tempoTicks, 0, segment + 1);
+            System.arraycopy(mpq, 0, tempoMpq, 0, segment + 1);
+            tempoTicks[segment + 1] = tick;
+            tempoMpq[segment + 1] = newMpq;
+            System.arraycopy(ticks, segment + 1, tempoTicks, segment + 2, ticks.length - segment - 1);
+            System.arraycopy(mpq, segment + 1, tempoMpq, segment + 2, mpq.length - segment - 1);
+
+            return new TempoMap(divisionType, resolution, mpq[0], tempoTicks, tempoMpq, tempos);
+        }
+
+        long tickToNanos(long tick) {
+            int s = segmentOfTick(tick);
+            return nanos[s] + (long) ((tick - ticks[s]) * nanosPerTick[s]);
+        }
+
+        long nanosToTick(long time) {
+            int s = segmentOfNanos(time);
+            return ticks[s] + (long) ((time - nanos[s]) / nanosPerTick[s]);
+        }
+
+        int mpqAt(long tick) {
+            return mpq[segmentOfTick(tick)];
+        }
+
+        // Last segment starting at or before tick
+        private int segmentOfTick(long tick) {
+            int low = 0;
+            int high = ticks.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (ticks[mid] <= tick) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        private int segmentOfNanos(long time) {
+            int low = 0;
+            int high = nanos.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (nanos[mid] <= time) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Wall clock of a playing Sequence: when tick 0 was (or would have been) due and the tempo factor. Immutable,
+     * the playback thread reads it once per event.
+     */
+    static final class Timeline {
+        final TempoMap map;
+        final long origin;
+        final double factor;
+
+        Timeline(TempoMap map, long origin, double factor) {
+            this.map = map;
+            this.origin = origin;
+            this.factor = factor;
+        }
+
+        // System.nanoTime() at which the time from tick 0 is due
+        long due(long nanosFromStart) {
+            return origin + (long) (nanosFromStart / factor);
+        }
+
+        long tickAt(long now) {
+            return map.nanosToTick((long) ((now - origin) * factor));
+        }
+    }
+
+    private class SequencerTransmitter implements Transmitter {
+        private volatile Receiver receiver;
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public Receiver getReceiver() {
+            return receiver;
+        }
+
+        @Override
+        public void close() {
+            removeTransmitter(this);
+        }
+    }
+
+    private static final class ControllerRegistration {
+        final ControllerEventListener listener;
+        final boolean[] controllers = new boolean[128];
+
+        ControllerRegistration(ControllerEventListener listener) {
+            this.listener = listener;
+        }
+
+        int[] registered() {
+            int count = 0;
+            for (boolean controller : controllers) {
+                count += controller ? 1 : 0;
+            }
+
+            int[] numbers = new int[count];
+            for (int controller = 0, i = 0; controller < controllers.length; controller++) {
+                if (controllers[controller]) {
+                    numbers[i++] = controller;
+                }
+            }
+            return numbers;
+        }
+    }
+
+    private final long spinNanos;
+    private final LatencyHistogram jitter = new LatencyHistogram("Sequencer jitter");
+    private final MetaMessage endOfTrack;
+
+    private final List<MetaEventListener> metaListeners = new CopyOnWriteArrayList<>();
+    private volatile ControllerRegistration[] controllerListeners = new ControllerRegistration[0];
+    private volatile SequencerTransmitter[] transmitters = new SequencerTransmitter[0];
+
+    private boolean open = false;
+    private Sequence sequence;
+
+    // Merged events of all tracks in tick order, end of track events left out
+    private long[] eventTicks = new long[0];
+    private MidiMessage[] eventMessages = new MidiMessage[0];
+    private int[] eventTracks = new int[0];
+    private int eventCount = 0;
+    private long tickLength = 0;
+
+    // Song played straight from the MidiFileStore instead of the arrays above, null for none
+    private MidiFileStore.StoredSong song;
+
+    // Playback thread only: the events of a stored song, one at a time
+    private final ShortMessage songMessage = new ShortMessage();
+
+    private TempoMap tempoMap;
+    private int defaultMpq = DEFAULT_MPQ;
+    private float tempoFactor = 1.0f;
+    private long tickPosition = 0;
+
+    private volatile Thread player;
+    private volatile Timeline timeline;
+
+    private volatile boolean[] trackMute = new boolean[0];
+    private volatile boolean[] trackSolo = new boolean[0];
+    private volatile boolean soloing = false;
+
+    private long loopStart = 0;
+    private long loopEnd = -1;
+    private int loopCount = 0;
+
+    public PrecisionSequencer() {
+        this(DEFAULT_SPIN_NANOS);
+    }
+
+    // spinNanos: how long before an event the playback thread stops parking and spins
+    public PrecisionSequencer(long spinNanos) {
+        this.spinNanos = Math.max(0, spinNanos);
+
+        MetaMessage message = new MetaMessage();
+        try {
+            message.setMessage(PlaylistPlayer.END_OF_TRACK, new byte[0], 0);
+        }
+        catch (InvalidMidiDataException e) {
+            throw new IllegalStateException(e);
+        }
+        this.endOfTrack = message;
+    }
+
+    // Lateness of every event sent, from the time it was due
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    @Override
+    public MidiDevice.Info getDeviceInfo() {
+        return INFO;
+    }
+
+    @Override
+    public synchronized void open() {
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        stop();
+
+        SequencerTransmitter[] closing;
+        synchronized (this) {
+            open = false;
+            closing = transmitters;
+            transmitters = new SequencerTransmitter[0];
+        }
+        for (SequencerTransmitter transmitter : closing) {
+            transmitter.setReceiver(null);
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void setSequence(Sequence sequence) throws InvalidMidiDataException {
+        boolean wasRunning = isRunning();
+        stop();
+
+        synchronized (this) {
+            load(sequence);
+        }
+
+        if (wasRunning && (sequence != null)) {
+            start();
+        }
+    }
+
+    @Override
+    public void setSequence(InputStream stream) throws IOException, InvalidMidiDataException {
+        setSequence(MidiSystem.getSequence(stream));
+    }
+
+    @Override
+    public synchronized Sequence getSequence() {
+        return sequence;
+    }
+
+    // Play a song of the MidiFileStore straight from its mapped arrays. Takes the same time for any song length, as
+    // no events are copied. getSequence() returns null while a stored song is set
+    public void setSong(MidiFileStore.StoredSong song) {
+        boolean wasRunning = isRunning();
+        stop();
+
+        synchronized (this) {
+            loadSong(song);
+        }
+
+        if (wasRunning && (song != null)) {
+            start();
+        }
+    }
+
+    public synchronized MidiFileStore.StoredSong getSong() {
+        return song;
+    }
+
+    // Build the tempo map of a stored song; its events stay in the store
+    private void loadSong(MidiFileStore.StoredSong song) {
+        this.sequence = null;
+        this.song = song;
+        tickPosition = 0;
+        loopStart = 0;
+        loopEnd = -1;
+        eventCount = 0;
+        tickLength = 0;
+        tempoMap = null;
+        trackMute = new boolean[0];
+        trackSolo = new boolean[0];
+        soloing = false;
+
+        if (song == null) {
+            return;
+        }
+
+        int tempos = song.getTempoCount();
+        long[] tempoTicks = new long[tempos];
+        int[] tempoMpq = new int[tempos];
+        for (int change = 0; change < tempos; change++) {
+            tempoTicks[change] = song.getTempoTick(change);
+            tempoMpq[change] = song.getTempoMicros(change);
+        }
+
+        eventCount = song.getEventCount();
+        tickLength = song.getEndTick();
+        tempoMap = new TempoMap(song.getDivisionType(), song.getResolution(), defaultMpq, tempoTicks, tempoMpq, tempos);
+
+        // The store merged the tracks into one
+        trackMute = new boolean[1];
+        trackSolo = new boolean[1];
+    }
+
+    // Merge the tracks and build the tempo map
+    private void load(Sequence sequence) throws InvalidMidiDataException {
+        this.sequence = sequence;
+        this.song = null;
+        tickPosition = 0;
+        loopStart = 0;
+        loopEnd = -1;
+
+        if (sequence == null) {
+            eventCount = 0;
+            tickLength = 0;
+            tempoMap = null;
+            trackMute = new boolean[0];
+            trackSolo = new boolean[0];
+            soloing = false;
+            return;
+        }
+
+        Track[] tracks = sequence.getTracks();
+        int size = 0;
+        for (Track track : tracks) {
+            size += track.size();
+        }
+
+        long[] ticks = new long[size];
+        MidiMessage[] messages = new MidiMessage[size];
+        int[] trackOf = new int[size];
+        long[] tempoTicks = new long[size];
+        int[] tempoMpq = new int[size];
+        int events = 0;
+        int tempos = 0;
+
+        for (int trackIdx = 0; trackIdx < tracks.length; trackIdx++) {
+            Track track = tracks[trackIdx];
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                if (event.getTick() > Integer.MAX_VALUE) {
+                    throw new InvalidMidiDataException("Tick out of range: " + event.getTick());
+                }
+
+                if (message instanceof MetaMessage) {
+                    MetaMessage meta = (MetaMessage) message;
+                    if (meta.getType() == PlaylistPlayer.END_OF_TRACK) {
+                        continue;
+                    }
+                    byte[] data = meta.getData();
+                    if ((meta.getType() == TEMPO) && (data.length == 3)) {
+                        tempoTicks[tempos] = event.getTick();
+                        tempoMpq[tempos] = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                        tempos++;
+                    }
+                }
+
+                ticks[events] = event.getTick();
+                messages[events] = message;
+                trackOf[events] = trackIdx;
+                events++;
+            }
+        }
+
+        // Sort by (tick, order added): ties play in track order
+        long[] keys = new long[events];
+        for (int i = 0; i < events; i++) {
+            keys[i] = (ticks[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        eventTicks = new long[events];
+        eventMessages = new MidiMessage[events];
+        eventTracks = new int[events];
+        for (int i = 0; i < events; i++) {
+            int from = (int) keys[i];
+            eventTicks[i] = ticks[from];
+            eventMessages[i] = messages[from];
+            eventTracks[i] = trackOf[from];
+        }
+        eventCount = events;
+
+        long[] tempoKeys = new long[tempos];
+        for (int i = 0; i < tempos; i++) {
+            tempoKeys[i] = (tempoTicks[i] << 32) | i;
+        }
+        Arrays.sort(tempoKeys);
+        long[] sortedTicks = new long[tempos];
+        int[] sortedMpq = new int[tempos];
+        for (int i = 0; i < tempos; i++) {
+            int from = (int) tempoKeys[i];
+            sortedTicks[i] = tempoTicks[from];
+            sortedMpq[i] = tempoMpq[from];
+        }
+
+        tickLength = sequence.getTickLength();
+        tempoMap = new TempoMap(sequence.getDivisionType(), sequence.getResolution(), defaultMpq, sortedTicks,
+                sortedMpq, tempos);
+
+        trackMute = new boolean[tracks.length];
+        trackSolo = new boolean[tracks.length];
+        soloing = false;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (!open) {
+                throw new IllegalStateException("Sequencer not open");
+            }
+            if ((sequence == null) && (song == null)) {
+                throw new IllegalStateException("No Sequence set");
+            }
+            if (player != null) {
+                return;
+            }
+
+            long tick = tickPosition;
+            timeline = new Timeline(tempoMap, System.nanoTime() - (long) (tempoMap.tickToNanos(tick) / tempoFactor),
+                    tempoFactor);
+
+            int first = firstEventAt(tick);
+            long end = (loopEnd == -1) ? tickLength : loopEnd;
+            int loops = (tick < end) ? loopCount : 0;
+            long start = loopStart;
+
+            // Notes sounding per channel * 128 + note, owned by the playback thread
+            boolean[] sounding = new boolean[16 * 128];
+            Thread thread = new Thread(() -> play(tick, first, start, end, loops, sounding), "AMIDIFX Sequencer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            player = thread;
+            thread.start();
+        }
+    }
+
+    // The playback thread turns its notes off before it ends; stop() waits up to a second for that
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = player;
+            if (thread == null) {
+                return;
+            }
+
+            tickPosition = currentTick();
+            player = null;
+            timeline = null;
+        }
+
+        LockSupport.unpark(thread);
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return player != null;
+    }
+
+    // Playback thread: send events from first (at tick) on until stopped or the end of the Sequence, loops times
+    // back from loopTo to loopFrom (LOOP_CONTINUOUSLY for ever). Then turn off the notes left sounding
+    private void play(long tick, int first, long loopFrom, long loopTo, int loops, boolean[] sounding) {
+        Thread self = Thread.currentThread();
+        int event = first;
+
+        // Start the clock once the thread runs, so thread start up does not make the first events late
+        synchronized (this) {
+            if (player == self) {
+                rebase(tick);
+            }
+        }
+
+        while (player == self) {
+            Timeline line = timeline;
+            if (line == null) {
+                break;
+            }
+
+            if ((loops != 0) && ((event == eventCount) || (eventTick(event) >= loopTo))) {
+                if (!waitUntil(self, line, line.due(line.map.tickToNanos(loopTo)))) {
+                    continue;
+                }
+
+                notesOff(sounding);
+                synchronized (this) {
+                    if ((player != self) || (timeline != line)) {
+                        continue;
+                    }
+                    long loopNanos = line.map.tickToNanos(loopTo) - line.map.tickToNanos(loopFrom);
+                    timeline = new Timeline(line.map, line.origin + (long) (loopNanos / line.factor), line.factor);
+                }
+                event = firstEventAt(loopFrom);
+                if (loops > 0) {
+                    loops--;
+                }
+                continue;
+            }
+
+            if (event == eventCount) {
+                if (waitUntil(self, line, line.due(line.map.tickToNanos(tickLength)))) {
+                    finish(self, sounding);
+                }
+                continue;
+            }
+
+            long due = line.due(line.map.tickToNanos(eventTick(event)));
+            if (!waitUntil(self, line, due)) {
+                continue;
+            }
+
+            jitter.record(System.nanoTime() - due);
+            dispatch(event, sounding);
+            event++;
+        }
+
+        notesOff(sounding);
+    }
+
+    // Park, then spin, until due. False if stopped or the Timeline changed on the way
+    private boolean waitUntil(Thread self, Timeline line, long due) {
+        while ((player == self) && (timeline == line)) {
+            long remaining = due - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+
+            if (remaining > spinNanos) {
+                LockSupport.parkNanos(remaining - spinNanos);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+        return false;
+    }
+
+    // Natural end of the Sequence: turn the notes off and stop, then tell the listeners. The notes go first, as a
+    // listener may start the next Sequence
+    private void finish(Thread self, boolean[] sounding) {
+        notesOff(sounding);
+        synchronized (this) {
+            if (player != self) {
+                return;
+            }
+            tickPosition = tickLength;
+            player = null;
+            timeline = null;
+        }
+
+        for (MetaEventListener listener : metaListeners) {
+            listener.meta(endOfTrack);
+        }
+    }
+
+    private void dispatch(int event, boolean[] sounding) {
+        MidiFileStore.StoredSong stored = song;
+        if (stored != null) {
+            dispatchStored(stored, event, sounding);
+            return;
+        }
+
+        MidiMessage message = eventMessages[event];
+
+        if (message instanceof MetaMessage) {
+            for (MetaEventListener listener : metaListeners) {
+                listener.meta((MetaMessage) message);
+            }
+            return;
+        }
+
+        int track = eventTracks[event];
+        if (trackMute[track] || (soloing && !trackSolo[track])) {
+            return;
+        }
+
+        dispatchChannel(message, sounding);
+    }
+
+    // The store holds channel messages only, all on track 0
+    private void dispatchStored(MidiFileStore.StoredSong stored, int event, boolean[] sounding) {
+        if (trackMute[0] || (soloing && !trackSolo[0])) {
+            return;
+        }
+
+        try {
+            songMessage.setMessage(stored.getStatus(event), stored.getData1(event), stored.getData2(event));
+        }
+        catch (InvalidMidiDataException e) {
+            return;
+        }
+        dispatchChannel(songMessage, sounding);
+    }
+
+    private void dispatchChannel(MidiMessage message, boolean[] sounding) {
+        int status = message.getStatus();
+        int command = status & 0xF0;
+        if ((command == ShortMessage.NOTE_ON) || (command == ShortMessage.NOTE_OFF)) {
+            ShortMessage note = (ShortMessage) message;
+            sounding[((status & 0x0F) << 7) | note.getData1()] = (command == ShortMessage.NOTE_ON)
+                    && (note.getData2() > 0);
+        }
+
+        send(message);
+
+        if (command == ShortMessage.CONTROL_CHANGE) {
+            int controller = ((ShortMessage) message).getData1();
+            for (ControllerRegistration registration : controllerListeners) {
+                if (registration.controllers[controller]) {
+                    registration.listener.controlChange((ShortMessage) message);
+                }
+            }
+        }
+    }
+
+    private void send(MidiMessage message) {
+        for (SequencerTransmitter transmitter : transmitters) {
+            Receiver receiver = transmitter.receiver;
+            if (receiver != null) {
+                receiver.send(message, -1);
+            }
+        }
+    }
+
+    // Playback thread: Note Off for every note the Sequence left sounding
+    private void notesOff(boolean[] sounding) {
+        ShortMessage off = new ShortMessage();
+        for (int idx = 0; idx < sounding.length; idx++) {
+            if (!sounding[idx]) {
+                continue;
+            }
+
+            sounding[idx] = false;
+            try {
+                off.setMessage(ShortMessage.NOTE_OFF, idx >> 7, idx & 0x7F, 0);
+                send(off);
+            }
+            catch (InvalidMidiDataException e) {
+                // Channel and note are in range
+            }
+        }
+    }
+
+    private long eventTick(int event) {
+        MidiFileStore.StoredSong stored = song;
+        return (stored != null) ? stored.getTick(event) : eventTicks[event];
+    }
+
+    // First event at or after tick
+    private int firstEventAt(long tick) {
+        int low = 0;
+        int high = eventCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (eventTick(mid) < tick) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Tick now playing, or where playback stopped
+    private long currentTick() {
+        Timeline line = timeline;
+        if (line == null) {
+            return tickPosition;
+        }
+        return Math.max(0, Math.min(tickLength, line.tickAt(System.nanoTime())));
+    }
+
+    // Restart the Timeline at tick with the current tempo map and factor
+    private void rebase(long tick) {
+        if (timeline != null) {
+            timeline = new Timeline(tempoMap, System.nanoTime() - (long) (tempoMap.tickToNanos(tick) / tempoFactor),
+                    tempoFactor);
+            LockSupport.unpark(player);
+        }
+    }
+
+    @Override
+    public synchronized float getTempoInBPM() {
+        return 60_000_000f / getTempoInMPQ();
+    }
+
+    @Override
+    public void setTempoInBPM(float bpm) {
+        if (bpm > 0) {
+            setTempoInMPQ(60_000_000f / bpm);
+        }
+    }
+
+    @Override
+    public synchronized float getTempoInMPQ() {
+        return (tempoMap == null) ? defaultMpq : tempoMap.mpqAt(currentTick());
+    }
+
+    @Override
+    public synchronized void setTempoInMPQ(float mpq) {
+        if (mpq <= 0) {
+            return;
+        }
+
+        defaultMpq = (int) mpq;
+        if (tempoMap != null) {
+            long tick = currentTick();
+            tempoMap = tempoMap.withTempo(tick, (int) mpq);
+            rebase(tick);
+        }
+    }
+
+    @Override
+    public synchronized void setTempoFactor(float factor) {
+        if (factor <= 0) {
+            return;
+        }
+
+        long tick = currentTick();
+        tempoFactor = factor;
+        rebase(tick);
+    }
+
+    @Override
+    public synchronized float getTempoFactor() {
+        return tempoFactor;
+    }
+
+    @Override
+    public synchronized long getTickLength() {
+        return tickLength;
+    }
+
+    @Override
+    public synchronized long getTickPosition() {
+        return currentTick();
+    }
+
+    @Override
+    public void setTickPosition(long tick) {
+        boolean wasRunning = isRunning();
+        stop();
+
+        synchronized (this) {
+            tickPosition = Math.max(0, Math.min(tickLength, tick));
+        }
+
+        if (wasRunning) {
+            start();
+        }
+    }
+
+    @Override
+    public synchronized long getMicrosecondLength() {
+        return (tempoMap == null) ? 0 : tempoMap.tickToNanos(tickLength) / 1000;
+    }
+
+    @Override
+    public synchronized long getMicrosecondPosition() {
+        return (tempoMap == null) ? 0 : tempoMap.tickToNanos(currentTick()) / 1000;
+    }
+
+    @Override
+    public void setMicrosecondPosition(long microseconds) {
+        long tick;
+        synchronized (this) {
+            tick = (tempoMap == null) ? 0 : tempoMap.nanosToTick(microseconds * 1000);
+        }
+        setTickPosition(tick);
+    }
+
+    // Recording is not supported
+
+    @Override
+    public void startRecording() {
+    }
+
+    @Override
+    public void stopRecording() {
+    }
+
+    @Override
+    public boolean isRecording() {
+        return false;
+    }
+
+    @Override
+    public void recordEnable(Track track, int channel) {
+    }
+
+    @Override
+    public void recordDisable(Track track) {
+    }
+
+    @Override
+    public void setMasterSyncMode(SyncMode sync) {
+        if (sync != SyncMode.INTERNAL_CLOCK) {
+            throw new IllegalArgumentException("Unsupported master sync mode: " + sync);
+        }
+    }
+
+    @Override
+    public SyncMode getMasterSyncMode() {
+        return SyncMode.INTERNAL_CLOCK;
+    }
+
+    @Override
+    public SyncMode[] getMasterSyncModes() {
+        return new SyncMode[]{SyncMode.INTERNAL_CLOCK};
+    }
+
+    @Override
+    public void setSlaveSyncMode(SyncMode sync) {
+        if (sync != SyncMode.NO_SYNC) {
+            throw new IllegalArgumentException("Unsupported slave sync mode: " + sync);
+        }
+    }
+
+    @Override
+    public SyncMode getSlaveSyncMode() {
+        return SyncMode.NO_SYNC;
+    }
+
+    @Override
+    public SyncMode[] getSlaveSyncModes() {
+        return new SyncMode[]{SyncMode.NO_SYNC};
+    }
+
+    @Override
+    public synchronized void setTrackMute(int track, boolean mute) {
+        if ((track >= 0) && (track < trackMute.length)) {
+            trackMute[track] = mute;
+        }
+    }
+
+    @Override
+    public synchronized boolean getTrackMute(int track) {
+        return (track >= 0) && (track < trackMute.length) && trackMute[track];
+    }
+
+    @Override
+    public synchronized void setTrackSolo(int track, boolean solo) {
+        if ((track >= 0) && (track < trackSolo.length)) {
+            trackSolo[track] = solo;
+
+            boolean any = false;
+            for (boolean trackSoloed : trackSolo) {
+                any |= trackSoloed;
+            }
+            soloing = any;
+        }
+    }
+
+    @Override
+    public synchronized boolean getTrackSolo(int track) {
+        return (track >= 0) && (track < trackSolo.length) && trackSolo[track];
+    }
+
+    @Override
+    public boolean addMetaEventListener(MetaEventListener listener) {
+        if (!metaListeners.contains(listener)) {
+            metaListeners.add(listener);
+        }
+        return true;
+    }
+
+    @Override
+    public void removeMetaEventListener(MetaEventListener listener) {
+        metaListeners.remove(listener);
+    }
+
+    // Null or no controllers registers for all of them
+    @Override
+    public synchronized int[] addControllerEventListener(ControllerEventListener listener, int[] controllers) {
+        ControllerRegistration registration = findRegistration(listener);
+        if (registration == null) {
+            registration = new ControllerRegistration(listener);
+            ControllerRegistration[] grown = Arrays.copyOf(controllerListeners, controllerListeners.length + 1);
+            grown[grown.length - 1] = registration;
+            controllerListeners = grown;
+        }
+
+        if ((controllers == null) || (controllers.length == 0)) {
+            Arrays.fill(registration.controllers, true);
+        }
+        else {
+            for (int controller : controllers) {
+                if ((controller >= 0) && (controller < 128)) {
+                    registration.controllers[controller] = true;
+                }
+            }
+        }
+        return registration.registered();
+    }
+
+    // Null or no controllers removes the listener
+    @Override
+    public synchronized int[] removeControllerEventListener(ControllerEventListener listener, int[] controllers) {
+        ControllerRegistration registration = findRegistration(listener);
+        if (registration == null) {
+            return new int[0];
+        }
+
+        if ((controllers != null) && (controllers.length > 0)) {
+            for (int controller : controllers) {
+                if ((controller >= 0) && (controller < 128)) {
+                    registration.controllers[controller] = false;
+                }
+            }
+            int[] remaining = registration.registered();
+            if (remaining.length > 0) {
+                return remaining;
+            }
+        }
+
+        List<ControllerRegistration> kept = new ArrayList<>(Arrays.asList(controllerListeners));
+        kept.remove(registration);
+        controllerListeners = kept.toArray(new ControllerRegistration[0]);
+        return new int[0];
+    }
+
+    private ControllerRegistration findRegistration(ControllerEventListener listener) {
+        for (ControllerRegistration registration : controllerListeners) {
+            if (registration.listener == listener) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void setLoopStartPoint(long tick) {
+        if ((tick < 0) || (tick > tickLength) || ((loopEnd != -1) && (tick > loopEnd))) {
+            throw new IllegalArgumentException("Invalid loop start point: " + tick);
+        }
+        loopStart = tick;
+    }
+
+    @Override
+    public synchronized long getLoopStartPoint() {
+        return loopStart;
+    }
+
+    @Override
+    public synchronized void setLoopEndPoint(long tick) {
+        if ((tick < -1) || (tick > tickLength) || ((tick != -1) && (tick < loopStart))) {
+            throw new IllegalArgumentException("Invalid loop end point: " + tick);
+        }
+        loopEnd = tick;
+    }
+
+    @Override
+    public synchronized long getLoopEndPoint() {
+        return loopEnd;
+    }
+
+    @Override
+    public synchronized void setLoopCount(int count) {
+        if ((count < 0) && (count != LOOP_CONTINUOUSLY)) {
+            throw new IllegalArgumentException("Invalid loop count: " + count);
+        }
+        loopCount = count;
+    }
+
+    @Override
+    public synchronized int getLoopCount() {
+        return loopCount;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return -1;
+    }
+
+    @Override
+    public Receiver getReceiver() throws MidiUnavailableException {
+        throw new MidiUnavailableException("Precision Sequencer does not record");
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized Transmitter getTransmitter() {
+        SequencerTransmitter transmitter = new SequencerTransmitter();
+        SequencerTransmitter[] grown = Arrays.copyOf(transmitters, transmitters.length + 1);
+        grown[grown.length - 1] = transmitter;
+        transmitters = grown;
+        return transmitter;
+    }
+
+    @Override
+    public synchronized List<Transmitter> getTransmitters() {
+        return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(transmitters)));
+    }
+
+    private synchronized void removeTransmitter(SequencerTransmitter transmitter) {
+        List<SequencerTransmitter> kept = new ArrayList<>(Arrays.asList(transmitters));
+        kept.remove(transmitter);
+        transmitters = kept.toArray(new SequencerTransmitter[0]);
+    }
+
+    @Override
+    public String toString() {
+        return "Precision Sequencer = [spin=" + (spinNanos / 1000) + "us, " + jitter + "]";
+    }
+}
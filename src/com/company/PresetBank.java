@@ -0,0 +1,225 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled, versioned binary Preset bank, opened with a read only MappedByteBuffer.
+ *
+ * Opening a bank only maps the file and checks its header, and selecting a Preset is an offset lookup: no parsing,
+ * and no objects per layer unless MidiLayers are asked for. Layout (big endian):
+ * 1. Header, 32 bytes: magic "AMFX", version, record size, record count, index size, index offset, records offset
+ * 2. Index, 8 bytes per presetIdx 0..index size - 1: first record, record count (0 for an unused presetIdx)
+ * 3. Records, 64 bytes per layer: MidiLayer getChannelOut() structure (23 bytes), velocity curve, moduleIdx,
+ *    reserved, patchIdx (short), reserved to 32, layer name (32 bytes UTF-8, zero padded)
+ *
+ * Banks are produced from preset CSV files by PresetBankConverter.
+ */
+public class PresetBank {
+    public static final int MAGIC = 0x414D4658;     // "AMFX"
+    public static final int VERSION = 1;
+
+    // Highest presetIdx a bank holds
+    public static final int MAX_PRESET_IDX = 0xFFFF;
+
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 8;
+    static final int RECORD_SIZE = 64;
+    static final int STRUCT_SIZE = 23;
+    static final int NAME_OFFSET = 32;
+    static final int NAME_SIZE = 32;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final int recordCount;
+    private final int indexSize;
+    private final int indexOffset;
+    private final int recordsOffset;
+
+    private PresetBank(Path path, ByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+
+        if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)) {
+            throw new IOException("Not a Preset bank: " + path);
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported Preset bank version " + buffer.getShort(4) + ": " + path);
+        }
+        if (buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Unexpected Preset bank record size " + buffer.getInt(8) + ": " + path);
+        }
+
+        this.recordCount = buffer.getInt(12);
+        this.indexSize = buffer.getInt(16);
+        this.indexOffset = buffer.getInt(20);
+        this.recordsOffset = buffer.getInt(24);
+
+        if (recordsOffset + (long) recordCount * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated Preset bank: " + path);
+        }
+    }
+
+    // Map a bank file
+    public static PresetBank open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new PresetBank(path, buffer);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Highest presetIdx + 1
+    public int getPresetCount() {
+        return indexSize;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // Number of layers of a Preset, 0 if it is not in the bank
+    public int getLayerCount(int presetIdx) {
+        if ((presetIdx < 0) || (presetIdx >= indexSize)) {
+            return 0;
+        }
+        return buffer.getInt(indexOffset + presetIdx * INDEX_ENTRY_SIZE + 4);
+    }
+
+    // Copy the channel out structure of a layer into struct, which must hold at least 23 bytes
+    public void getChannelOut(int presetIdx, int layer, byte[] struct) {
+        int offset = recordOffset(presetIdx, layer);
+        for (int i = 0; i < STRUCT_SIZE; i++) {
+            struct[i] = buffer.get(offset + i);
+        }
+    }
+
+    public VelocityCurve getVelocityCurve(int presetIdx, int layer) {
+        return VelocityCurve.values()[buffer.get(recordOffset(presetIdx, layer) + STRUCT_SIZE)];
+    }
+
+    public int getModuleIdx(int presetIdx, int layer) {
+        return buffer.get(recordOffset(presetIdx, layer) + STRUCT_SIZE + 1);
+    }
+
+    public int getPatchIdx(int presetIdx, int layer) {
+        return buffer.getShort(recordOffset(presetIdx, layer) + STRUCT_SIZE + 3);
+    }
+
+    public String getName(int presetIdx, int layer) {
+        int offset = recordOffset(presetIdx, layer) + NAME_OFFSET;
+        byte[] name = new byte[NAME_SIZE];
+
+        int length = 0;
+        while ((length < NAME_SIZE) && (buffer.get(offset + length) != 0)) {
+            name[length] = buffer.get(offset + length);
+            length++;
+        }
+
+        return new String(name, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Compile a Preset straight from the mapped records
+    public RoutingTable compile(int presetIdx) {
+        RoutingTable.Builder builder = new RoutingTable.Builder(presetIdx);
+        byte[] struct = new byte[STRUCT_SIZE];
+
+        int layers = getLayerCount(presetIdx);
+        for (int layer = 0; layer < layers; layer++) {
+            getChannelOut(presetIdx, layer, struct);
+            builder.addChannelOut(struct, getVelocityCurve(presetIdx, layer));
+        }
+
+        return builder.build();
+    }
+
+    // MidiLayers of a Preset, e.g. to forward to the ARM controller
+    public MidiLayer[] getLayers(int presetIdx) {
+        int layers = getLayerCount(presetIdx);
+        MidiLayer[] midiLayers = new MidiLayer[layers];
+
+        for (int layer = 0; layer < layers; layer++) {
+            byte[] struct = new byte[STRUCT_SIZE];
+            getChannelOut(presetIdx, layer, struct);
+            midiLayers[layer] = new MidiLayer(presetIdx, struct, getModuleIdx(presetIdx, layer),
+                    getPatchIdx(presetIdx, layer), getVelocityCurve(presetIdx, layer));
+            midiLayers[layer].setName(getName(presetIdx, layer));
+        }
+
+        return midiLayers;
+    }
+
+    private int recordOffset(int presetIdx, int layer) {
+        if (layer >= getLayerCount(presetIdx)) {
+            throw new IndexOutOfBoundsException("Preset " + presetIdx + " has no layer " + layer);
+        }
+
+        int first = buffer.getInt(indexOffset + presetIdx * INDEX_ENTRY_SIZE);
+        return recordsOffset + (first + layer) * RECORD_SIZE;
+    }
+
+    // Write a bank from the layers of each Preset, keyed by presetIdx
+    public static void write(Path path, Map<Integer, List<MidiLayer>> presets) throws IOException {
+        int indexSize = 0;
+        int recordCount = 0;
+        for (Map.Entry<Integer, List<MidiLayer>> preset : presets.entrySet()) {
+            if ((preset.getKey() < 0) || (preset.getKey() > MAX_PRESET_IDX)) {
+                throw new IllegalArgumentException("presetIdx " + preset.getKey() + " out of range");
+            }
+            indexSize = Math.max(indexSize, preset.getKey() + 1);
+            recordCount += preset.getValue().size();
+        }
+
+        int indexOffset = HEADER_SIZE;
+        int recordsOffset = indexOffset + indexSize * INDEX_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(recordsOffset + recordCount * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, (short) VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putInt(12, recordCount);
+        buffer.putInt(16, indexSize);
+        buffer.putInt(20, indexOffset);
+        buffer.putInt(24, recordsOffset);
+
+        int record = 0;
+        for (Map.Entry<Integer, List<MidiLayer>> preset : presets.entrySet()) {
+            buffer.putInt(indexOffset + preset.getKey() * INDEX_ENTRY_SIZE, record);
+            buffer.putInt(indexOffset + preset.getKey() * INDEX_ENTRY_SIZE + 4, preset.getValue().size());
+
+            for (MidiLayer layer : preset.getValue()) {
+                int offset = recordsOffset + record * RECORD_SIZE;
+                byte[] struct = layer.getChannelOut();
+
+                buffer.position(offset);
+                buffer.put(struct, 0, STRUCT_SIZE);
+                buffer.put(offset + STRUCT_SIZE, (byte) layer.getVelocityCurve().ordinal());
+                buffer.put(offset + STRUCT_SIZE + 1, (byte) layer.getModuleIdx());
+                buffer.putShort(offset + STRUCT_SIZE + 3, (short) layer.getPatchIdx());
+
+                String name = layer.getName();
+                if ((name != null) && !name.isEmpty()) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    buffer.position(offset + NAME_OFFSET);
+                    buffer.put(bytes, 0, Math.min(bytes.length, NAME_SIZE));
+                }
+                record++;
+            }
+        }
+
+        buffer.clear();
+        Files.write(path, buffer.array());
+    }
+}
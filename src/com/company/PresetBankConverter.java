@@ -0,0 +1,62 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Convert a Preset CSV file into a binary PresetBank.
+ *
+ * One layer per line: presetIdx,channelIdx,channelOutIdx,octaveTran,moduleIdx,patchIdx[,velocityCurve[,name]]
+ * where channelOutIdx lists the 1 based output channels separated by '|' (0 mutes), e.g.
+ *   12,1,2|3|0|5,-1,0,106,SOFT,Klaus sein Sax
+ * Lines in the preset file layout, with the layer's sound settings between octaveTran and the name, are read too:
+ *   0,12,12,0,106,121,100,0,100,100,20,0,0,0,0,3,8,Klaus sein Sax
+ * They are told apart by the field after patchIdx, which is a number there. Sound settings are the sound module's
+ * and are not kept: such a layer plays on module 0 with no Patch database index (PresetParser.NO_PATCH).
+ * Empty lines and lines starting with '#' are skipped.
+ *
+ * Usage: PresetBankConverter presets.csv presets.bnk
+ */
+public class PresetBankConverter {
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: PresetBankConverter <presets.csv> <presets.bnk>");
+            System.exit(-1);
+        }
+
+        try {
+            int layers = convert(Paths.get(args[0]), Paths.get(args[1]));
+            System.out.println("Converted " + layers + " Preset layers to " + args[1]);
+        }
+        catch (IOException ex) {
+            System.err.println("Preset bank conversion failed: " + ex.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    // Returns the number of layers written
+    public static int convert(Path csv, Path bank) throws IOException {
+        List<MidiLayer> layers;
+        try {
+            layers = PresetParser.parse(csv);
+        }
+        catch (ParseException ex) {
+            throw new IOException(csv + ": " + ex.getMessage(), ex);
+        }
+
+        Map<Integer, List<MidiLayer>> presets = new TreeMap<>();
+        for (MidiLayer layer : layers) {
+            presets.computeIfAbsent(layer.getPresetIdx(), k -> new ArrayList<>()).add(layer);
+        }
+
+        PresetBank.write(bank, presets);
+        return layers.size();
+    }
+}
@@ -0,0 +1,223 @@
+package com.company;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of compiled Presets in front of the PresetBank, so selecting a Preset is a map lookup instead
+ * of building MidiLayers and a RoutingTable.
+ *
+ * Every lookup prefetches the neighbours of the Preset (n-1, n+1) and the Presets of the next songs in the song
+ * list on a background thread at minimum priority. Hits, misses, evictions and prefetches are counted.
+ */
+public class PresetCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int SONG_LOOKAHEAD = 2;
+
+    // A Preset ready to select
+    public static class CompiledPreset {
+        private final int presetIdx;
+        private final MidiLayer[] layers;
+        private final RoutingTable routing;
+
+        CompiledPreset(int presetIdx, MidiLayer[] layers, RoutingTable routing) {
+            this.presetIdx = presetIdx;
+            this.layers = layers;
+            this.routing = routing;
+        }
+
+        public int getPresetIdx() {
+            return presetIdx;
+        }
+
+        public MidiLayer[] getLayers() {
+            return layers;
+        }
+
+        public RoutingTable getRouting() {
+            return routing;
+        }
+    }
+
+    private final PresetBank bank;
+    private final int capacity;
+    private final LinkedHashMap<Integer, CompiledPreset> presets;
+    private final Map<Integer, Boolean> prefetching = new ConcurrentHashMap<>();
+    private final ExecutorService prefetcher;
+
+    private volatile SongList songs;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+
+    public PresetCache(PresetBank bank, int capacity) {
+        this.bank = bank;
+        this.capacity = Math.max(1, capacity);
+        this.presets = new LinkedHashMap<Integer, CompiledPreset>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CompiledPreset> eldest) {
+                if (size() > PresetCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Preset prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // Song order to prefetch along, null for neighbours only
+    public void setSongs(SongList songs) {
+        this.songs = songs;
+    }
+
+    // Compiled Preset, null if it is not in the bank. Prefetches what is likely selected next
+    public CompiledPreset get(int presetIdx) {
+        CompiledPreset preset;
+        synchronized (presets) {
+            preset = presets.get(presetIdx);
+        }
+
+        if (preset != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+            preset = load(presetIdx);
+        }
+
+        prefetchAround(presetIdx);
+        return preset;
+    }
+
+    // Load presetIdx in the background, if it is not cached yet
+    public void prefetch(int presetIdx) {
+        if ((presetIdx < 0) || (presetIdx >= bank.getPresetCount()) || (bank.getLayerCount(presetIdx) == 0)) {
+            return;
+        }
+        synchronized (presets) {
+            if (presets.containsKey(presetIdx)) {
+                return;
+            }
+        }
+        if (prefetching.putIfAbsent(presetIdx, Boolean.TRUE) != null) {
+            return;
+        }
+
+        prefetcher.execute(() -> {
+            try {
+                boolean cached;
+                synchronized (presets) {
+                    cached = presets.containsKey(presetIdx);
+                }
+                if (!cached) {
+                    load(presetIdx);
+                    prefetches.incrementAndGet();
+                }
+            }
+            finally {
+                prefetching.remove(presetIdx);
+            }
+        });
+    }
+
+    private void prefetchAround(int presetIdx) {
+        prefetch(presetIdx + 1);
+        prefetch(presetIdx - 1);
+
+        SongList songList = songs;
+        if (songList == null) {
+            return;
+        }
+
+        int position = songList.positionOfPreset(presetIdx);
+        if (position < 0) {
+            return;
+        }
+        for (int next = position + 1; (next <= position + SONG_LOOKAHEAD) && (next < songList.size()); next++) {
+            prefetch(songList.get(next).getPresetIdx());
+        }
+    }
+
+    private CompiledPreset load(int presetIdx) {
+        if (bank.getLayerCount(presetIdx) == 0) {
+            return null;
+        }
+
+        MidiLayer[] layers = bank.getLayers(presetIdx);
+        CompiledPreset preset = new CompiledPreset(presetIdx, layers, RoutingTable.compile(presetIdx, layers));
+
+        synchronized (presets) {
+            CompiledPreset cached = presets.get(presetIdx);
+            if (cached != null) {
+                return cached;
+            }
+            presets.put(presetIdx, preset);
+        }
+        return preset;
+    }
+
+    public boolean isCached(int presetIdx) {
+        synchronized (presets) {
+            return presets.containsKey(presetIdx);
+        }
+    }
+
+    public int size() {
+        synchronized (presets) {
+            return presets.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    // Drop all Presets, e.g. after the bank was rebuilt. Counters are kept
+    public void clear() {
+        synchronized (presets) {
+            presets.clear();
+        }
+    }
+
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        long lookups = getHits() + getMisses();
+        return "Preset Cache: " + size() + "/" + capacity + " Presets, hits " + getHits() + ", misses " + getMisses()
+                + (lookups > 0 ? String.format(" (%.1f%% hit)", 100.0 * getHits() / lookups) : "")
+                + ", evictions " + getEvictions() + ", prefetched " + getPrefetches();
+    }
+}
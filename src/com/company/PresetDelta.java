@@ -0,0 +1,161 @@
+package com.company;
+
+import java.util.Arrays;
+
+/** PresetDelta forwards MidiLayer changes to the ARM MIDI Controller on Preset selection:
+ * 1. The first selection (or after a reset) forwards the layer records of all 16 input channels
+ * 2. Subsequent selections forward only the records that differ from what the controller already holds
+ * 3. Channels without a layer in the new Preset are forwarded as a muted record (all channel outs 0)
+ * 4. Layers sharing an input channel are merged into one record, their channel outs in layer order, as
+ *    RoutingTable.compile lists them; channel outs beyond the 10 slots of a record are dropped
+ *
+ * Note: A layer record is the MidiLayer getChannelOut() structure. The leading presetIdx byte is not compared, as it
+ * differs for every Preset while the routing often does not.
+ */
+
+public class PresetDelta {
+    public static final int CHANNELS = 16;
+    public static final int RECORD_LENGTH = 23;
+
+    // Link to the ARM controller
+    public interface RecordSink {
+        void sendRecord(byte[] record);
+    }
+
+    // Records the controller holds per input channel (0 based), null until first forwarded
+    private final byte[][] sentRecords = new byte[CHANNELS][];
+
+    // Reports skipped layers and each forward, null for none
+    private volatile DiagnosticJournal journal;
+
+    private long recordsSent = 0;
+    private long bytesSent = 0;
+    private long bytesSaved = 0;
+
+    // Forward the changed layer records of the selected Preset. Returns the number of records sent
+    public int forward(int presetIdx, MidiLayer[] layers, RecordSink sink) {
+        byte[][] records = new byte[CHANNELS][];
+
+        for (MidiLayer layer : layers) {
+            byte[] struct = layer.getChannelOut();
+            int channel = struct[1] - 1;
+            if ((channel < 0) || (channel >= CHANNELS)) {
+                log("Preset Delta: Skipping layer with invalid channel " + struct[1]);
+                continue;
+            }
+
+            if (records[channel] == null) {
+                records[channel] = mutedRecord(presetIdx, channel + 1);
+                records[channel][RECORD_LENGTH - 1] = struct[struct.length - 1];
+            }
+            else if (records[channel][RECORD_LENGTH - 1] != struct[struct.length - 1]) {
+                log("Preset Delta: Channel " + (channel + 1) + " layers differ in octave, the first layer's is sent");
+            }
+            merge(records[channel], struct);
+        }
+
+        int sent = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            byte[] record = records[channel];
+            if (record == null) {
+                record = mutedRecord(presetIdx, channel + 1);
+            }
+
+            if (isUnchanged(sentRecords[channel], record)) {
+                bytesSaved += record.length;
+                continue;
+            }
+
+            byte[] copy = record.clone();
+            sink.sendRecord(copy);
+            sentRecords[channel] = copy;
+
+            recordsSent++;
+            bytesSent += copy.length;
+            sent++;
+        }
+
+        log("Preset Delta: Preset " + presetIdx + " forwarded " + sent + " of " + CHANNELS
+                + " layer records, " + bytesSaved + " bytes saved to date");
+
+        return sent;
+    }
+
+    public void setJournal(DiagnosticJournal journal) {
+        this.journal = journal;
+    }
+
+    // Forget what the controller holds, e.g. after it reconnected, so the next forward sends all records
+    public void reset() {
+        Arrays.fill(sentRecords, null);
+    }
+
+    public long getRecordsSent() {
+        return recordsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    // Compare everything except the leading presetIdx
+    private boolean isUnchanged(byte[] previous, byte[] record) {
+        if ((previous == null) || (previous.length != record.length)) {
+            return false;
+        }
+
+        for (int i = 1; i < record.length; i++) {
+            if (previous[i] != record[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Append the non muted channel outs of struct to the free slots of record
+    private void merge(byte[] record, byte[] struct) {
+        int slot = 2;
+        while ((slot < RECORD_LENGTH - 1) && (record[slot + 1] != 0)) {
+            slot += 2;
+        }
+
+        for (int j = 2; j + 1 < struct.length - 1; j = j + 2) {
+            if (struct[j + 1] == 0) {
+                continue;
+            }
+            if (slot >= RECORD_LENGTH - 1) {
+                log("Preset Delta: Maximum channel outs reached on channel " + record[1]);
+                return;
+            }
+            record[slot] = struct[j];
+            record[slot + 1] = struct[j + 1];
+            slot += 2;
+        }
+    }
+
+    private void log(String text) {
+        DiagnosticJournal journal = this.journal;
+        if (journal != null) {
+            journal.info(text);
+        }
+    }
+
+    private byte[] mutedRecord(int presetIdx, int channelIdx) {
+        byte[] record = new byte[RECORD_LENGTH];
+        record[0] = (byte)(presetIdx & 0xFF);
+        record[1] = (byte)(channelIdx & 0xFF);
+
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        return "Preset Delta = [recordsSent=" + recordsSent + ", bytesSent=" + bytesSent
+                + ", bytesSaved=" + bytesSaved + "]";
+    }
+}
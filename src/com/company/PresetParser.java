@@ -0,0 +1,390 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Streaming, byte level parser for Preset CSV files (format see PresetBankConverter).
+ *
+ * The file is mapped and parsed in place: no line Strings, no splitting, multi-digit and signed fields, and each
+ * channel out list goes straight into a MidiLayer channel out structure. Only a layer name becomes a String.
+ * Large files are split at line boundaries over fork-join workers; layers are returned in file order.
+ * Errors are reported as a ParseException whose error offset is the 1 based line number.
+ */
+public class PresetParser {
+
+    // patchIdx of a layer from the preset file layout, which has no Patch database index
+    public static final int NO_PATCH = -1;
+
+    // Below this many bytes a range is parsed on the current thread
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHANNELS = (PresetBank.STRUCT_SIZE - 3) / 2;
+
+    private final ByteBuffer buffer;
+
+    private PresetParser(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    // Parse a Preset CSV file
+    public static List<MidiLayer> parse(Path path) throws IOException, ParseException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return new ArrayList<>();
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Parse Preset CSV data between position and limit of buffer
+    public static List<MidiLayer> parse(ByteBuffer buffer) throws ParseException {
+        PresetParser parser = new PresetParser(buffer);
+
+        if (buffer.remaining() <= CHUNK_SIZE) {
+            List<MidiLayer> layers = new ArrayList<>();
+            parser.parseRange(buffer.position(), buffer.limit(), layers);
+            return layers;
+        }
+
+        try {
+            return ForkJoinPool.commonPool().invoke(parser.new ChunkTask(buffer.position(), buffer.limit()));
+        }
+        catch (ParseFailure failure) {
+            throw failure.exception;
+        }
+    }
+
+    // Parse whole lines from start (a line start) up to end (a line start or the limit)
+    private void parseRange(int start, int end, List<MidiLayer> layers) throws ParseException {
+        int pos = start;
+        int line = 0;
+
+        while (pos < end) {
+            line++;
+            int eol = pos;
+            while ((eol < end) && (buffer.get(eol) != '\n')) {
+                eol++;
+            }
+
+            try {
+                MidiLayer layer = parseLine(pos, eol);
+                if (layer != null) {
+                    layers.add(layer);
+                }
+            }
+            catch (IllegalArgumentException ex) {
+                int lineNumber = linesBefore(start) + line;
+                throw new ParseException("Preset line " + lineNumber + ": " + ex.getMessage(), lineNumber);
+            }
+
+            pos = eol + 1;
+        }
+    }
+
+    // presetIdx,channelIdx,channelOutIdx,octaveTran,moduleIdx,patchIdx[,velocityCurve[,name]], or the preset file
+    // layout presetIdx,channelIdx,channelOutIdx,octaveTran,<sound settings>,name
+    private MidiLayer parseLine(int start, int end) {
+        Cursor cursor = new Cursor(start, end);
+
+        cursor.skipSpaces();
+        if (cursor.atEnd() || (buffer.get(cursor.pos) == '#')) {
+            return null;
+        }
+
+        byte[] struct = new byte[PresetBank.STRUCT_SIZE];
+        int presetIdx = cursor.nextInt("presetIdx", 0, PresetBank.MAX_PRESET_IDX);
+        int channelIdx = cursor.nextInt("channelIdx", 1, RoutingTable.CHANNELS);
+        int channels = cursor.nextChannels(struct);
+        int octaveTran = cursor.nextInt("octaveTran", Byte.MIN_VALUE, Byte.MAX_VALUE);
+
+        int moduleIdx;
+        int patchIdx;
+        VelocityCurve curve;
+        int settings = cursor.numbersAhead();
+        if (settings > 2) {
+            // Preset file layout: the sound settings are the sound module's, the layer plays on module 0
+            for (int i = 0; i < settings; i++) {
+                cursor.nextInt("sound setting");
+            }
+            moduleIdx = 0;
+            patchIdx = NO_PATCH;
+            curve = VelocityCurve.LINEAR;
+        }
+        else {
+            moduleIdx = cursor.nextInt("moduleIdx", 0, ModuleRegistry.MAX_MODULES - 1);
+            patchIdx = cursor.nextInt("patchIdx", 0, PatchDatabase.MAX_PATCH_IDX);
+            curve = cursor.nextCurve();
+        }
+        String name = cursor.rest();
+
+        // The structure shared with the ARM controller holds the low byte of presetIdx; the layer keeps all of it
+        struct[0] = (byte) presetIdx;
+        struct[1] = (byte) channelIdx;
+        for (int j = 2; j < 2 + channels * 2; j = j + 2) {
+            struct[j] = (byte) moduleIdx;
+        }
+        struct[struct.length - 1] = (byte) octaveTran;
+
+        MidiLayer layer = new MidiLayer(presetIdx, struct, moduleIdx, patchIdx, curve);
+        layer.setName(name);
+        return layer;
+    }
+
+    // Only used to report errors
+    private int linesBefore(int offset) {
+        int lines = 0;
+        for (int i = buffer.position(); i < offset; i++) {
+            if (buffer.get(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Position within one line
+     */
+    private class Cursor {
+        int pos;
+        final int end;
+
+        Cursor(int start, int end) {
+            this.pos = start;
+            this.end = ((end > start) && (buffer.get(end - 1) == '\r')) ? end - 1 : end;
+        }
+
+        boolean atEnd() {
+            return pos >= end;
+        }
+
+        void skipSpaces() {
+            while ((pos < end) && ((buffer.get(pos) == ' ') || (buffer.get(pos) == '\t'))) {
+                pos++;
+            }
+        }
+
+        // Step over the field separator, if there is one
+        void endField(String field) {
+            skipSpaces();
+            if (pos < end) {
+                if (buffer.get(pos) != ',') {
+                    throw new IllegalArgumentException("unexpected '" + (char) buffer.get(pos) + "' after " + field);
+                }
+                pos++;
+            }
+        }
+
+        // Number of whole number fields from here that are followed by another field, without moving. The last field
+        // is not counted, as it may be a name
+        int numbersAhead() {
+            int count = 0;
+            int i = pos;
+
+            while (true) {
+                while ((i < end) && ((buffer.get(i) == ' ') || (buffer.get(i) == '\t'))) {
+                    i++;
+                }
+                if ((i < end) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+                    i++;
+                }
+                int digits = 0;
+                while ((i < end) && (buffer.get(i) >= '0') && (buffer.get(i) <= '9')) {
+                    i++;
+                    digits++;
+                }
+                while ((i < end) && ((buffer.get(i) == ' ') || (buffer.get(i) == '\t'))) {
+                    i++;
+                }
+                if ((digits == 0) || (i >= end) || (buffer.get(i) != ',')) {
+                    return count;
+                }
+                count++;
+                i++;
+            }
+        }
+
+        // Number between min and max
+        int nextInt(String field, int min, int max) {
+            int value = nextInt(field);
+            if ((value < min) || (value > max)) {
+                throw new IllegalArgumentException(field + " " + value + " out of range " + min + ".." + max);
+            }
+            return value;
+        }
+
+        int nextInt(String field) {
+            skipSpaces();
+            boolean negative = false;
+            if ((pos < end) && ((buffer.get(pos) == '-') || (buffer.get(pos) == '+'))) {
+                negative = buffer.get(pos) == '-';
+                pos++;
+            }
+
+            int digits = 0;
+            int value = 0;
+            while ((pos < end) && (buffer.get(pos) >= '0') && (buffer.get(pos) <= '9')) {
+                value = value * 10 + (buffer.get(pos++) - '0');
+                digits++;
+            }
+            if (digits == 0) {
+                throw new IllegalArgumentException("missing number for " + field);
+            }
+            if (digits > 9) {
+                throw new IllegalArgumentException(field + " out of range");
+            }
+
+            endField(field);
+            return negative ? -value : value;
+        }
+
+        // '|' separated output channels into the channel slots of struct. Returns the number of channels
+        int nextChannels(byte[] struct) {
+            int count = 0;
+
+            while (true) {
+                skipSpaces();
+                int channel = 0;
+                int digits = 0;
+                while ((pos < end) && (buffer.get(pos) >= '0') && (buffer.get(pos) <= '9')) {
+                    channel = channel * 10 + (buffer.get(pos++) - '0');
+                    digits++;
+                }
+                if (digits == 0) {
+                    throw new IllegalArgumentException("missing output channel");
+                }
+                if (channel > RoutingTable.CHANNELS) {
+                    throw new IllegalArgumentException("output channel " + channel + " out of range");
+                }
+                if (count == MAX_CHANNELS) {
+                    throw new IllegalArgumentException("more than " + MAX_CHANNELS + " output channels");
+                }
+                struct[3 + count * 2] = (byte) channel;
+                count++;
+
+                skipSpaces();
+                if ((pos < end) && (buffer.get(pos) == '|')) {
+                    pos++;
+                    continue;
+                }
+                break;
+            }
+
+            endField("channelOutIdx");
+            return count;
+        }
+
+        // Optional curve name, matched against the enum without creating a String
+        VelocityCurve nextCurve() {
+            skipSpaces();
+            int start = pos;
+            while ((pos < end) && (buffer.get(pos) != ',') && (buffer.get(pos) != ' ')) {
+                pos++;
+            }
+            int length = pos - start;
+            endField("velocityCurve");
+
+            if (length == 0) {
+                return VelocityCurve.LINEAR;
+            }
+
+            for (VelocityCurve curve : VelocityCurve.values()) {
+                String curveName = curve.name();
+                if (curveName.length() != length) {
+                    continue;
+                }
+
+                int i = 0;
+                while ((i < length) && (Character.toUpperCase(buffer.get(start + i)) == curveName.charAt(i))) {
+                    i++;
+                }
+                if (i == length) {
+                    return curve;
+                }
+            }
+
+            throw new IllegalArgumentException("unknown velocity curve");
+        }
+
+        // Rest of the line, trimmed
+        String rest() {
+            skipSpaces();
+            int last = end;
+            while ((last > pos) && ((buffer.get(last - 1) == ' ') || (buffer.get(last - 1) == '\t'))) {
+                last--;
+            }
+
+            byte[] bytes = new byte[last - pos];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(pos + i);
+            }
+            pos = end;
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Splits a range at a line boundary until it is small enough to parse
+     */
+    private class ChunkTask extends RecursiveTask<List<MidiLayer>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        ChunkTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<MidiLayer> compute() {
+            if (end - start > CHUNK_SIZE) {
+                int middle = start + (end - start) / 2;
+                while ((middle < end) && (buffer.get(middle - 1) != '\n')) {
+                    middle++;
+                }
+
+                if (middle < end) {
+                    ChunkTask left = new ChunkTask(start, middle);
+                    ChunkTask right = new ChunkTask(middle, end);
+                    right.fork();
+
+                    List<MidiLayer> layers = left.compute();
+                    layers.addAll(right.join());
+                    return layers;
+                }
+            }
+
+            List<MidiLayer> layers = new ArrayList<>();
+            try {
+                parseRange(start, end, layers);
+            }
+            catch (ParseException ex) {
+                throw new ParseFailure(ex);
+            }
+            return layers;
+        }
+    }
+
+    // Carries a ParseException out of the fork-join workers
+    private static class ParseFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final ParseException exception;
+
+        ParseFailure(ParseException exception) {
+            super(exception);
+            this.exception = exception;
+        }
+    }
+}
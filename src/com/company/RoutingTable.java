@@ -0,0 +1,178 @@
+package com.company;
+
+/** RoutingTable is the compiled form of a Preset's MidiLayers as used by AMidiFXReceiver during note play:
+ * 1. Each of the 16 input channels maps to its own list of up to 10 layers
+ * 2. Each layer holds the output channel (1 based) and the sound module index it plays on
+ * 3. Muted (0) and out of range output channels are dropped at compile time, so note play needs no checks
+ * 4. Each layer has a 128 entry note table (octave/semitone transpose, clamped to 0 - 127) and a 128 entry velocity
+ *    table (VelocityCurve), built once per Preset so transforming a note is two array loads
+ *
+ * Note: A RoutingTable is immutable once built. A Preset change compiles a new table and publishes it as a whole,
+ * so a note never sees the routing of two different Presets.
+ */
+
+public class RoutingTable {
+    public static final int CHANNELS = 16;
+    public static final int MAX_LAYERS = 10;
+
+    private final int presetIdx;
+
+    // Per input channel (0 based) layer count, and per channel * MAX_LAYERS + layer slot its out channel and module
+    private final int[] layerCount;
+    private final byte[] outChannel;
+    private final byte[] outModule;
+
+    // Per input channel, a bit per sound module its layers play on
+    private final int[] moduleMask;
+
+    // Per slot 128 entry note and velocity lookup tables, at slot << 7
+    private final byte[] noteMap;
+    private final byte[] velocityMap;
+
+    private RoutingTable(Builder builder) {
+        this.presetIdx = builder.presetIdx;
+        this.layerCount = builder.layerCount.clone();
+        this.outChannel = builder.outChannel.clone();
+        this.outModule = builder.outModule.clone();
+        this.moduleMask = builder.moduleMask.clone();
+        this.noteMap = builder.noteMap.clone();
+        this.velocityMap = builder.velocityMap.clone();
+    }
+
+    // Compile the MidiLayers of a Preset. Layers sharing an input channel are appended in order
+    public static RoutingTable compile(int presetIdx, MidiLayer... layers) {
+        Builder builder = new Builder(presetIdx);
+
+        for (MidiLayer layer : layers) {
+            builder.addChannelOut(layer.getChannelOut(), layer.getVelocityCurve());
+        }
+
+        return builder.build();
+    }
+
+    public int getPresetIdx() {
+        return presetIdx;
+    }
+
+    // Number of layers for 0 based input channel
+    public int getLayerCount(int channel) {
+        return layerCount[channel];
+    }
+
+    // 1 based output channel of a layer
+    public int getOutChannel(int channel, int layer) {
+        return outChannel[channel * MAX_LAYERS + layer];
+    }
+
+    // Sound module index of a layer
+    public int getOutModule(int channel, int layer) {
+        return outModule[channel * MAX_LAYERS + layer];
+    }
+
+    // Sound modules of all layers of an input channel, bit 1 << moduleIdx each
+    public int getModuleMask(int channel) {
+        return moduleMask[channel];
+    }
+
+    // Transposed note of a layer
+    public int getNote(int channel, int layer, int note) {
+        return noteMap[((channel * MAX_LAYERS + layer) << 7) + note];
+    }
+
+    // Velocity of a layer after its velocity curve
+    public int getVelocity(int channel, int layer, int velocity) {
+        return velocityMap[((channel * MAX_LAYERS + layer) << 7) + velocity];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Routing Table = [presetIdx=" + presetIdx);
+
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (layerCount[channel] == 0) {
+                continue;
+            }
+
+            sb.append(", ").append(channel + 1).append("->");
+            for (int layer = 0; layer < layerCount[channel]; layer++) {
+                if (layer > 0) {
+                    sb.append('|');
+                }
+                sb.append(getOutChannel(channel, layer)).append('@').append(getOutModule(channel, layer));
+            }
+        }
+
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Collects layers before compiling them into an immutable RoutingTable
+     */
+    public static class Builder {
+        private final int presetIdx;
+        private final int[] layerCount = new int[CHANNELS];
+        private final byte[] outChannel = new byte[CHANNELS * MAX_LAYERS];
+        private final byte[] outModule = new byte[CHANNELS * MAX_LAYERS];
+        private final int[] moduleMask = new int[CHANNELS];
+        private final byte[] noteMap = new byte[CHANNELS * MAX_LAYERS * 128];
+        private final byte[] velocityMap = new byte[CHANNELS * MAX_LAYERS * 128];
+
+        public Builder(int presetIdx) {
+            this.presetIdx = presetIdx;
+        }
+
+        // Add an untransposed layer with linear velocity
+        public boolean addLayer(int channelIn, int channelOut, int moduleIdx) {
+            return addLayer(channelIn, channelOut, moduleIdx, 0, VelocityCurve.LINEAR);
+        }
+
+        // Add a layer: 1 based input and output channels, transpose in semitones. Returns false if muted, out of
+        // range or full
+        public boolean addLayer(int channelIn, int channelOut, int moduleIdx, int transpose, VelocityCurve curve) {
+            if ((channelIn < 1) || (channelIn > CHANNELS)) return false;
+            if ((channelOut < 1) || (channelOut > CHANNELS)) return false;
+
+            if ((moduleIdx < 0) || (moduleIdx >= ModuleRegistry.MAX_MODULES)) {
+                System.out.println("Routing Table: Unknown module " + moduleIdx + ", using module 0");
+                moduleIdx = 0;
+            }
+
+            int channel = channelIn - 1;
+            if (layerCount[channel] == MAX_LAYERS) {
+                System.out.println("Routing Table: Maximum layers reached on channel " + channelIn);
+                return false;
+            }
+
+            int slot = channel * MAX_LAYERS + layerCount[channel]++;
+            outChannel[slot] = (byte) channelOut;
+            outModule[slot] = (byte) moduleIdx;
+            moduleMask[channel] |= 1 << moduleIdx;
+
+            // Notes transposed out of range clamp to the lowest or highest note
+            int base = slot << 7;
+            for (int note = 0; note < 128; note++) {
+                noteMap[base + note] = (byte) Math.max(0, Math.min(127, note + transpose));
+            }
+            System.arraycopy(curve.buildTable(), 0, velocityMap, base, 128);
+
+            return true;
+        }
+
+        // Add all layers of a MidiLayer channel out structure, transposed by its octaves:
+        // presetIdx, channelInIdx, (ModuleIdx & ChannelOutIdx) * 10, OctaveTran
+        public Builder addChannelOut(byte[] channelOutStruct, VelocityCurve curve) {
+            int channelIn = channelOutStruct[1];
+            int transpose = channelOutStruct[channelOutStruct.length - 1] * 12;
+
+            for (int j = 2; j + 1 < channelOutStruct.length - 1 && j < 2 + MAX_LAYERS * 2; j = j + 2) {
+                addLayer(channelIn, channelOutStruct[j + 1], channelOutStruct[j], transpose, curve);
+            }
+
+            return this;
+        }
+
+        public RoutingTable build() {
+            return new RoutingTable(this);
+        }
+    }
+}
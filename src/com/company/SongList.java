@@ -0,0 +1,115 @@
+package com.company;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Songs of the songsfile in play order.
+ *
+ * One song per line: songIdx,songTitle,presetIdx[,midiFile]
+ * where presetIdx is the Preset selected when the song starts and midiFile the optional backing track in dirmidi.
+ * Empty lines and lines starting with '#' are skipped.
+ */
+public class SongList {
+
+    public static class Song {
+        private final int songIdx;
+        private final String title;
+        private final int presetIdx;
+        private final String midiFile;
+
+        public Song(int songIdx, String title, int presetIdx, String midiFile) {
+            this.songIdx = songIdx;
+            this.title = title;
+            this.presetIdx = presetIdx;
+            this.midiFile = midiFile;
+        }
+
+        public int getSongIdx() {
+            return songIdx;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getPresetIdx() {
+            return presetIdx;
+        }
+
+        // Empty if the song has no backing track
+        public String getMidiFile() {
+            return midiFile;
+        }
+
+        @Override
+        public String toString() {
+            return "Song [songIdx=" + songIdx + ", title=" + title + ", presetIdx=" + presetIdx
+                    + ", midiFile=" + midiFile + "]";
+        }
+    }
+
+    private final List<Song> songs;
+
+    public SongList(List<Song> songs) {
+        this.songs = new ArrayList<>(songs);
+    }
+
+    public static SongList load(Path path) throws IOException {
+        List<Song> songs = new ArrayList<>();
+
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split(",", 4);
+                if (fields.length < 3) {
+                    throw new IOException(path + " line " + lineNumber + ": expected at least 3 fields");
+                }
+
+                try {
+                    songs.add(new Song(Integer.parseInt(fields[0].trim()), fields[1].trim(),
+                            Integer.parseInt(fields[2].trim()), (fields.length > 3) ? fields[3].trim() : ""));
+                }
+                catch (NumberFormatException ex) {
+                    throw new IOException(path + " line " + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        return new SongList(songs);
+    }
+
+    public int size() {
+        return songs.size();
+    }
+
+    // Song at play order position
+    public Song get(int position) {
+        return songs.get(position);
+    }
+
+    public List<Song> getSongs() {
+        return new ArrayList<>(songs);
+    }
+
+    // Play order position of the first song starting with presetIdx, -1 if no song uses it
+    public int positionOfPreset(int presetIdx) {
+        for (int position = 0; position < songs.size(); position++) {
+            if (songs.get(position).getPresetIdx() == presetIdx) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
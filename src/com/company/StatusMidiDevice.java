@@ -0,0 +1,38 @@
+package com.company;
+
+import javax.sound.midi.MidiDevice;
+
+/**
+ * A discovered MIDI device and whether it is the selected In or Out device
+ */
+public class StatusMidiDevice {
+    boolean isactive;
+    MidiDevice device;
+
+    public StatusMidiDevice(MidiDevice device, boolean isactive) {
+        this.device = device;
+        this.isactive = isactive;
+    }
+
+    public MidiDevice getDevice() {
+        return device;
+    }
+
+    public boolean isActive() {
+        return isactive;
+    }
+
+    public void setActive(boolean isactive) {
+        this.isactive = isactive;
+    }
+
+    public String getName() {
+        return device.getDeviceInfo().getName();
+    }
+
+    @Override
+    public String toString() {
+        String devicestring = "Device Status Active:" + isactive + " Device:" + device.getDeviceInfo().toString();
+        return devicestring;
+    }
+}
@@ -0,0 +1,37 @@
+package com.company;
+
+/**
+ * Velocity curves a layer can apply to the keyboard velocity. Each curve is turned into a 128 entry lookup table
+ * once per Preset by RoutingTable, so note play does a single array load.
+ *
+ * Velocity 0 always maps to 0 (Note On with velocity 0 is a Note Off), and any other velocity to at least 1.
+ */
+public enum VelocityCurve {
+    LINEAR,
+    SOFT,       // Lighter touch plays louder
+    HARD,       // Needs a harder touch to play loud
+    FIXED;      // Every note plays at FIXED_VELOCITY
+
+    public static final int FIXED_VELOCITY = 100;
+
+    public byte[] buildTable() {
+        byte[] table = new byte[128];
+
+        for (int velocity = 1; velocity < 128; velocity++) {
+            double x = velocity / 127.0;
+            double y;
+
+            switch (this) {
+                case SOFT:  y = Math.sqrt(x); break;
+                case HARD:  y = x * x; break;
+                case FIXED: y = FIXED_VELOCITY / 127.0; break;
+                default:    y = x;
+            }
+
+            int mapped = (int) Math.round(y * 127);
+            table[velocity] = (byte) Math.max(1, Math.min(127, mapped));
+        }
+
+        return table;
+    }
+}
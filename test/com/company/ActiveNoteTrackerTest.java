@@ -0,0 +1,58 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActiveNoteTrackerTest {
+
+    @Test
+    void outputNoteSoundsUntilEveryKeyIsReleased() {
+        ActiveNoteTracker tracker = new ActiveNoteTracker();
+        tracker.outputOn(0, 0, 60);
+        tracker.outputOn(0, 0, 60);
+        tracker.outputOn(1, 15, 127);
+        assertEquals(2, tracker.getCount(0, 0, 60));
+        assertEquals(2, tracker.getActiveVoices());
+
+        tracker.outputOff(0, 0, 60);
+        assertTrue(tracker.isSounding(0, 0, 60));
+        assertEquals(2, tracker.getActiveVoices());
+
+        tracker.outputOff(0, 0, 60);
+        tracker.outputOff(0, 0, 60);
+        assertFalse(tracker.isSounding(0, 0, 60));
+        assertEquals(0, tracker.getCount(0, 0, 60));
+        assertEquals(1, tracker.getActiveVoices());
+
+        List<String> cleared = new ArrayList<>();
+        assertEquals(1, tracker.clear((module, channel, note) -> cleared.add(module + "/" + channel + "/" + note)));
+        assertEquals(List.of("1/15/127"), cleared);
+        assertEquals(0, tracker.getActiveVoices());
+    }
+
+    @Test
+    void panicTurnsOffANoteStillHeldByAnotherKey() throws Exception {
+        // Keyboard channels 1 and 2 both play output channel 1
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        builder.addLayer(1, 1, 0);
+        builder.addLayer(2, 1, 0);
+        NullReceiver sink = new NullReceiver();
+        AMidiFXReceiver receiver = new AMidiFXReceiver(sink, builder.build());
+
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), -1);
+        receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), -1);
+        assertEquals(1, receiver.getActiveVoices());
+
+        assertEquals(1, receiver.panic());
+        assertEquals(ShortMessage.NOTE_OFF, sink.lastStatus);
+        assertEquals(0, receiver.getActiveVoices());
+    }
+}
@@ -0,0 +1,108 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The per event paths allocate nothing: bytes allocated by the test thread are compared before and after N events,
+ * once the paths are warmed up
+ */
+class AllocationFreeTest {
+
+    private static final int EVENTS = 200_000;
+
+    // Slack for the measurement itself, far below one byte per event
+    private static final long SLACK_BYTES = 4096;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Counts what it is sent
+    private static class CountingReceiver implements Receiver {
+        long count;
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            count++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    void layeringAllocatesNothingPerEvent() throws InvalidMidiDataException {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        for (int layer = 0; layer < 4; layer++) {
+            builder.addLayer(1, layer + 2, 0);
+        }
+        CountingReceiver sink = new CountingReceiver();
+        AMidiFXReceiver receiver = new AMidiFXReceiver(sink, builder.build());
+
+        ShortMessage noteOn = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+        ShortMessage noteOff = new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0);
+        ShortMessage controller = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 1, 64);
+
+        for (int i = 0; i < EVENTS; i++) {
+            sendEvents(receiver, noteOn, noteOff, controller);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < EVENTS; i++) {
+            sendEvents(receiver, noteOn, noteOff, controller);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertEquals(2L * EVENTS * (4 + 4 + 1), sink.count);
+        assertTrue(allocated < SLACK_BYTES, "Allocated " + allocated + " bytes for " + 3 * EVENTS + " events");
+    }
+
+    private static void sendEvents(AMidiFXReceiver receiver, ShortMessage noteOn, ShortMessage noteOff,
+                                   ShortMessage controller) {
+        receiver.send(noteOn, -1);
+        receiver.send(noteOff, -1);
+        receiver.send(controller, -1);
+    }
+
+    @Test
+    void eventRingAllocatesNothingPerEvent() {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        EventRing ring = new EventRing(256);
+        long[] sum = new long[1];
+        EventRing.EventHandler handler = (event, message, timeStamp) -> sum[0] += EventRing.data1(event);
+
+        for (int i = 0; i < EVENTS; i++) {
+            ring.offer(EventRing.pack(0x90, i & 0x7F, 100), null, i);
+            ring.drain(handler, 1);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < EVENTS; i++) {
+            ring.offer(EventRing.pack(0x90, i & 0x7F, 100), null, i);
+            ring.drain(handler, 1);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertTrue(sum[0] > 0);
+        assertTrue(allocated < SLACK_BYTES, "Allocated " + allocated + " bytes for " + EVENTS + " events");
+    }
+}
@@ -0,0 +1,58 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AppConfigTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void slowListenerDoesNotHoldUpSetters() throws Exception {
+        Path file = dir.resolve("AppConfig.xml");
+        Files.writeString(file, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+                + "<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
+                + "<properties>\n<entry key=\"indevice\">Keys</entry>\n</properties>\n");
+        AppConfig config = new AppConfig(file.toString());
+        assertTrue(config.loadProperties());
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch told = new CountDownLatch(2);
+        List<String> devices = new CopyOnWriteArrayList<>();
+        config.addChangeListener((previous, current, changedKeys) -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            devices.add(current.getInDevice());
+            told.countDown();
+        });
+
+        // Both setters return while the listener is still busy with the first change
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            config.setInDevice("Keys 2");
+            config.setInDevice("Keys 3");
+        });
+        assertEquals("Keys 3", config.getInDevice());
+
+        release.countDown();
+        assertTrue(told.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("Keys 2", "Keys 3"), devices);
+        assertTrue(config.flushProperties());
+    }
+}
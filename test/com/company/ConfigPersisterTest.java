@@ -0,0 +1,80 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Saves replace the config file as a whole: a crash between the temp file write and the rename leaves the old
+ * config intact
+ */
+class ConfigPersisterTest {
+
+    @TempDir
+    Path dir;
+
+    private static Properties config(String outDevice) {
+        Properties props = new Properties();
+        props.setProperty("outdevice", outDevice);
+        props.setProperty("verbosity", "2");
+        return props;
+    }
+
+    private static Properties load(Path path) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.loadFromXML(in);
+        }
+        return props;
+    }
+
+    @Test
+    void saveReplacesConfig() throws IOException {
+        Path path = dir.resolve("AppConfig.xml");
+        ConfigPersister persister = new ConfigPersister(path, 0);
+
+        persister.save(config("Old Synth"));
+        persister.save(config("New Synth"));
+        assertTrue(persister.close());
+
+        assertEquals("New Synth", load(path).getProperty("outdevice"));
+        assertFalse(Files.exists(dir.resolve("AppConfig.xml.tmp")));
+    }
+
+    @Test
+    void crashBeforeRenameKeepsOldConfig() throws IOException {
+        Path path = dir.resolve("AppConfig.xml");
+        ConfigPersister persister = new ConfigPersister(path, 0);
+        persister.save(config("Old Synth"));
+        assertTrue(persister.close());
+
+        ConfigPersister crashing = new ConfigPersister(path, 60_000) {
+            @Override
+            void beforeRename(Path tempPath) throws IOException {
+                throw new IOException("Simulated crash after writing " + tempPath.getFileName());
+            }
+        };
+        crashing.save(config("New Synth"));
+        assertFalse(crashing.close());
+        assertEquals(1, crashing.getFailures());
+
+        // The new version only got as far as the temp file
+        assertEquals("Old Synth", load(path).getProperty("outdevice"));
+        assertEquals("New Synth", load(dir.resolve("AppConfig.xml.tmp")).getProperty("outdevice"));
+
+        // The next save replaces the leftover temp file
+        ConfigPersister next = new ConfigPersister(path, 0);
+        next.save(config("Next Synth"));
+        assertTrue(next.close());
+        assertEquals("Next Synth", load(path).getProperty("outdevice"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bursts of pitch bend and modulation through the thinner and an OutputMerger, while the flush thread runs: every
+ * stream arrives in order, and its last value arrives last
+ */
+class ControllerThinnerTest {
+
+    private static final int BEND = 0;
+    private static final int MODULATION = 1;
+
+    // NullReceiver that also keeps the value of every pitch bend and modulation it is sent. Only the thread owning
+    // the merger's output calls it
+    private static class StreamReceiver extends NullReceiver {
+        final List<List<Integer>> streams = List.of(new ArrayList<>(), new ArrayList<>());
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) {
+            super.send(message, timeStamp);
+            ShortMessage shortMessage = (ShortMessage) message;
+            if (shortMessage.getCommand() == ShortMessage.PITCH_BEND) {
+                streams.get(BEND).add(shortMessage.getData1() | (shortMessage.getData2() << 7));
+            }
+            else if (shortMessage.getData1() == 1) {
+                streams.get(MODULATION).add(shortMessage.getData2());
+            }
+        }
+
+        synchronized List<Integer> stream(int stream) {
+            return new ArrayList<>(streams.get(stream));
+        }
+
+        // Last value of a stream, -1 before any
+        synchronized int last(int stream) {
+            List<Integer> values = streams.get(stream);
+            return values.isEmpty() ? -1 : values.get(values.size() - 1);
+        }
+
+        synchronized void clear() {
+            for (List<Integer> values : streams) {
+                values.clear();
+            }
+        }
+    }
+
+    // Keyboard thread: forward what the thinner does not keep back
+    private static void play(ControllerThinner thinner, OutputMerger merger, ShortMessage message) {
+        if (thinner.offer(message, System.nanoTime())) {
+            merger.send(message, -1);
+        }
+    }
+
+    private static void assertRisingTo(List<Integer> stream, int last) {
+        for (int i = 1; i < stream.size(); i++) {
+            assertTrue(stream.get(i) >= stream.get(i - 1), "Older value after a newer one at " + i + ": " + stream);
+        }
+        assertEquals(last, stream.get(stream.size() - 1));
+    }
+
+    @Test
+    void lastValueOfABurstArrivesLast() throws Exception {
+        StreamReceiver device = new StreamReceiver();
+        OutputMerger merger = new OutputMerger("Test", device, 256);
+        long interval = TimeUnit.MILLISECONDS.toNanos(1);
+        ControllerThinner thinner = new ControllerThinner(merger, interval, 2, 16, 1);
+
+        ShortMessage message = new ShortMessage();
+        for (int round = 0; round < 20; round++) {
+            // Rising streams, so any value sent after a newer one shows
+            for (int step = 0; step <= 16383; step += 7) {
+                message.setMessage(ShortMessage.PITCH_BEND, 0, step & 0x7F, step >> 7);
+                play(thinner, merger, message);
+                message.setMessage(ShortMessage.CONTROL_CHANGE, 0, 1, step >> 7);
+                play(thinner, merger, message);
+            }
+            message.setMessage(ShortMessage.PITCH_BEND, 0, 0x7F, 0x7F);
+            play(thinner, merger, message);
+
+            // The flush thread sends what is still kept back once the streams go quiet
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (((device.last(BEND) != 16383) || (device.last(MODULATION) != 127))
+                    && (System.nanoTime() < deadline)) {
+                LockSupport.parkNanos(interval);
+            }
+            // Nothing older may follow
+            LockSupport.parkNanos(interval * 10);
+
+            assertRisingTo(device.stream(BEND), 16383);
+            assertRisingTo(device.stream(MODULATION), 127);
+            assertTrue(thinner.getForwarded() < thinner.getIncoming());
+
+            // Each round starts with nothing forwarded yet
+            thinner.close();
+            device.clear();
+            thinner = new ControllerThinner(merger, interval, 2, 16, 1);
+        }
+        thinner.close();
+    }
+}
@@ -0,0 +1,115 @@
+package com.company;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hotplug on a fake provider: an unplugged Sound Module leaves the device lists, and is back in them and playing
+ * within a poll interval of being plugged in again
+ */
+class DeviceHotplugMonitorTest {
+
+    private static final long POLL_MILLIS = 100;
+
+    // Scheduling slack on a loaded machine
+    private static final long SLACK_MILLIS = 50;
+
+    private DeviceHotplugMonitor monitor;
+
+    @AfterEach
+    void stop() {
+        if (monitor != null) {
+            monitor.stop();
+        }
+    }
+
+    private static List<String> names(List<StatusMidiDevice> devices) {
+        List<String> names = new ArrayList<>();
+        synchronized (devices) {
+            for (StatusMidiDevice status : devices) {
+                names.add(status.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void unpluggedModuleIsReconnectedWithinAPoll() throws Exception {
+        FakeMidiDeviceProvider provider = new FakeMidiDeviceProvider(0);
+        provider.plug("Keys", 0, -1);
+        FakeMidiDeviceProvider.FakeMidiDevice synth = provider.plug("Synth", -1, 0);
+
+        // Devices taking a Receiver are listed as In devices, those with a Transmitter as Out devices
+        List<StatusMidiDevice> inDevices = new ArrayList<>();
+        List<StatusMidiDevice> outDevices = new ArrayList<>();
+        for (MidiDevice.Info info : provider.getDeviceInfo()) {
+            MidiDeviceDiscovery.classify(provider.getDevice(info), "", "", inDevices, outDevices);
+        }
+        assertEquals(List.of("Synth"), names(inDevices));
+        assertEquals(List.of("Keys"), names(outDevices));
+
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        BlockingQueue<Receiver> reconnected = new LinkedBlockingQueue<>();
+        monitor = new DeviceHotplugMonitor(new MidiDeviceProvider[]{provider}, inDevices, outDevices, null);
+        monitor.watch("Synth", true, synth, device -> {
+            device.open();
+            reconnected.add(device.getReceiver());
+        });
+        monitor.addListener(new DeviceHotplugMonitor.Listener() {
+            @Override
+            public void deviceRemoved(String name) {
+                events.add("removed " + name);
+            }
+
+            @Override
+            public void deviceAdded(String name) {
+                events.add("added " + name);
+            }
+
+            @Override
+            public void reconnected(String name, long reconnectNanos, long downNanos) {
+                events.add("reconnected " + name);
+            }
+        });
+        monitor.start(POLL_MILLIS);
+
+        provider.unplug("Synth");
+        assertEquals("removed Synth", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(List.of(), names(inDevices));
+        assertEquals(List.of("Keys"), names(outDevices));
+
+        long plugged = System.nanoTime();
+        FakeMidiDeviceProvider.FakeMidiDevice replugged = provider.plug("Synth", -1, 0);
+        Receiver receiver = reconnected.poll(5, TimeUnit.SECONDS);
+        long reconnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - plugged);
+
+        assertNotNull(receiver);
+        assertTrue(reconnectMillis <= POLL_MILLIS + SLACK_MILLIS, "Reconnected after " + reconnectMillis + " ms");
+        assertEquals("added Synth", events.poll(1, TimeUnit.SECONDS));
+        assertEquals("reconnected Synth", events.poll(1, TimeUnit.SECONDS));
+        assertEquals(List.of("Synth"), names(inDevices));
+        assertEquals(List.of("Keys"), names(outDevices));
+        assertEquals(1, monitor.getReconnects());
+
+        // The reconnected Receiver is the replugged device's, and plays
+        assertNotSame(synth.sink, receiver);
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        assertEquals(1, replugged.sink.count);
+        assertEquals(0, synth.sink.count);
+    }
+}
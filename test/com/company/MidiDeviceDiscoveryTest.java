@@ -0,0 +1,138 @@
+package com.company;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.spi.MidiDeviceProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Discovery on fake providers: the parallel probe and the cached fast path find the same devices, and a replugged
+ * rig is seen on refresh
+ */
+class MidiDeviceDiscoveryTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<MidiDeviceDiscovery> discoveries = new ArrayList<>();
+
+    private FakeMidiDeviceProvider[] rig() {
+        FakeMidiDeviceProvider[] providers = new FakeMidiDeviceProvider[3];
+        for (int p = 0; p < providers.length; p++) {
+            // A little enumeration delay, so the providers are probed at the same time
+            providers[p] = new FakeMidiDeviceProvider(2000);
+            providers[p].plug("Keys " + p, 0, -1);
+            providers[p].plug("Synth " + p, -1, 0);
+        }
+        return providers;
+    }
+
+    private MidiDeviceDiscovery discovery(MidiDeviceProvider[] providers, Path cacheFile) {
+        MidiDeviceDiscovery discovery = new MidiDeviceDiscovery(providers, cacheFile);
+        discoveries.add(discovery);
+        return discovery;
+    }
+
+    @AfterEach
+    void close() {
+        for (MidiDeviceDiscovery discovery : discoveries) {
+            discovery.close();
+        }
+    }
+
+    private static List<String> namesOf(List<MidiDevice> devices) {
+        List<String> names = new ArrayList<>();
+        for (MidiDevice device : devices) {
+            names.add(device.getDeviceInfo().getName());
+        }
+        return names;
+    }
+
+    // What a serial probe of the providers finds, in provider order
+    private static List<String> serialProbe(MidiDeviceProvider[] providers) {
+        List<String> names = new ArrayList<>();
+        for (MidiDeviceProvider provider : providers) {
+            for (MidiDevice.Info info : provider.getDeviceInfo()) {
+                names.add(provider.getDevice(info).getDeviceInfo().getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void parallelProbeFindsEveryDeviceInProviderOrder() {
+        FakeMidiDeviceProvider[] providers = rig();
+        // As in the device lists: ports with receivers are In, ports with transmitters are Out
+        MidiDeviceDiscovery.Result result = discovery(providers, null).start("Synth 1", "Keys 2").join();
+
+        assertEquals(serialProbe(providers), namesOf(result.getDevices()));
+        assertEquals(3, result.getInDevices().size());
+        assertEquals(3, result.getOutDevices().size());
+        assertTrue(result.getInDevices().get(1).isActive());
+        assertTrue(result.getOutDevices().get(2).isActive());
+        assertFalse(result.getOutDevices().get(0).isActive());
+    }
+
+    @Test
+    void cachedFastPathFindsTheSameDevices() {
+        FakeMidiDeviceProvider[] providers = rig();
+        Path cacheFile = dir.resolve("devices.cache");
+
+        MidiDeviceDiscovery first = discovery(providers, cacheFile);
+        List<String> probed = namesOf(first.start("", "").join().getDevices());
+        assertTrue(Files.exists(cacheFile));
+
+        // From the cache, before the full enumeration ran
+        MidiDeviceDiscovery cached = discovery(providers, cacheFile);
+        for (String name : probed) {
+            boolean receiver = name.startsWith("Synth");
+            MidiDevice device = cached.findPreferred(name, receiver);
+            assertNotNull(device, name);
+            assertEquals(name, device.getDeviceInfo().getName());
+        }
+        assertEquals(probed, namesOf(cached.start("", "").join().getDevices()));
+
+        // The fast path and the full enumeration hand out the same device
+        MidiDevice fast = cached.findPreferred("Synth 2", true);
+        MidiDevice full = null;
+        for (MidiDevice device : cached.getResult().getDevices()) {
+            if (device.getDeviceInfo().getName().equals("Synth 2")) {
+                full = device;
+            }
+        }
+        assertSame(full, fast);
+    }
+
+    @Test
+    void refreshSeesReplugAndStaleHintsAreSkipped() {
+        FakeMidiDeviceProvider[] providers = rig();
+        Path cacheFile = dir.resolve("devices.cache");
+
+        MidiDeviceDiscovery discovery = discovery(providers, cacheFile);
+        discovery.start("", "").join();
+
+        providers[1].unplug("Synth 1");
+        providers[2].plug("Synth 9", -1, 0);
+        List<String> refreshed = namesOf(discovery.refresh("", "").join().getDevices());
+        assertEquals(serialProbe(providers), refreshed);
+        assertFalse(refreshed.contains("Synth 1"));
+
+        MidiDeviceDiscovery next = discovery(providers, cacheFile);
+        assertNull(next.findPreferred("Synth 1", true));
+        assertEquals("Synth 9", next.findPreferred("Synth 9", true).getDeviceInfo().getName());
+        assertEquals(refreshed, namesOf(next.getResult().getDevices()));
+    }
+}
@@ -0,0 +1,128 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MidiFileStoreTest {
+
+    // Records what it is sent and when, on the sequencer thread
+    private static class RecordingReceiver implements Receiver {
+        final List<MidiMessage> messages = new ArrayList<>();
+        final List<String> sent = new ArrayList<>();
+        final List<Long> nanos = new ArrayList<>();
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            ShortMessage shortMessage = (ShortMessage) message;
+            messages.add(message);
+            sent.add(shortMessage.getCommand() + "/" + shortMessage.getData1());
+            nanos.add(System.nanoTime());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Format 0 Standard MIDI File, 480 ticks per quarter note, of the given track events
+    private static byte[] smf(byte[] events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0x01, (byte) 0xE0});
+        out.writeBytes(new byte[]{'M', 'T', 'r', 'k'});
+        int length = events.length + 4;
+        out.writeBytes(new byte[]{(byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8), (byte) length});
+        out.writeBytes(events);
+        out.writeBytes(new byte[]{0, (byte) 0xFF, 0x2F, 0});
+        return out.toByteArray();
+    }
+
+    // 240 BPM, twice the default; a note every 96 ticks (50 ms), all ended at tick 288
+    private static byte[] notes() {
+        return smf(new byte[]{
+                0, (byte) 0xFF, 0x51, 3, 0x03, (byte) 0xD0, (byte) 0x90,
+                0, (byte) 0x90, 60, 100,
+                0x60, (byte) 0x90, 62, 100,
+                0x60, (byte) 0x90, 64, 100,
+                0x60, (byte) 0x80, 60, 0,
+                0, 62, 0,
+                0, 64, 0});
+    }
+
+    private static byte[] withSysex() {
+        return smf(new byte[]{
+                0, (byte) 0xF0, 5, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7,
+                0, (byte) 0x90, 60, 100,
+                0x60, (byte) 0x80, 60, 0});
+    }
+
+    private static Object fileKey(Path path) throws Exception {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    @Test
+    void sysexFilesArePlayedFromTheFile(@TempDir Path dir) throws Exception {
+        Files.write(dir.resolve("notes.mid"), notes());
+        Files.write(dir.resolve("sysex.mid"), withSysex());
+        Path path = dir.resolve("store.amsf");
+
+        MidiFileStore store = MidiFileStore.openOrBuild(dir, path, null);
+        assertEquals(1, store.size());
+        assertNotNull(store.get("notes.mid"));
+        assertNull(store.get("sysex.mid"));
+
+        // The flagged file still counts as indexed, so the store is not built again
+        Object key = fileKey(path);
+        MidiFileStore reopened = MidiFileStore.openOrBuild(dir, path, null);
+        assertEquals(key, fileKey(path));
+        assertNull(reopened.get("sysex.mid"));
+    }
+
+    @Test
+    void storedSongPlaysStraightFromTheStore(@TempDir Path dir) throws Exception {
+        Files.write(dir.resolve("notes.mid"), notes());
+        MidiFileStore store = MidiFileStore.openOrBuild(dir, dir.resolve("store.amsf"), null);
+        MidiFileStore.StoredSong song = store.get("notes.mid");
+
+        PrecisionSequencer sequencer = new PrecisionSequencer();
+        RecordingReceiver receiver = new RecordingReceiver();
+        CountDownLatch ended = new CountDownLatch(1);
+        sequencer.open();
+        sequencer.getTransmitter().setReceiver(receiver);
+        sequencer.addMetaEventListener(meta -> ended.countDown());
+
+        sequencer.setSong(song);
+        assertNull(sequencer.getSequence());
+        assertEquals(288, sequencer.getTickLength());
+        assertEquals(150_000, sequencer.getMicrosecondLength());
+
+        sequencer.start();
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        sequencer.close();
+
+        assertEquals(List.of("144/60", "144/62", "144/64", "128/60", "128/62", "128/64"), receiver.sent);
+        for (MidiMessage message : receiver.messages) {
+            assertSame(receiver.messages.get(0), message);
+        }
+        // Played at the stored tempo: 150 ms, not the 300 ms of the default
+        long spread = TimeUnit.NANOSECONDS.toMillis(receiver.nanos.get(3) - receiver.nanos.get(0));
+        assertTrue((spread >= 120) && (spread < 250), "Note Offs after " + spread + " ms");
+    }
+}
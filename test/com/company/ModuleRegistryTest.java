@@ -0,0 +1,46 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModuleRegistryTest {
+
+    @Test
+    void noteHoldsOnlyTheModulesItPlaysOn() throws Exception {
+        NullReceiver primary = new NullReceiver();
+        NullReceiver secondary = new NullReceiver();
+        ModuleRegistry registry = new ModuleRegistry();
+        registry.register(0, "Primary", primary);
+        registry.register(1, "Secondary", secondary);
+
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        builder.addLayer(1, 1, 0);
+        builder.addLayer(1, 2, 0);
+        builder.addLayer(2, 3, 1);
+        RoutingTable table = builder.build();
+        assertEquals(1, table.getModuleMask(0));
+        assertEquals(2, table.getModuleMask(1));
+        AMidiFXReceiver receiver = new AMidiFXReceiver(registry, table);
+
+        // A Sequencer send stuck on module 1 does not hold up a note played on module 0
+        OutputMerger busy = registry.getMerger(1);
+        assertTrue(busy.tryClaim());
+        try {
+            ShortMessage noteOn = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> receiver.send(noteOn, -1));
+        }
+        finally {
+            busy.release();
+        }
+
+        assertEquals(2, primary.count);
+        assertEquals(0, secondary.count);
+        registry.close();
+    }
+}
@@ -0,0 +1,111 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MpeVoiceAllocatorTest {
+
+    private static final MpeVoiceAllocator.Zone ZONE =
+            new MpeVoiceAllocator.Zone(1, 15, 4, MpeVoiceAllocator.StealPolicy.OLDEST);
+
+    // Layers of the default routing on master channel 1
+    private static RoutingTable routing(int... channelOuts) {
+        RoutingTable.Builder builder = new RoutingTable.Builder(0);
+        for (int channelOut : channelOuts) {
+            builder.addLayer(1, channelOut, 0);
+        }
+        return builder.build();
+    }
+
+    @Test
+    void poolsOfOneModuleAreDisjoint() {
+        MpeVoiceAllocator allocator = new MpeVoiceAllocator(routing(14, 15, 16, 1), ZONE, null);
+
+        assertEquals(1, allocator.getPoolSize(0));
+        assertEquals(1, allocator.getPoolSize(1));
+        assertEquals(1, allocator.getPoolSize(2));
+        assertEquals(4, allocator.getPoolSize(3));
+        assertEquals(3, allocator.getShortPools());
+
+        // Every note of a chord plays each layer on channels no other layer uses
+        List<Set<Integer>> layerChannels = new ArrayList<>();
+        for (int layer = 0; layer < 4; layer++) {
+            layerChannels.add(new HashSet<>());
+        }
+        int[] layer = new int[1];
+        for (int i = 0; i < 6; i++) {
+            layer[0] = 0;
+            allocator.noteOn(i + 1, 60 + i, 100, (module, command, channel, data1, data2) -> {
+                if (command == ShortMessage.NOTE_ON) {
+                    layerChannels.get(layer[0]++).add(channel);
+                }
+            });
+        }
+
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (Set<Integer> channels : layerChannels) {
+            all.addAll(channels);
+            total += channels.size();
+        }
+        assertEquals(total, all.size());
+        assertEquals(Set.of(13), layerChannels.get(0));
+        assertEquals(Set.of(0, 1, 2, 3), layerChannels.get(3));
+    }
+
+    @Test
+    void repeatedLayerGetsNoPool() {
+        MpeVoiceAllocator allocator = new MpeVoiceAllocator(routing(5, 5), ZONE, null);
+
+        assertEquals(4, allocator.getPoolSize(0));
+        assertEquals(0, allocator.getPoolSize(1));
+
+        allocator.noteOn(1, 60, 100, (module, command, channel, data1, data2) -> { });
+        assertEquals(1, allocator.getActiveVoices());
+        assertEquals(1, allocator.getDropped());
+    }
+
+    @Test
+    void routingChangeEndsSoundingNotesFirst() throws Exception {
+        List<String> sent = new ArrayList<>();
+        Receiver sink = new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                ShortMessage shortMessage = (ShortMessage) message;
+                if ((shortMessage.getCommand() == ShortMessage.NOTE_ON)
+                        || (shortMessage.getCommand() == ShortMessage.NOTE_OFF)) {
+                    sent.add(shortMessage.getCommand() + "/" + shortMessage.getChannel() + "/"
+                            + shortMessage.getData1());
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        AMidiFXReceiver receiver = new AMidiFXReceiver(sink, routing(1));
+        receiver.setMpeZone(ZONE);
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), -1);
+
+        receiver.setRoutingTable(routing(1, 3));
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 2, 62, 100), -1);
+        receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 1, 60, 0), -1);
+
+        assertEquals(List.of(
+                ShortMessage.NOTE_ON + "/0/60",
+                ShortMessage.NOTE_OFF + "/0/60",
+                ShortMessage.NOTE_ON + "/0/62",
+                ShortMessage.NOTE_ON + "/2/62"), sent);
+        assertEquals(2, receiver.getMpeAllocator().getActiveVoices());
+    }
+}
@@ -0,0 +1,126 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The keyboard side of the merge never waits for the sequencer: a batch begun while the sequencer is inside the
+ * device is queued, goes out as soon as the device returns, and keeps sequencer messages out of its middle
+ */
+class OutputMergerTest {
+
+    private static final long MAX_LIVE_MILLIS = 20;
+
+    // Device that holds the first message it is sent until released, and records every message and when it got it
+    private static class SlowReceiver implements Receiver {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        final List<Long> nanos = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    released.await();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ShortMessage shortMessage = (ShortMessage) message;
+            sent.add(shortMessage.getCommand() + "/" + shortMessage.getData1());
+            nanos.add(System.nanoTime());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void liveBatchDoesNotWaitForTheSequencer() throws Exception {
+        SlowReceiver device = new SlowReceiver();
+        OutputMerger merger = new OutputMerger("Test", device, 64);
+
+        // The sequencer thread sends a controller and is held inside the device
+        Thread sequencer = new Thread(() -> {
+            try {
+                merger.getSequencerInput().send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), -1);
+            }
+            catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        sequencer.start();
+        assertTrue(device.entered.await(5, TimeUnit.SECONDS));
+
+        ShortMessage first = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+        ShortMessage second = new ShortMessage(ShortMessage.NOTE_ON, 1, 64, 100);
+        long start = System.nanoTime();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            merger.beginBatch();
+            merger.send(first, -1);
+            merger.send(second, -1);
+            merger.endBatch();
+        });
+        long liveMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(liveMillis < MAX_LIVE_MILLIS, "Keyboard held up " + liveMillis + " ms");
+        assertEquals(1, merger.getLiveContended());
+
+        // Once the device returns, the sequencer thread sends the queued batch before letting go
+        long released = System.nanoTime();
+        device.released.countDown();
+        sequencer.join(5000);
+
+        assertEquals(List.of("176/7", "144/60", "144/64"), device.sent);
+        long noteMillis = TimeUnit.NANOSECONDS.toMillis(device.nanos.get(1) - released);
+        assertTrue(noteMillis < MAX_LIVE_MILLIS, "Live note out " + noteMillis + " ms after the device returned");
+    }
+
+    @Test
+    void sequencerDoesNotSplitAQueuedBatch() throws Exception {
+        // Never holds a message
+        SlowReceiver device = new SlowReceiver();
+        device.entered.countDown();
+        OutputMerger merger = new OutputMerger("Test", device, 64);
+
+        // Another source, e.g. the controller flush, holds the output
+        assertTrue(merger.tryClaim());
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            merger.beginBatch();
+            merger.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+
+            Thread sequencer = new Thread(() -> {
+                try {
+                    merger.getSequencerInput().send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), -1);
+                }
+                catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            sequencer.start();
+            sequencer.join();
+
+            merger.send(new ShortMessage(ShortMessage.NOTE_ON, 1, 64, 100), -1);
+            merger.endBatch();
+        });
+        assertEquals(List.of(), device.sent);
+
+        merger.release();
+        assertEquals(List.of("144/60", "144/64", "176/7"), device.sent);
+    }
+}
@@ -0,0 +1,123 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputPipelineTest {
+
+    // Device that takes nothing until released, then records the statuses and controllers it is sent
+    private static class StuckReceiver implements Receiver {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<String> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            entered.countDown();
+            try {
+                released.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            ShortMessage shortMessage = (ShortMessage) message;
+            sent.add(shortMessage.getCommand() + "/" + shortMessage.getData1());
+        }
+
+        @Override
+        public void close() {
+            released.countDown();
+        }
+    }
+
+    // A Note On taken by the output thread, which then hangs in the device, and Note Ons until the ring is full
+    private static OutputPipeline fill(StuckReceiver device) throws Exception {
+        OutputPipeline pipeline = new OutputPipeline("Test", device, 8, OutputPipeline.Backpressure.DROP_NOTE_ON);
+        pipeline.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        assertTrue(device.entered.await(5, TimeUnit.SECONDS));
+        // The event in the device keeps its slot until the batch it came in is done
+        for (int note = 61; pipeline.getDroppedNoteOns() == 0; note++) {
+            pipeline.send(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100), -1);
+        }
+        assertEquals(8, pipeline.getQueueDepth());
+        return pipeline;
+    }
+
+    @Test
+    void programAndBankAreNotDropped() throws Exception {
+        StuckReceiver device = new StuckReceiver();
+        OutputPipeline pipeline = fill(device);
+
+        pipeline.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), -1);
+        assertEquals(1, pipeline.getDroppedControllers());
+
+        Thread producer = new Thread(() -> {
+            try {
+                pipeline.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 0, 1), -1);
+                pipeline.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 32, 2), -1);
+                pipeline.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0), -1);
+            }
+            catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        producer.start();
+        Thread.sleep(20);
+        device.released.countDown();
+        producer.join(5000);
+
+        pipeline.close();
+        assertEquals(1, pipeline.getDroppedControllers());
+        assertEquals(0, pipeline.getWaitTimeouts());
+        assertTrue(pipeline.getProducerWaits() >= 1);
+        List<String> sent = device.sent;
+        assertEquals(List.of(ShortMessage.CONTROL_CHANGE + "/0", ShortMessage.CONTROL_CHANGE + "/32",
+                ShortMessage.PROGRAM_CHANGE + "/5"), sent.subList(sent.size() - 3, sent.size()));
+    }
+
+    @Test
+    void pacedControllersThroughAnEmptyRingAreNotDropped() throws Exception {
+        NullReceiver device = new NullReceiver();
+        OutputPipeline pipeline = new OutputPipeline("Test", device, 256, OutputPipeline.Backpressure.DROP_NOTE_ON);
+
+        // More controllers than the ring holds, each drained before the next one comes
+        ShortMessage controller = new ShortMessage();
+        for (int i = 0; i < 400; i++) {
+            controller.setMessage(ShortMessage.CONTROL_CHANGE, 0, 1, i & 0x7F);
+            pipeline.send(controller, -1);
+            LockSupport.parkNanos(200_000L);
+        }
+        pipeline.close();
+
+        assertEquals(0, pipeline.getDroppedControllers());
+        assertEquals(400, device.count);
+        assertTrue(pipeline.getMaxQueueDepth() < 64);
+    }
+
+    @Test
+    void stuckDeviceDoesNotHangTheProducer() throws Exception {
+        StuckReceiver device = new StuckReceiver();
+        OutputPipeline pipeline = fill(device);
+
+        ShortMessage noteOff = new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> pipeline.send(noteOff, -1));
+        assertEquals(1, pipeline.getWaitTimeouts());
+
+        device.released.countDown();
+        pipeline.close();
+        assertTrue(device.released.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,60 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two short songs played back to back on the PrecisionSequencer: every song change starts the next song from the
+ * end of track callback within a few milliseconds
+ */
+class PlaylistPlayerTest {
+
+    private static final long MAX_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // One note of 48 ticks, 50 ms at the default 120 BPM
+    private static Sequence song(int note) throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0), 48));
+        return sequence;
+    }
+
+    @Test
+    void songsFollowEachOtherWithoutAGap() throws Exception {
+        List<Sequence> sequences = List.of(song(60), song(64));
+        List<SongList.Song> songs = List.of(new SongList.Song(1, "First", -1, "first.mid"),
+                new SongList.Song(2, "Second", -1, "second.mid"));
+
+        PrecisionSequencer sequencer = new PrecisionSequencer();
+        NullReceiver device = new NullReceiver();
+        sequencer.open();
+        sequencer.getTransmitter().setReceiver(device);
+
+        PlaylistPlayer player = new PlaylistPlayer(sequencer, songs,
+                song -> sequences.get(song.getSongIdx() - 1), null, null);
+        List<String> started = new CopyOnWriteArrayList<>();
+        player.addSongListener((song, gapNanos) -> started.add(song.getTitle()));
+
+        player.play(2);
+        assertTrue(player.awaitEnd(5, TimeUnit.SECONDS));
+        player.close();
+        sequencer.close();
+
+        assertEquals(List.of("First", "Second", "First", "Second"), started);
+        assertEquals(8, device.count);
+        assertEquals(3, player.getGaps().getCount());
+        long maxGap = player.getGaps().getMax();
+        assertTrue(maxGap < MAX_GAP_NANOS, "Song gap " + (maxGap / 1000) + " us");
+    }
+}
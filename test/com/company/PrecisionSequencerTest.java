@@ -0,0 +1,167 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrecisionSequencerTest {
+
+    // Records command/data1 of every channel message, and counts down on the first Note On
+    private static class RecordingReceiver implements Receiver {
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        final CountDownLatch noteOn = new CountDownLatch(1);
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            ShortMessage shortMessage = (ShortMessage) message;
+            sent.add(shortMessage.getCommand() + "/" + shortMessage.getData1());
+            if (shortMessage.getCommand() == ShortMessage.NOTE_ON) {
+                noteOn.countDown();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        List<String> noteOns() {
+            List<String> notes = new ArrayList<>();
+            for (String message : sent) {
+                if (message.startsWith(ShortMessage.NOTE_ON + "/")) {
+                    notes.add(message);
+                }
+            }
+            return notes;
+        }
+    }
+
+    private static MetaMessage tempo(int mpq) throws Exception {
+        byte[] data = {(byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq};
+        return new MetaMessage(0x51, data, data.length);
+    }
+
+    // 480 ticks per quarter note, a Note On of each note every step ticks, ended a step after the last one
+    private static Sequence notes(int step, int... notes) throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        for (int i = 0; i < notes.length; i++) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, notes[i], 100), (long) i * step));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, notes[i], 0), (long) (i + 1) * step));
+        }
+        return sequence;
+    }
+
+    private static PrecisionSequencer open(Receiver receiver) {
+        PrecisionSequencer sequencer = new PrecisionSequencer();
+        sequencer.open();
+        sequencer.getTransmitter().setReceiver(receiver);
+        return sequencer;
+    }
+
+    @Test
+    void tempoChangeMidSongMovesLaterTicks() throws Exception {
+        // 120 BPM up to tick 960, then 240 BPM
+        PrecisionSequencer.TempoMap map = new PrecisionSequencer.TempoMap(Sequence.PPQ, 480, 500_000,
+                new long[]{960}, new int[]{250_000}, 1);
+
+        assertEquals(500_000_000L, map.tickToNanos(480));
+        assertEquals(1_000_000_000L, map.tickToNanos(960));
+        assertEquals(1_250_000_000L, map.tickToNanos(1440));
+        assertEquals(1440, map.nanosToTick(1_250_000_000L));
+        assertEquals(250_000, map.mpqAt(1000));
+
+        // The same through a Sequence with the tempo change as a meta event
+        Sequence sequence = notes(480, 60, 62, 64);
+        sequence.getTracks()[0].add(new MidiEvent(tempo(250_000), 960));
+        PrecisionSequencer sequencer = open(new RecordingReceiver());
+        sequencer.setSequence(sequence);
+        assertEquals(1_250_000, sequencer.getMicrosecondLength());
+
+        // A tempo set at tick 480 holds up to the next tempo change
+        sequencer.setTickPosition(480);
+        sequencer.setTempoInMPQ(1_000_000);
+        assertEquals(1_750_000, sequencer.getMicrosecondLength());
+        sequencer.close();
+    }
+
+    @Test
+    void loopPlaysFromStartToEndCountTimesOver() throws Exception {
+        RecordingReceiver receiver = new RecordingReceiver();
+        PrecisionSequencer sequencer = open(receiver);
+        CountDownLatch ended = new CountDownLatch(1);
+        sequencer.addMetaEventListener(meta -> ended.countDown());
+
+        // 24 ticks is 25 ms at 120 BPM
+        sequencer.setSequence(notes(24, 60, 62, 64, 66));
+        sequencer.setLoopStartPoint(24);
+        sequencer.setLoopEndPoint(72);
+        sequencer.setLoopCount(2);
+        sequencer.start();
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        sequencer.close();
+
+        assertEquals(List.of("144/60", "144/62", "144/64", "144/62", "144/64", "144/62", "144/64", "144/66"),
+                receiver.noteOns());
+    }
+
+    @Test
+    void stopTurnsOffSoundingNotes() throws Exception {
+        RecordingReceiver receiver = new RecordingReceiver();
+        PrecisionSequencer sequencer = open(receiver);
+
+        // Notes of five seconds
+        sequencer.setSequence(notes(4800, 60, 62));
+        sequencer.start();
+        assertTrue(receiver.noteOn.await(5, TimeUnit.SECONDS));
+        sequencer.stop();
+
+        assertEquals(List.of("144/60", "128/60"), receiver.sent);
+
+        // Nothing is left to turn off
+        sequencer.stop();
+        sequencer.close();
+        assertEquals(2, receiver.sent.size());
+    }
+
+    @Test
+    void endOfTrackIsReportedOnce() throws Exception {
+        RecordingReceiver receiver = new RecordingReceiver();
+        PrecisionSequencer sequencer = open(receiver);
+        AtomicInteger ends = new AtomicInteger();
+        CountDownLatch ended = new CountDownLatch(1);
+        sequencer.addMetaEventListener(meta -> {
+            if (meta.getType() == PlaylistPlayer.END_OF_TRACK) {
+                ends.incrementAndGet();
+                ended.countDown();
+            }
+        });
+
+        sequencer.setSequence(notes(24, 60, 62));
+        sequencer.start();
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+
+        // Stopping after the end reports nothing more
+        Thread.sleep(50);
+        sequencer.stop();
+        sequencer.close();
+
+        assertEquals(1, ends.get());
+        assertEquals(48, sequencer.getTickPosition());
+        assertEquals(List.of("144/60", "128/60", "144/62", "128/62"), receiver.sent);
+    }
+}
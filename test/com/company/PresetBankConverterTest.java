@@ -0,0 +1,71 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Preset CSV to PresetBank: presets keep their full index, and out of range fields are rejected
+ */
+class PresetBankConverterTest {
+
+    @TempDir
+    Path dir;
+
+    private PresetBank convert(String csv) throws IOException {
+        Path csvFile = dir.resolve("presets.csv");
+        Path bankFile = dir.resolve("presets.bnk");
+        Files.write(csvFile, csv.getBytes(StandardCharsets.UTF_8));
+        PresetBankConverter.convert(csvFile, bankFile);
+        return PresetBank.open(bankFile);
+    }
+
+    @Test
+    void presetsAbove255KeepTheirIndex() throws IOException {
+        PresetBank bank = convert("0,1,2,0,0,10,,Piano\n"
+                + "300,1,2|3,0,1,20,SOFT,Strings\n"
+                + "300,2,4,-1,0,21,,Bass\n"
+                + "4000,16,16,0,0,30,,Organ\n");
+
+        assertEquals(4001, bank.getPresetCount());
+        assertEquals(2, bank.getLayerCount(300));
+        assertEquals(0, bank.getLayerCount(300 & 0xFF));
+        assertEquals(1, bank.getLayerCount(4000));
+
+        MidiLayer[] layers = bank.getLayers(300);
+        assertEquals(300, layers[0].getPresetIdx());
+        assertEquals("2|3", layers[0].getChannelOutIdx());
+        assertEquals(1, layers[0].getModuleIdx());
+        assertEquals("Bass", layers[1].getName());
+        assertEquals(4000, bank.getLayers(4000)[0].getPresetIdx());
+    }
+
+    @Test
+    void outOfRangeFieldsAreRejected() {
+        String[] lines = {
+                "-1,1,2,0,0,10",
+                "65536,1,2,0,0,10",
+                "0,0,2,0,0,10",
+                "0,17,2,0,0,10",
+                "0,1,17,0,0,10",
+                "0,1,2,128,0,10",
+                "0,1,2,0,2,10",
+                "0,1,2,0,-1,10",
+                "0,1,2,0,0,40000",
+                "0,1,2,0,0,99999999999",
+        };
+
+        for (String line : lines) {
+            IOException ex = assertThrows(IOException.class, () -> convert(line + "\n"), line);
+            assertTrue(ex.getMessage().contains("line 1"), ex.getMessage());
+        }
+    }
+}
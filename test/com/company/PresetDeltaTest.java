@@ -0,0 +1,56 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PresetDeltaTest {
+
+    private final List<byte[]> records = new ArrayList<>();
+
+    // Layer on channelIn with one channel out per module, channelOut pair
+    private static MidiLayer layer(int presetIdx, int channelIn, int octaveTran, int... moduleChannelOut) {
+        byte[] struct = new byte[PresetDelta.RECORD_LENGTH];
+        struct[0] = (byte) presetIdx;
+        struct[1] = (byte) channelIn;
+        for (int i = 0; i < moduleChannelOut.length; i++) {
+            struct[2 + i] = (byte) moduleChannelOut[i];
+        }
+        struct[struct.length - 1] = (byte) octaveTran;
+        return new MidiLayer(presetIdx, struct, moduleChannelOut[0], 0, VelocityCurve.LINEAR);
+    }
+
+    @Test
+    void layersOnOneChannelAreMerged() {
+        PresetDelta delta = new PresetDelta();
+        MidiLayer[] layers = {
+                layer(7, 1, -1, 0, 14, 0, 15),
+                layer(7, 2, 0, 0, 2),
+                layer(7, 1, -1, 1, 16) };
+
+        assertEquals(PresetDelta.CHANNELS, delta.forward(7, layers, records::add));
+
+        byte[] channel1 = records.get(0);
+        assertArrayEquals(new byte[] {7, 1, 0, 14, 0, 15, 1, 16, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1},
+                channel1);
+        assertEquals(2, records.get(1)[3]);
+        assertEquals(0, records.get(2)[3]);
+    }
+
+    @Test
+    void onlyChangedRecordsAreForwarded() {
+        PresetDelta delta = new PresetDelta();
+        delta.forward(1, new MidiLayer[] { layer(1, 1, 0, 0, 1), layer(1, 1, 0, 0, 2) }, records::add);
+        records.clear();
+
+        // Same routing under another Preset, then a second layer dropped from channel 1
+        assertEquals(0, delta.forward(2, new MidiLayer[] { layer(2, 1, 0, 0, 1), layer(2, 1, 0, 0, 2) },
+                records::add));
+        assertEquals(1, delta.forward(3, new MidiLayer[] { layer(3, 1, 0, 0, 1) }, records::add));
+        assertEquals(0, records.get(0)[5]);
+    }
+}
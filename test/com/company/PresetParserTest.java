@@ -0,0 +1,87 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Both preset line layouts, and file order over the parallel path
+ */
+class PresetParserTest {
+
+    private static List<MidiLayer> parse(String csv) throws ParseException {
+        return PresetParser.parse(ByteBuffer.wrap(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void presetFileLayout() throws ParseException {
+        List<MidiLayer> layers = parse("0,12,12,0,106,121,100,0,100,100,20,0,0,0,0,3,8,Klaus sein Sax\r\n"
+                + "1,1,2|3,-1,106,121,5,0,100,100,20,0,0,0,0,3,8,Strings\n");
+
+        assertEquals(2, layers.size());
+        MidiLayer sax = layers.get(0);
+        assertEquals(0, sax.getPresetIdx());
+        assertEquals(12, sax.getChannelIdx());
+        assertEquals("12", sax.getChannelOutIdx());
+        assertEquals(0, sax.getOctaveTran());
+        assertEquals(0, sax.getModuleIdx());
+        assertEquals(PresetParser.NO_PATCH, sax.getPatchIdx());
+        assertEquals("Klaus sein Sax", sax.getName());
+
+        MidiLayer strings = layers.get(1);
+        assertEquals("2|3", strings.getChannelOutIdx());
+        assertEquals(-1, strings.getOctaveTran());
+        assertEquals("Strings", strings.getName());
+    }
+
+    @Test
+    void compactLayout() throws ParseException {
+        List<MidiLayer> layers = parse("# comment\n"
+                + "\n"
+                + "12,1,2|3|0|5,-1,0,106,SOFT,Klaus sein Sax\n"
+                + "12,2,4,0,1,7\n"
+                + "13,3,5,0,0,8,,42\n");
+
+        assertEquals(3, layers.size());
+        assertEquals(VelocityCurve.SOFT, layers.get(0).getVelocityCurve());
+        assertEquals(106, layers.get(0).getPatchIdx());
+        assertEquals("2|3|0|5", layers.get(0).getChannelOutIdx());
+        assertEquals(1, layers.get(1).getModuleIdx());
+        assertEquals("", layers.get(1).getName());
+        assertEquals(VelocityCurve.LINEAR, layers.get(2).getVelocityCurve());
+        assertEquals("42", layers.get(2).getName());
+    }
+
+    @Test
+    void errorsReportTheLine() {
+        ParseException ex = assertThrows(ParseException.class, () -> parse("0,1,2,0,0,1\n0,1,2,0,0,1,LOUDEST\n"));
+        assertEquals(2, ex.getErrorOffset());
+    }
+
+    @Test
+    void largeFilesKeepFileOrder() throws ParseException {
+        StringBuilder csv = new StringBuilder();
+        int lines = 40_000;
+        for (int i = 0; i < lines; i++) {
+            if (i % 2 == 0) {
+                csv.append(i).append(",1,2|3,0,0,").append(i % 1000).append(",,Layer ").append(i).append('\n');
+            }
+            else {
+                csv.append(i).append(",2,4,0,106,121,100,0,100,100,20,0,0,0,0,3,8,Layer ").append(i).append('\n');
+            }
+        }
+
+        List<MidiLayer> layers = parse(csv.toString());
+        assertEquals(lines, layers.size());
+        for (int i = 0; i < lines; i++) {
+            assertEquals(i, layers.get(i).getPresetIdx());
+            assertEquals("Layer " + i, layers.get(i).getName());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.company;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WireEncoderTest {
+
+    // Serial port stand in: keeps every write as hex bytes
+    private static class ByteWire implements WireEncoder.Wire {
+        final List<String> writes = new ArrayList<>();
+        final boolean keepsRunningStatus;
+
+        ByteWire(boolean keepsRunningStatus) {
+            this.keepsRunningStatus = keepsRunningStatus;
+        }
+
+        @Override
+        public int write(byte[] bytes, int length) {
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                hex.append((i > 0) ? " " : "").append(String.format("%02X", bytes[i] & 0xFF));
+            }
+            writes.add(hex.toString());
+            return length;
+        }
+
+        @Override
+        public boolean keepsRunningStatus() {
+            return keepsRunningStatus;
+        }
+
+        @Override
+        public boolean takesRawBytes() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ShortMessage message(int command, int channel, int data1, int data2) throws Exception {
+        return new ShortMessage(command, channel, data1, data2);
+    }
+
+    @Test
+    void runningStatusIsReusedWithinABatch() throws Exception {
+        ByteWire wire = new ByteWire(false);
+        WireEncoder encoder = new WireEncoder("Test", wire);
+
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 64, 100), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 1, 67, 100), -1);
+        encoder.flush();
+        encoder.send(message(ShortMessage.NOTE_ON, 1, 72, 100), -1);
+        encoder.flush();
+
+        // The next batch starts with a full status byte, as the wire does not keep running status across writes
+        assertEquals(List.of("90 3C 64 40 64 91 43 64", "91 48 64"), wire.writes);
+        assertEquals(12, encoder.getPlainBytes());
+        assertEquals(11, encoder.getWireBytes());
+        assertEquals(2, encoder.getWrites());
+    }
+
+    @Test
+    void runningStatusIsKeptAcrossWritesWhenTheWireDoes() throws Exception {
+        ByteWire wire = new ByteWire(true);
+        WireEncoder encoder = new WireEncoder("Test", wire);
+
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        encoder.flush();
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 64, 100), -1);
+        encoder.flush();
+
+        assertEquals(List.of("90 3C 64", "40 64"), wire.writes);
+    }
+
+    @Test
+    void sysexAndSystemCommonResetRunningStatusRealTimeKeepsIt() throws Exception {
+        ByteWire wire = new ByteWire(false);
+        WireEncoder encoder = new WireEncoder("Test", wire);
+
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        encoder.send(new ShortMessage(ShortMessage.TIMING_CLOCK), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 62, 100), -1);
+        encoder.send(new ShortMessage(ShortMessage.SONG_SELECT, 3, 0), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 64, 100), -1);
+        encoder.send(new SysexMessage(new byte[]{(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7}, 6), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 67, 100), -1);
+        encoder.flush();
+
+        // SysEx goes out on its own write, between the batches before and after it
+        assertEquals(List.of("90 3C 64 F8 3E 64 F3 03 90 40 64", "F0 7E 7F 09 01 F7", "90 43 64"), wire.writes);
+    }
+
+    @Test
+    void noteOffUnderNoteOnIsSentAsVelocityZero() throws Exception {
+        ByteWire wire = new ByteWire(false);
+        WireEncoder encoder = new WireEncoder("Test", wire);
+
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        encoder.send(message(ShortMessage.NOTE_OFF, 0, 60, 64), -1);
+        encoder.send(message(ShortMessage.NOTE_OFF, 0, 64, 64), -1);
+        // Another channel: no running status to reuse, so the Note Off stays one
+        encoder.send(message(ShortMessage.NOTE_OFF, 1, 60, 64), -1);
+        encoder.flush();
+
+        assertEquals(List.of("90 3C 64 3C 00 40 00 81 3C 40"), wire.writes);
+        assertEquals(2, encoder.getSavedBytes());
+    }
+
+    @Test
+    void receiverWireGetsShortMessagesAsTheyAre() throws Exception {
+        List<MidiMessage> received = new ArrayList<>();
+        Receiver receiver = new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                received.add((MidiMessage) message.clone());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        WireEncoder encoder = new WireEncoder("Test", new WireEncoder.ReceiverWire(receiver));
+
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        encoder.send(message(ShortMessage.NOTE_ON, 0, 64, 100), -1);
+        encoder.send(message(ShortMessage.NOTE_OFF, 0, 60, 64), -1);
+        encoder.flush();
+
+        assertEquals(3, received.size());
+        for (MidiMessage message : received) {
+            assertTrue(message instanceof ShortMessage);
+        }
+        assertEquals(ShortMessage.NOTE_OFF, ((ShortMessage) received.get(2)).getCommand());
+        assertEquals(64, ((ShortMessage) received.get(2)).getData2());
+        assertEquals(0, encoder.getSavedBytes());
+        assertEquals(3, encoder.getWrites());
+    }
+}